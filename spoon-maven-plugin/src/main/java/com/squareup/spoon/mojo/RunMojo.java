@@ -2,9 +2,15 @@
 package com.squareup.spoon.mojo;
 
 import com.google.common.base.Strings;
+import com.squareup.spoon.CoverageDimension;
+import com.squareup.spoon.LeasePolicy;
+import com.squareup.spoon.ResetStrategy;
+import com.squareup.spoon.SpoonDaemon;
 import com.squareup.spoon.SpoonRunner;
 import java.io.File;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
@@ -36,7 +42,7 @@ import static org.apache.maven.plugins.annotations.LifecyclePhase.INTEGRATION_TE
  * in your project's build directory.
  */
 @SuppressWarnings("UnusedDeclaration") // Used reflectively by Maven.
-@Mojo(name = "run", defaultPhase = INTEGRATION_TEST, threadSafe = false)
+@Mojo(name = "run", defaultPhase = INTEGRATION_TEST, threadSafe = true)
 public class RunMojo extends AbstractSpoonMojo {
   private static final String SPOON_GROUP_ID = "com.squareup.spoon";
   private static final String SPOON_PLUGIN_ARTIFACT_ID = "spoon-maven-plugin";
@@ -90,6 +96,96 @@ public class RunMojo extends AbstractSpoonMojo {
   @Parameter(defaultValue = "${spoon.test.method}")
   private String methodName;
 
+  /** Split the tests across all devices instead of running every test on each device. */
+  @Parameter(defaultValue = "${spoon.shard}")
+  private boolean shard;
+
+  /** Previous {@code result.json} whose durations balance shards. Defaults to the last output. */
+  @Parameter(defaultValue = "${spoon.shard.history}")
+  private File shardHistory;
+
+  /** Hand out test classes to devices as they become idle. Cannot be combined with sharding. */
+  @Parameter(defaultValue = "${spoon.dynamic}")
+  private boolean dynamic;
+
+  /** Run each device in a separate JVM process instead of sharing one debug bridge. */
+  @Parameter(defaultValue = "${spoon.forkDevices}")
+  private boolean forkDevices;
+
+  /** Only execute the tests which the previous, interrupted execution did not finish. */
+  @Parameter(defaultValue = "${spoon.resume}")
+  private boolean resume;
+
+  /** Disable system animations and keep devices awake while testing, restoring them after. */
+  @Parameter(defaultValue = "${spoon.prepareDevice}")
+  private boolean prepareDevice;
+
+  /**
+   * Compile the APKs ahead of time on devices which support it. The report compares durations with
+   * those of the previous execution without precompilation.
+   */
+  @Parameter(defaultValue = "${spoon.precompile}")
+  private boolean precompile;
+
+  /** How to reset app state between batches: {@code none}, {@code clear} or {@code reinstall}. */
+  @Parameter(defaultValue = "${spoon.reset}")
+  private String reset;
+
+  /** Pack the screenshots of each device into a single file, e.g. to speed up archiving. */
+  @Parameter(defaultValue = "${spoon.packScreenshots}")
+  private boolean packScreenshots;
+
+  /**
+   * Comma-separated configurations ({@code api-level}, {@code locale}, {@code manufacturer},
+   * {@code emulator}) which the fewest devices necessary have to cover. The other devices are not
+   * used. Empty to use every device.
+   */
+  @Parameter(defaultValue = "${spoon.cover}")
+  private String cover;
+
+  /**
+   * How to claim devices against other executions on this host: {@code none}, {@code wait} for all
+   * devices or use those {@code available}. Defaults to {@code none} like the command line, so
+   * parallel builds whose modules share devices should set it.
+   */
+  @Parameter(defaultValue = "${spoon.lease}")
+  private String lease;
+
+  /**
+   * Seconds a device may go without reporting test progress before its instrumentation is
+   * cancelled. Zero disables the check.
+   */
+  @Parameter(defaultValue = "${spoon.idleTimeout}")
+  private int idleTimeout;
+
+  /** Maximum number of devices to execute at once. Zero means no limit. */
+  @Parameter(defaultValue = "${spoon.maxDevices}")
+  private int maxDevices;
+
+  /** Maximum number of devices installing APKs at once. Zero means no limit. */
+  @Parameter(defaultValue = "${spoon.maxInstalls}")
+  private int maxInstalls;
+
+  /** Maximum number of devices pulling files at once. Zero means no limit. */
+  @Parameter(defaultValue = "${spoon.maxPulls}")
+  private int maxPulls;
+
+  /** Maximum number of devices running shell commands at once. Zero means no limit. */
+  @Parameter(defaultValue = "${spoon.maxShells}")
+  private int maxShells;
+
+  /** Maximum number of devices streaming logcat at once. Zero means no limit. */
+  @Parameter(defaultValue = "${spoon.maxLogcats}")
+  private int maxLogcats;
+
+  /** Submit the execution to a running Spoon daemon, running standalone if there is none. */
+  @Parameter(defaultValue = "${spoon.daemon}")
+  private boolean useDaemon;
+
+  /** Local port of the Spoon daemon. */
+  @Parameter(defaultValue = "${spoon.daemon.port}")
+  private int daemonPort;
+
   @Component
   private MavenProjectHelper projectHelper;
 
@@ -144,6 +240,16 @@ public class RunMojo extends AbstractSpoonMojo {
 
     log.debug("Spoon title: " + title);
     log.debug("Debug: " + Boolean.toString(debug));
+    log.debug("Shard: " + Boolean.toString(shard));
+    log.debug("Dynamic: " + Boolean.toString(dynamic));
+    log.debug("Fork devices: " + Boolean.toString(forkDevices));
+    log.debug("Resume: " + Boolean.toString(resume));
+    log.debug("Prepare device: " + Boolean.toString(prepareDevice));
+    log.debug("Precompile: " + Boolean.toString(precompile));
+    log.debug("Reset: " + reset);
+    log.debug("Cover: " + cover);
+    log.debug("Lease: " + lease);
+    log.debug("Use daemon: " + Boolean.toString(useDaemon));
 
     boolean success = new SpoonRunner.Builder() //
         .setTitle(title)
@@ -155,7 +261,26 @@ public class RunMojo extends AbstractSpoonMojo {
         .setClasspath(classpath)
         .setClassName(className)
         .setMethodName(methodName)
+        .setSharding(shard)
+        .setShardHistory(shardHistory)
+        .setDynamicScheduling(dynamic)
+        .setForkDevices(forkDevices)
+        .setResume(resume)
+        .setPrepareDevice(prepareDevice)
+        .setPrecompile(precompile)
+        .setPackScreenshots(packScreenshots)
+        .setResetStrategy(parseResetStrategy())
+        .setLeasePolicy(parseLeasePolicy())
+        .setIdleTimeout(idleTimeout * 1000)
+        .setMaxConcurrentDevices(maxDevices)
+        .setMaxConcurrentInstalls(maxInstalls)
+        .setMaxConcurrentPulls(maxPulls)
+        .setMaxConcurrentShells(maxShells)
+        .setMaxConcurrentLogcats(maxLogcats)
+        .setUseDaemon(useDaemon)
+        .setDaemonPort(daemonPort > 0 ? daemonPort : SpoonDaemon.DEFAULT_PORT)
         .useAllAttachedDevices()
+        .setCoverage(parseCoverage())
         .build()
         .run();
 
@@ -188,6 +313,36 @@ public class RunMojo extends AbstractSpoonMojo {
         "Could not find application. Ensure 'apk' dependency on it exists.");
   }
 
+  private Set<CoverageDimension> parseCoverage() throws MojoExecutionException {
+    try {
+      return CoverageDimension.parseAll(cover);
+    } catch (IllegalArgumentException e) {
+      throw new MojoExecutionException(e.getMessage());
+    }
+  }
+
+  private LeasePolicy parseLeasePolicy() throws MojoExecutionException {
+    if (lease == null) {
+      return LeasePolicy.NONE;
+    }
+    try {
+      return LeasePolicy.valueOf(lease.toUpperCase(Locale.US));
+    } catch (IllegalArgumentException e) {
+      throw new MojoExecutionException("Unknown lease policy: " + lease);
+    }
+  }
+
+  private ResetStrategy parseResetStrategy() throws MojoExecutionException {
+    if (reset == null) {
+      return ResetStrategy.NONE;
+    }
+    try {
+      return ResetStrategy.valueOf(reset.toUpperCase(Locale.US));
+    } catch (IllegalArgumentException e) {
+      throw new MojoExecutionException("Unknown reset strategy: " + reset);
+    }
+  }
+
   private org.eclipse.aether.artifact.Artifact aetherArtifact(Artifact dep)
       throws MojoExecutionException {
     return resolveArtifact(dep.getGroupId(), dep.getArtifactId(), "apk", dep.getVersion());
@@ -0,0 +1,68 @@
+package com.squareup.spoon;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logDebug;
+
+/**
+ * Limits how many devices perform each kind of adb operation at the same time so that a large
+ * number of devices does not overwhelm the adb server or a shared USB bus. Limits only apply to
+ * devices driven from this process.
+ */
+final class AdbThrottle {
+  enum Operation {
+    INSTALL, PULL, SHELL, LOGCAT
+  }
+
+  private final Map<Operation, Semaphore> permits =
+      new EnumMap<Operation, Semaphore>(Operation.class);
+  private final boolean debug;
+
+  /**
+   * @param limits Maximum number of concurrent executions of each operation. Operations without a
+   *        positive limit are not restricted.
+   */
+  AdbThrottle(Map<Operation, Integer> limits, boolean debug) {
+    checkNotNull(limits);
+    for (Map.Entry<Operation, Integer> entry : limits.entrySet()) {
+      if (entry.getValue() != null && entry.getValue() > 0) {
+        permits.put(entry.getKey(), new Semaphore(entry.getValue(), true));
+      }
+    }
+    this.debug = debug;
+  }
+
+  /** A throttle which never blocks. */
+  static AdbThrottle unlimited() {
+    return new AdbThrottle(new EnumMap<Operation, Integer>(Operation.class), false);
+  }
+
+  /** Block until {@code serial} may perform {@code operation}. Pair with {@link #release}. */
+  void acquire(Operation operation, String serial) {
+    Semaphore semaphore = permits.get(operation);
+    if (semaphore == null) {
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      semaphore.acquire();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    logDebug(debug, "[%s] Waited %dms for %s slot. (%d free)", serial, waited, operation,
+        semaphore.availablePermits());
+  }
+
+  /** Give up the slot for {@code operation} obtained through {@link #acquire}. */
+  void release(Operation operation) {
+    Semaphore semaphore = permits.get(operation);
+    if (semaphore != null) {
+      semaphore.release();
+    }
+  }
+}
@@ -0,0 +1,247 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.InstallException;
+import com.android.ddmlib.SyncService;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonUtils.executeShellCommand;
+
+/**
+ * Installs several APKs on a device with a single push stage. All files travel over one sync
+ * connection. On devices which support multi-package sessions they are then committed together,
+ * otherwise each APK is installed while the next one is still being pushed.
+ */
+final class ApkInstaller {
+  private static final String REMOTE_DIR = "/data/local/tmp/";
+  private static final int MULTI_PACKAGE_API_LEVEL = 29;
+  private static final Pattern SESSION_ID = Pattern.compile("\\[(\\d+)\\]");
+
+  /** Executes a shell command on the device and returns its output. */
+  interface Shell {
+    String execute(String command) throws Exception;
+  }
+
+  /** Installs an APK which was pushed to the device, returning the error or {@code null}. */
+  interface RemoteInstall {
+    String install(String remotePath) throws Exception;
+  }
+
+  private final IDevice device;
+  private final String serial;
+  private final boolean debug;
+  private final Shell shell;
+  private final RemoteInstall remoteInstall;
+
+  ApkInstaller(final IDevice device, String serial, boolean debug) {
+    this.device = checkNotNull(device);
+    this.serial = checkNotNull(serial);
+    this.debug = debug;
+    this.shell = new Shell() {
+      @Override public String execute(String command) throws Exception {
+        return executeShellCommand(device, command);
+      }
+    };
+    this.remoteInstall = new RemoteInstall() {
+      @Override public String install(String remotePath) throws Exception {
+        return device.installRemotePackage(remotePath, true);
+      }
+    };
+  }
+
+  /**
+   * Install {@code apks}, replacing existing installs.
+   *
+   * @return The error reported for each APK which failed to install. Empty on success.
+   */
+  Map<File, String> install(List<File> apks, int apiLevel) throws Exception {
+    Map<File, String> errors = new LinkedHashMap<File, String>();
+    if (apks.isEmpty()) {
+      return errors;
+    }
+    List<String> remotePaths = new ArrayList<String>();
+    for (int i = 0; i < apks.size(); i++) {
+      remotePaths.add(REMOTE_DIR + "spoon-" + serial + "-" + i + ".apk");
+    }
+    try {
+      if (useMultiPackage(apks.size(), apiLevel)) {
+        push(apks, remotePaths, null);
+        if (!installMultiPackage(shell, remotePaths, serial, debug)) {
+          logDebug(debug, "[%s] Multi-package install failed. Installing one at a time.", serial);
+          installEach(remoteInstall, apks, remotePaths, errors);
+        }
+      } else {
+        push(apks, remotePaths, errors);
+      }
+      return errors;
+    } finally {
+      for (String remotePath : remotePaths) {
+        try {
+          device.removeRemotePackage(remotePath);
+        } catch (InstallException e) {
+          logDebug(debug, "[%s] Unable to remove %s: %s", serial, remotePath, e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Push {@code apks} one after the other over a single connection. If {@code errors} is not
+   * {@code null} each APK is installed in the background as soon as it has been pushed.
+   */
+  private void push(List<File> apks, List<String> remotePaths, Map<File, String> errors)
+      throws Exception {
+    List<FutureTask<String>> installs = new ArrayList<FutureTask<String>>();
+    SyncService sync = device.getSyncService();
+    if (sync == null) {
+      throw new IllegalStateException("Unable to open sync connection to " + serial);
+    }
+    try {
+      for (int i = 0; i < apks.size(); i++) {
+        String remotePath = remotePaths.get(i);
+        long start = System.nanoTime();
+        sync.pushFile(apks.get(i).getAbsolutePath(), remotePath,
+            SyncService.getNullProgressMonitor());
+        logDebug(debug, "[%s] Pushed %s in %dms.", serial, apks.get(i).getName(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        if (errors != null) {
+          FutureTask<String> previous = installs.isEmpty() ? null : installs.get(i - 1);
+          installs.add(
+              startInstall(remoteInstall, remotePath, previous, "spoon-install-" + serial));
+        }
+      }
+    } finally {
+      sync.close();
+      // Never leave an install running against files which are about to be removed.
+      awaitInstalls(apks, installs, errors);
+    }
+  }
+
+  /** Whether {@code apkCount} APKs are committed in one session on a device of {@code apiLevel}. */
+  static boolean useMultiPackage(int apkCount, int apiLevel) {
+    return apkCount > 1 && apiLevel >= MULTI_PACKAGE_API_LEVEL;
+  }
+
+  /** Install each of the pushed APKs on its own, recording the error of each which failed. */
+  static void installEach(RemoteInstall remoteInstall, List<File> apks, List<String> remotePaths,
+      Map<File, String> errors) throws Exception {
+    for (int i = 0; i < apks.size(); i++) {
+      addError(errors, apks.get(i), remoteInstall.install(remotePaths.get(i)));
+    }
+  }
+
+  /**
+   * Install {@code remotePath} on a background thread. Only one install may run at a time, so it
+   * waits for {@code previous}, if any, to finish first, whether that succeeded or not.
+   */
+  static FutureTask<String> startInstall(final RemoteInstall remoteInstall,
+      final String remotePath, final FutureTask<String> previous, String threadName) {
+    FutureTask<String> install = new FutureTask<String>(new Callable<String>() {
+      @Override public String call() throws Exception {
+        if (previous != null) {
+          try {
+            previous.get();
+          } catch (ExecutionException ignored) {
+            // Reported for the previous APK.
+          }
+        }
+        return remoteInstall.install(remotePath);
+      }
+    });
+    Thread thread = new Thread(install, threadName);
+    thread.setDaemon(true);
+    thread.start();
+    return install;
+  }
+
+  /** Wait for each of {@code installs} and record the error of each APK which failed. */
+  static void awaitInstalls(List<File> apks, List<FutureTask<String>> installs,
+      Map<File, String> errors) throws InterruptedException {
+    for (int i = 0; i < installs.size(); i++) {
+      try {
+        addError(errors, apks.get(i), installs.get(i).get());
+      } catch (ExecutionException e) {
+        addError(errors, apks.get(i), e.getCause().toString());
+      }
+    }
+  }
+
+  /** Commit all APKs in one multi-package session, returning whether it succeeded. */
+  static boolean installMultiPackage(Shell shell, List<String> remotePaths, String serial,
+      boolean debug) throws Exception {
+    String parent = createSession(shell, "--multi-package");
+    if (parent == null) {
+      return false;
+    }
+    boolean committed = false;
+    try {
+      StringBuilder children = new StringBuilder();
+      for (String remotePath : remotePaths) {
+        String child = createSession(shell, "");
+        if (child == null) {
+          return false;
+        }
+        if (!isSuccess(shell.execute("pm install-write " + child + " base.apk " + remotePath))) {
+          abandonSession(shell, child, serial, debug);
+          return false;
+        }
+        children.append(' ').append(child);
+      }
+      if (!isSuccess(shell.execute("pm install-add-session " + parent + children))) {
+        return false;
+      }
+      String output = shell.execute("pm install-commit " + parent);
+      committed = isSuccess(output);
+      if (!committed) {
+        logDebug(debug, "[%s] Multi-package commit failed: %s", serial, output.trim());
+      }
+      return committed;
+    } finally {
+      if (!committed) {
+        abandonSession(shell, parent, serial, debug);
+      }
+    }
+  }
+
+  /** Abandon an install session without masking the failure that caused it. */
+  private static void abandonSession(Shell shell, String session, String serial, boolean debug) {
+    try {
+      shell.execute("pm install-abandon " + session);
+    } catch (Exception e) {
+      logDebug(debug, "[%s] Unable to abandon session %s: %s", serial, session, e.getMessage());
+    }
+  }
+
+  /** Create an install session, returning its identifier or {@code null}. */
+  private static String createSession(Shell shell, String options) throws Exception {
+    return parseSessionId(shell.execute("pm install-create -r " + options));
+  }
+
+  /** The identifier in the output of {@code pm install-create}, or {@code null} if it failed. */
+  static String parseSessionId(String output) {
+    Matcher matcher = SESSION_ID.matcher(output);
+    return isSuccess(output) && matcher.find() ? matcher.group(1) : null;
+  }
+
+  private static boolean isSuccess(String output) {
+    return output.trim().startsWith("Success");
+  }
+
+  private static void addError(Map<File, String> errors, File apk, String error) {
+    if (errors != null && error != null) {
+      errors.put(apk, error);
+    }
+  }
+}
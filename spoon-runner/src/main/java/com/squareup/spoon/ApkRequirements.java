@@ -0,0 +1,198 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.squareup.spoon.axmlparser.AXMLParser;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import static com.squareup.spoon.SpoonUtils.executeShellCommand;
+
+/**
+ * What a device has to offer for an APK to install and run: the SDK range of {@code uses-sdk},
+ * required {@code uses-feature}s and, if the APK contains native code, one of its ABIs.
+ */
+final class ApkRequirements {
+  private static final int TYPE_INT_DEC = 0x10;
+  private static final int TYPE_INT_HEX = 0x11;
+  private static final int TYPE_INT_BOOLEAN = 0x12;
+  private static final String NATIVE_LIBRARY_DIR = "lib/";
+  private static final String FEATURE_PREFIX = "feature:";
+
+  private final int minSdkVersion;
+  private final int maxSdkVersion;
+  private final Set<String> features;
+  private final Set<String> abis;
+
+  /**
+   * @param maxSdkVersion Highest supported API level or {@code 0} if there is none.
+   * @param abis ABIs of which a device has to support one, or empty for APKs without native code.
+   */
+  ApkRequirements(int minSdkVersion, int maxSdkVersion, Collection<String> features,
+      Collection<String> abis) {
+    this.minSdkVersion = minSdkVersion;
+    this.maxSdkVersion = maxSdkVersion;
+    this.features = Collections.unmodifiableSet(new LinkedHashSet<String>(features));
+    this.abis = Collections.unmodifiableSet(new LinkedHashSet<String>(abis));
+  }
+
+  /** {@code true} if devices have to be asked which features they support. */
+  boolean hasFeatures() {
+    return !features.isEmpty();
+  }
+
+  /** Requirements which satisfy both this and {@code other}. */
+  ApkRequirements and(ApkRequirements other) {
+    int maxSdk = maxSdkVersion == 0 ? other.maxSdkVersion
+        : other.maxSdkVersion == 0 ? maxSdkVersion : Math.min(maxSdkVersion, other.maxSdkVersion);
+    Set<String> allFeatures = new LinkedHashSet<String>(features);
+    allFeatures.addAll(other.features);
+    Set<String> commonAbis;
+    if (abis.isEmpty()) {
+      commonAbis = other.abis;
+    } else if (other.abis.isEmpty()) {
+      commonAbis = abis;
+    } else {
+      commonAbis = new LinkedHashSet<String>(abis);
+      commonAbis.retainAll(other.abis);
+    }
+    return new ApkRequirements(Math.max(minSdkVersion, other.minSdkVersion), maxSdk, allFeatures,
+        commonAbis);
+  }
+
+  /**
+   * Why a device cannot run the APK, or {@code null} if it can. Checks whose device information
+   * is missing are passed.
+   *
+   * @param deviceFeatures Features the device supports or {@code null} if unknown.
+   */
+  String findIncompatibility(DeviceDetails details, Set<String> deviceFeatures) {
+    int apiLevel = details.getApiLevel();
+    if (apiLevel > 0 && apiLevel < minSdkVersion) {
+      return "API level " + apiLevel + " is below minSdkVersion " + minSdkVersion + ".";
+    }
+    if (apiLevel > 0 && maxSdkVersion > 0 && apiLevel > maxSdkVersion) {
+      return "API level " + apiLevel + " is above maxSdkVersion " + maxSdkVersion + ".";
+    }
+    if (deviceFeatures != null) {
+      for (String feature : features) {
+        if (!deviceFeatures.contains(feature)) {
+          return "Missing required feature " + feature + ".";
+        }
+      }
+    }
+    if (!abis.isEmpty() && !details.getAbis().isEmpty()
+        && Collections.disjoint(abis, details.getAbis())) {
+      return "None of the ABIs " + details.getAbis() + " are supported by the APK " + abis + ".";
+    }
+    return null;
+  }
+
+  @Override public String toString() {
+    return ToStringBuilder.reflectionToString(this);
+  }
+
+  /** Features {@code device} supports, as listed by {@code pm list features}. */
+  static Set<String> readDeviceFeatures(IDevice device) throws Exception {
+    return parseDeviceFeatures(executeShellCommand(device, "pm list features"));
+  }
+
+  static Set<String> parseDeviceFeatures(String output) {
+    Set<String> features = new LinkedHashSet<String>();
+    for (String line : output.split("\n")) {
+      line = line.trim();
+      if (line.startsWith(FEATURE_PREFIX)) {
+        String feature = line.substring(FEATURE_PREFIX.length());
+        // Versioned features are listed as "name=version".
+        int versionStart = feature.indexOf('=');
+        features.add(versionStart >= 0 ? feature.substring(0, versionStart) : feature);
+      }
+    }
+    return features;
+  }
+
+  /** Parse the requirements of an APK from its manifest and native libraries. */
+  static ApkRequirements parseFromFile(File apk) {
+    ZipFile zip = null;
+    InputStream is = null;
+    try {
+      zip = new ZipFile(apk);
+      Set<String> abis = new LinkedHashSet<String>();
+      Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        String name = entries.nextElement().getName();
+        int abiEnd = name.indexOf('/', NATIVE_LIBRARY_DIR.length());
+        if (name.startsWith(NATIVE_LIBRARY_DIR) && name.endsWith(".so") && abiEnd > 0) {
+          abis.add(name.substring(NATIVE_LIBRARY_DIR.length(), abiEnd));
+        }
+      }
+
+      is = zip.getInputStream(zip.getEntry("AndroidManifest.xml"));
+      AXMLParser parser = new AXMLParser(is);
+      int minSdkVersion = 1;
+      int maxSdkVersion = 0;
+      Set<String> features = new LinkedHashSet<String>();
+      for (int type = parser.getType(); type != AXMLParser.END_DOCUMENT; type = parser.next()) {
+        if (type != AXMLParser.START_TAG) {
+          continue;
+        }
+        if ("uses-sdk".equals(parser.getName())) {
+          for (int i = 0; i < parser.getAttributeCount(); i++) {
+            String attribute = parser.getAttributeName(i);
+            if ("minSdkVersion".equals(attribute) && isInteger(parser, i)) {
+              minSdkVersion = parser.getAttributeValue(i);
+            } else if ("maxSdkVersion".equals(attribute) && isInteger(parser, i)) {
+              maxSdkVersion = parser.getAttributeValue(i);
+            }
+          }
+        } else if ("uses-feature".equals(parser.getName())) {
+          String feature = null;
+          boolean required = true;
+          for (int i = 0; i < parser.getAttributeCount(); i++) {
+            String attribute = parser.getAttributeName(i);
+            if ("name".equals(attribute)) {
+              feature = parser.getAttributeValueString(i);
+            } else if ("required".equals(attribute)
+                && parser.getAttributeValueType(i) == TYPE_INT_BOOLEAN) {
+              required = parser.getAttributeValue(i) != 0;
+            }
+          }
+          // OpenGL ES versions are declared without a name and are not checked.
+          if (feature != null && !feature.isEmpty() && required) {
+            features.add(feature);
+          }
+        }
+      }
+      return new ApkRequirements(minSdkVersion, maxSdkVersion, features, abis);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to parse AndroidManifest.xml of " + apk, e);
+    } finally {
+      IOUtils.closeQuietly(is);
+      closeQuietly(zip);
+    }
+  }
+
+  /** Version codenames of preview SDKs are stored as strings and cannot be compared. */
+  private static boolean isInteger(AXMLParser parser, int index) {
+    int type = parser.getAttributeValueType(index);
+    return type == TYPE_INT_DEC || type == TYPE_INT_HEX;
+  }
+
+  private static void closeQuietly(ZipFile zip) {
+    if (zip != null) {
+      try {
+        zip.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.squareup.spoon;
+
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A device configuration which a reduced set of devices still has to cover. Every distinct value
+ * among the available devices is covered by at least one selected device.
+ */
+public enum CoverageDimension {
+  API_LEVEL {
+    @Override String valueFor(DeviceDetails details) {
+      return String.valueOf(details.getApiLevel());
+    }
+  },
+  LOCALE {
+    @Override String valueFor(DeviceDetails details) {
+      return details.getLanguage() + "_" + details.getRegion();
+    }
+  },
+  MANUFACTURER {
+    @Override String valueFor(DeviceDetails details) {
+      String manufacturer = details.getManufacturer();
+      return manufacturer != null ? manufacturer.toLowerCase(Locale.US) : null;
+    }
+  },
+  EMULATOR {
+    @Override String valueFor(DeviceDetails details) {
+      return String.valueOf(details.isEmulator());
+    }
+  };
+
+  /** The value of this dimension for a device. */
+  abstract String valueFor(DeviceDetails details);
+
+  /**
+   * Parse a comma-separated list of dimensions such as {@code api-level,locale}.
+   *
+   * @throws IllegalArgumentException if a dimension is unknown.
+   */
+  public static Set<CoverageDimension> parseAll(String value) {
+    Set<CoverageDimension> dimensions = EnumSet.noneOf(CoverageDimension.class);
+    if (value == null) {
+      return dimensions;
+    }
+    for (String name : value.split(",")) {
+      name = name.trim();
+      if (!name.isEmpty()) {
+        try {
+          dimensions.add(valueOf(name.toUpperCase(Locale.US).replace('-', '_')));
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException("Unknown coverage dimension: " + name);
+        }
+      }
+    }
+    return dimensions;
+  }
+}
@@ -0,0 +1,123 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An execution submitted to a {@link SpoonDaemon}. Only carries the configuration a client may
+ * choose; the daemon rebuilds the runner through {@link SpoonRunner.Builder} with its own SDK and
+ * classpath so that every check of the builder applies.
+ */
+final class DaemonRequest {
+  /** Proves that the client may read the token file of the daemon. */
+  String token;
+  String title;
+  File applicationApk;
+  File instrumentationApk;
+  File output;
+  boolean debug;
+  boolean noAnimations;
+  boolean packScreenshots;
+  boolean prepareDevice;
+  List<String> devicePreparations = new ArrayList<String>();
+  boolean precompile;
+  ResetStrategy resetStrategy;
+  int adbTimeout;
+  int idleTimeout;
+  Set<String> serials = new LinkedHashSet<String>();
+  Set<CoverageDimension> coverage = new LinkedHashSet<CoverageDimension>();
+  String className;
+  String methodName;
+  IRemoteAndroidTestRunner.TestSize testSize;
+  boolean failIfNoDeviceConnected;
+  boolean sharding;
+  boolean dynamicScheduling;
+  File shardHistory;
+  boolean forkDevices;
+  boolean resume;
+  LeasePolicy leasePolicy;
+  int maxConcurrentDevices;
+  int maxConcurrentInstalls;
+  int maxConcurrentPulls;
+  int maxConcurrentShells;
+  int maxConcurrentLogcats;
+
+  /**
+   * Build the runner this request describes, driving the SDK at {@code androidSdk} and using the
+   * {@code leasedDevices} which the daemon leases itself without leasing them again.
+   */
+  SpoonRunner toRunner(File androidSdk, Set<String> leasedDevices) {
+    checkNotNull(output, "Output path is required.");
+    checkArgument(isReplaceable(output),
+        "Output directory is neither empty nor a previous Spoon output: " + output);
+    SpoonRunner.Builder builder = new SpoonRunner.Builder()
+        .setAndroidSdk(androidSdk)
+        .setApplicationApk(applicationApk)
+        .setInstrumentationApk(instrumentationApk)
+        .setOutputDirectory(output)
+        .setDebug(debug)
+        .setNoAnimations(noAnimations)
+        .setPackScreenshots(packScreenshots)
+        .setPrepareDevice(prepareDevice)
+        .setPrecompile(precompile)
+        .setResetStrategy(resetStrategy)
+        .setAdbTimeout(adbTimeout)
+        .setIdleTimeout(idleTimeout)
+        .setCoverage(coverage)
+        .setClassName(className)
+        .setMethodName(methodName)
+        .setTestSize(testSize)
+        .setFailIfNoDeviceConnected(failIfNoDeviceConnected)
+        .setSharding(sharding)
+        .setDynamicScheduling(dynamicScheduling)
+        .setShardHistory(shardHistory)
+        .setForkDevices(forkDevices)
+        .setResume(resume)
+        .setLeasePolicy(leasePolicy)
+        .setLeasedDevices(leasedDevices)
+        .setMaxConcurrentDevices(maxConcurrentDevices)
+        .setMaxConcurrentInstalls(maxConcurrentInstalls)
+        .setMaxConcurrentPulls(maxConcurrentPulls)
+        .setMaxConcurrentShells(maxConcurrentShells)
+        .setMaxConcurrentLogcats(maxConcurrentLogcats);
+    if (title != null) {
+      builder.setTitle(title);
+    }
+    for (String preparation : devicePreparations) {
+      builder.addDevicePreparation(DevicePreparations.load(preparation));
+    }
+    if (serials.isEmpty()) {
+      builder.useAllAttachedDevices();
+    }
+    for (String serial : serials) {
+      builder.addDevice(serial);
+    }
+    return builder.build();
+  }
+
+  /**
+   * {@code true} if {@code output} may be cleaned for an execution: it does not exist, is empty or
+   * holds the output of an earlier execution.
+   */
+  static boolean isReplaceable(File output) {
+    if (!output.exists()) {
+      return true;
+    }
+    String[] children = output.list();
+    if (children == null) {
+      return false; // Not a directory.
+    }
+    if (children.length == 0) {
+      return true;
+    }
+    return new File(output, "result.json").isFile()
+        || new File(output, TestJournal.JOURNAL_DIR).isDirectory();
+  }
+}
@@ -1,12 +1,38 @@
 package com.squareup.spoon;
 
 import com.android.ddmlib.IDevice;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 
+import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.base.Strings.emptyToNull;
+import static com.squareup.spoon.SpoonUtils.executeShellCommand;
 
 /** Device configuration and hardware information. */
 public final class DeviceDetails {
+  private static final ConcurrentMap<String, DeviceDetails> CACHE =
+      new ConcurrentHashMap<String, DeviceDetails>();
+  /** Details of devices by serial, shared by executions and the processes of forked devices. */
+  private static final File DISK_CACHE_DIR =
+      new File(System.getProperty("java.io.tmpdir"), "spoon-device-details");
+  private static final String FINGERPRINT = "ro.build.fingerprint";
+  /** Properties read one by one from devices which cannot list all of them. */
+  private static final List<String> PROPERTIES = Arrays.asList("ro.product.manufacturer",
+      "ro.product.model", "ro.build.version.release", "ro.build.version.sdk",
+      "ro.product.locale.language", "ro.product.locale.region", "ro.product.cpu.abilist",
+      "ro.product.cpu.abi", "ro.product.cpu.abi2");
+
   private final String model;
   private final String manufacturer;
   private final String version;
@@ -15,9 +41,10 @@ public final class DeviceDetails {
   private final String region;
   private final boolean isEmulator;
   private final String avdName;
+  private final List<String> abis;
 
   private DeviceDetails(String model, String manufacturer, String version, int apiLevel,
-      String language, String region, boolean emulator, String avdName) {
+      String language, String region, boolean emulator, String avdName, List<String> abis) {
     this.model = model;
     this.manufacturer = manufacturer;
     this.version = version;
@@ -26,6 +53,7 @@ public final class DeviceDetails {
     this.region = region;
     this.isEmulator = emulator;
     this.avdName = avdName;
+    this.abis = abis;
   }
 
   /** Product manufacturer and model, or AVD name if an emulator. */
@@ -77,25 +105,169 @@ public final class DeviceDetails {
     return avdName;
   }
 
+  /** Supported native ABIs, most preferred first. Empty if unknown. */
+  public List<String> getAbis() {
+    return abis != null ? abis : Collections.<String>emptyList();
+  }
+
+  /**
+   * Details of {@code device}, reusing those read earlier by this process or, as long as the
+   * device runs the same build, by an earlier execution.
+   */
+  static DeviceDetails obtainForDevice(IDevice device) {
+    String serial = device.getSerialNumber();
+    DeviceDetails details = CACHE.get(serial);
+    if (details != null) {
+      return details;
+    }
+    String fingerprint = readFingerprint(device);
+    if (fingerprint != null) {
+      details = loadCached(DISK_CACHE_DIR, serial, fingerprint);
+      // Emulators of different AVDs can run the same system image under the same serial.
+      if (details != null && details.isEmulator
+          && !String.valueOf(details.avdName).equals(String.valueOf(device.getAvdName()))) {
+        details = null;
+      }
+    }
+    if (details == null) {
+      details = createForDevice(device);
+      if (details.apiLevel > 0 && fingerprint != null) {
+        storeCached(DISK_CACHE_DIR, serial, fingerprint, details);
+      }
+    }
+    if (details.apiLevel > 0) { // Properties were readable, so the device is fully up.
+      CACHE.put(serial, details);
+    }
+    return details;
+  }
+
+  /** Forget the cached details of {@code serial}, e.g. because it has disconnected. */
+  static void evictFromCache(String serial) {
+    CACHE.remove(serial);
+  }
+
+  /** Forget all details cached by this process. */
+  static void clearCache() {
+    CACHE.clear();
+  }
+
+  /** Details stored for {@code serial} if it ran the build {@code fingerprint} at the time. */
+  static DeviceDetails loadCached(File directory, String serial, String fingerprint) {
+    File file = new File(directory, SpoonUtils.sanitizeSerial(serial) + ".json");
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      CachedDetails cached =
+          SpoonUtils.GSON.fromJson(Files.toString(file, UTF_8), CachedDetails.class);
+      if (cached != null && fingerprint.equals(cached.fingerprint)) {
+        return cached.details;
+      }
+    } catch (Exception ignored) {
+      // Corrupt or from an incompatible version. It will be overwritten.
+    }
+    return null;
+  }
+
+  /** Store {@code details} for {@code serial} while it runs the build {@code fingerprint}. */
+  static void storeCached(File directory, String serial, String fingerprint,
+      DeviceDetails details) {
+    File file = new File(directory, SpoonUtils.sanitizeSerial(serial) + ".json");
+    try {
+      FileUtils.forceMkdir(directory);
+      // Other processes may read the file at the same time, so replace it in one step.
+      File temp = File.createTempFile(file.getName(), ".tmp", directory);
+      Files.write(SpoonUtils.GSON.toJson(new CachedDetails(fingerprint, details)), temp, UTF_8);
+      if (!temp.renameTo(file)) {
+        FileUtils.deleteQuietly(temp);
+      }
+    } catch (IOException ignored) {
+      // The details will be read from the device again next time.
+    }
+  }
+
+  private static String readFingerprint(IDevice device) {
+    try {
+      return emptyToNull(executeShellCommand(device, "getprop " + FINGERPRINT).trim());
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
   static DeviceDetails createForDevice(IDevice device) {
-    String manufacturer = emptyToNull(device.getProperty("ro.product.manufacturer"));
-    String model = emptyToNull(device.getProperty("ro.product.model"));
+    Map<String, String> properties = readProperties(device);
+    String manufacturer = emptyToNull(properties.get("ro.product.manufacturer"));
+    String model = emptyToNull(properties.get("ro.product.model"));
     model = DeviceUtils.scrubModel(manufacturer, model);
 
-    String version = emptyToNull(device.getProperty("ro.build.version.release"));
-    String api = emptyToNull(device.getProperty("ro.build.version.sdk"));
+    String version = emptyToNull(properties.get("ro.build.version.release"));
+    String api = emptyToNull(properties.get("ro.build.version.sdk"));
     int apiLevel = api != null ? Integer.parseInt(api) : 0;
 
-    String language = emptyToNull(device.getProperty("ro.product.locale.language"));
+    String language = emptyToNull(properties.get("ro.product.locale.language"));
     language = DeviceUtils.scrubLanguage(language);
 
-    String region = emptyToNull(device.getProperty("ro.product.locale.region"));
+    String region = emptyToNull(properties.get("ro.product.locale.region"));
 
     boolean emulator = device.isEmulator();
     String avdName = emptyToNull(device.getAvdName());
 
     return new DeviceDetails(model, manufacturer, version, apiLevel, language, region, emulator,
-        avdName);
+        avdName, parseAbis(properties));
+  }
+
+  /**
+   * All properties of {@code device} from a single {@code getprop}, or the ones used here one by
+   * one if that fails.
+   */
+  private static Map<String, String> readProperties(IDevice device) {
+    try {
+      Map<String, String> properties =
+          DeviceUtils.parseProperties(executeShellCommand(device, "getprop"));
+      if (!properties.isEmpty()) {
+        return properties;
+      }
+    } catch (Exception ignored) {
+    }
+    Map<String, String> properties = new HashMap<String, String>();
+    for (String name : PROPERTIES) {
+      String value = device.getProperty(name);
+      if (value != null) {
+        properties.put(name, value);
+      }
+    }
+    return properties;
+  }
+
+  private static List<String> parseAbis(Map<String, String> properties) {
+    List<String> abis = new ArrayList<String>();
+    String abiList = emptyToNull(properties.get("ro.product.cpu.abilist"));
+    if (abiList != null) {
+      for (String abi : abiList.split(",")) {
+        if (!abi.trim().isEmpty()) {
+          abis.add(abi.trim());
+        }
+      }
+    } else { // Before API 21 devices only list up to two ABIs.
+      for (String property : new String[] {"ro.product.cpu.abi", "ro.product.cpu.abi2"}) {
+        String abi = emptyToNull(properties.get(property));
+        if (abi != null) {
+          abis.add(abi);
+        }
+      }
+    }
+    return Collections.unmodifiableList(abis);
+  }
+
+  /** On-disk form of details, tied to the build they were read from. */
+  private static final class CachedDetails {
+    private final String fingerprint;
+    private final DeviceDetails details;
+
+    CachedDetails(String fingerprint, DeviceDetails details) {
+      this.fingerprint = fingerprint;
+      this.details = details;
+    }
   }
 
   @Override public String toString() {
@@ -0,0 +1,207 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.PrintStream;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logError;
+
+/**
+ * Line-based channel over which a device process reports its progress to the process which
+ * started it. Events are single lines of JSON marked by {@link #PREFIX} so that they can be
+ * interleaved with regular log output on the same stream.
+ */
+final class DeviceEventStream {
+  static final String PREFIX = "spoon-event ";
+
+  enum Type {
+    DEVICE_DETAILS, RUN_STARTED, TEST_STARTED, TEST_FAILED, TEST_ENDED, RUN_FAILED, RUN_STOPPED,
+    RUN_ENDED, RESULT
+  }
+
+  /** A single event. Only the fields relevant to its type are present. */
+  static final class Event {
+    final Type type;
+    String runName;
+    int testCount;
+    String className;
+    String testName;
+    ITestRunListener.TestFailure failure;
+    String message;
+    long elapsedTime;
+    Map<String, String> metrics;
+    DeviceDetails deviceDetails;
+    DeviceResult result;
+
+    Event(Type type) {
+      this.type = type;
+    }
+
+    Event test(TestIdentifier test) {
+      className = test.getClassName();
+      testName = test.getTestName();
+      return this;
+    }
+
+    TestIdentifier getTest() {
+      return new TestIdentifier(className, testName);
+    }
+  }
+
+  /** Writes an event for every callback it receives. */
+  static final class Writer implements ITestRunListener {
+    private final PrintStream out;
+    private final Gson gson;
+
+    Writer(PrintStream out, Gson gson) {
+      this.out = checkNotNull(out);
+      this.gson = checkNotNull(gson);
+    }
+
+    void deviceDetails(DeviceDetails deviceDetails) {
+      Event event = new Event(Type.DEVICE_DETAILS);
+      event.deviceDetails = deviceDetails;
+      write(event);
+    }
+
+    /** Report the final result. No further events follow. */
+    void result(DeviceResult result) {
+      Event event = new Event(Type.RESULT);
+      event.result = result;
+      write(event);
+    }
+
+    @Override public void testRunStarted(String runName, int testCount) {
+      Event event = new Event(Type.RUN_STARTED);
+      event.runName = runName;
+      event.testCount = testCount;
+      write(event);
+    }
+
+    @Override public void testStarted(TestIdentifier test) {
+      write(new Event(Type.TEST_STARTED).test(test));
+    }
+
+    @Override public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+      Event event = new Event(Type.TEST_FAILED).test(test);
+      event.failure = status;
+      event.message = trace;
+      write(event);
+    }
+
+    @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+      Event event = new Event(Type.TEST_ENDED).test(test);
+      event.metrics = testMetrics;
+      write(event);
+    }
+
+    @Override public void testRunFailed(String errorMessage) {
+      Event event = new Event(Type.RUN_FAILED);
+      event.message = errorMessage;
+      write(event);
+    }
+
+    @Override public void testRunStopped(long elapsedTime) {
+      Event event = new Event(Type.RUN_STOPPED);
+      event.elapsedTime = elapsedTime;
+      write(event);
+    }
+
+    @Override public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+      Event event = new Event(Type.RUN_ENDED);
+      event.elapsedTime = elapsedTime;
+      event.metrics = runMetrics;
+      write(event);
+    }
+
+    private void write(Event event) {
+      // Compact JSON escapes all line breaks so each event occupies exactly one line.
+      out.println(PREFIX + gson.toJson(event));
+      out.flush();
+    }
+  }
+
+  /**
+   * Replays events onto a {@link DeviceResult.Builder} as they arrive so that a partial result is
+   * available even if the device process dies before reporting its final result.
+   */
+  static final class Reader {
+    private final DeviceResult.Builder partial;
+    private final ITestRunListener listener;
+    private final Gson gson;
+    private DeviceResult result;
+
+    Reader(DeviceResult.Builder partial, ITestRunListener listener, Gson gson) {
+      this.partial = checkNotNull(partial);
+      this.listener = checkNotNull(listener);
+      this.gson = checkNotNull(gson);
+    }
+
+    /** Handle {@code line} if it is an event, returning {@code false} for any other output. */
+    boolean accept(String line) {
+      if (!line.startsWith(PREFIX)) {
+        return false;
+      }
+      Event event;
+      try {
+        event = gson.fromJson(line.substring(PREFIX.length()), Event.class);
+      } catch (JsonParseException e) {
+        logError("Unable to parse device event: %s", e.getMessage());
+        return true;
+      }
+      if (event == null || event.type == null) {
+        return true;
+      }
+      switch (event.type) {
+        case DEVICE_DETAILS:
+          partial.setDeviceDetails(event.deviceDetails);
+          break;
+        case RUN_STARTED:
+          listener.testRunStarted(event.runName, event.testCount);
+          break;
+        case TEST_STARTED:
+          listener.testStarted(event.getTest());
+          break;
+        case TEST_FAILED:
+          listener.testFailed(event.failure, event.getTest(), event.message);
+          break;
+        case TEST_ENDED:
+          listener.testEnded(event.getTest(), event.metrics);
+          break;
+        case RUN_FAILED:
+          listener.testRunFailed(event.message);
+          break;
+        case RUN_STOPPED:
+          listener.testRunStopped(event.elapsedTime);
+          break;
+        case RUN_ENDED:
+          listener.testRunEnded(event.elapsedTime, event.metrics);
+          break;
+        case RESULT:
+          result = event.result;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown event type: " + event.type);
+      }
+      return true;
+    }
+
+    /** The final result reported by the device process or {@code null} if none arrived. */
+    DeviceResult getResult() {
+      return result;
+    }
+
+    /** Result assembled from the events received so far. */
+    DeviceResult getPartialResult() {
+      return partial.build();
+    }
+  }
+
+  private DeviceEventStream() {
+    // No instances.
+  }
+}
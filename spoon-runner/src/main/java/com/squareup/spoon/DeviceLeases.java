@@ -0,0 +1,124 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Exclusive claims on devices shared by all executions on a host. A device is leased by holding a
+ * file lock on its file in a shared directory, so the operating system releases the lease when
+ * the holding process exits, however it exits. Executions within one process exclude each other
+ * as well.
+ */
+final class DeviceLeases {
+  static final File DEFAULT_DIRECTORY =
+      new File(System.getProperty("java.io.tmpdir"), "spoon-leases");
+  private static final long POLL_INTERVAL_MS = 1000;
+
+  private final File directory;
+  private final Map<String, FileChannel> held = new LinkedHashMap<String, FileChannel>();
+
+  /** @param directory Shared lock directory or {@code null} to grant every lease. */
+  DeviceLeases(File directory) {
+    this.directory = directory;
+  }
+
+  /** Leases which are always granted, for executions which do not coordinate. */
+  static DeviceLeases disabled() {
+    return new DeviceLeases(null);
+  }
+
+  /**
+   * Lease devices among {@code serials} as {@code policy} demands, blocking until it is
+   * satisfied.
+   *
+   * @return The leased devices.
+   */
+  Set<String> acquire(Set<String> serials, LeasePolicy policy) {
+    checkNotNull(serials);
+    checkNotNull(policy);
+    boolean waiting = false;
+    while (true) {
+      Set<String> leased = new LinkedHashSet<String>();
+      for (String serial : serials) {
+        if (tryAcquire(serial)) {
+          leased.add(serial);
+        }
+      }
+      if (leased.size() == serials.size() || policy == LeasePolicy.NONE
+          || (policy == LeasePolicy.AVAILABLE && !leased.isEmpty())) {
+        return leased;
+      }
+      if (policy == LeasePolicy.WAIT) {
+        // Holding some devices while waiting for the others could deadlock two executions.
+        releaseAll();
+      }
+      if (!waiting) {
+        logInfo("Waiting for %d device(s) leased by other executions.",
+            serials.size() - leased.size());
+        waiting = true;
+      }
+      try {
+        Thread.sleep(POLL_INTERVAL_MS);
+      } catch (InterruptedException e) {
+        releaseAll();
+        throw new RuntimeException("Interrupted while waiting for devices.", e);
+      }
+    }
+  }
+
+  /** Lease {@code serial} if nobody else holds it. Returns {@code true} if it is now held. */
+  synchronized boolean tryAcquire(String serial) {
+    if (directory == null || held.containsKey(serial)) {
+      return true;
+    }
+    FileChannel channel = null;
+    try {
+      FileUtils.forceMkdir(directory);
+      File file = new File(directory, SpoonUtils.sanitizeSerial(serial) + ".lock");
+      channel = new RandomAccessFile(file, "rw").getChannel();
+      FileLock lock = channel.tryLock();
+      if (lock != null) {
+        held.put(serial, channel);
+        return true;
+      }
+    } catch (OverlappingFileLockException e) {
+      // Leased by another execution in this process.
+    } catch (IOException e) {
+      IOUtils.closeQuietly(channel);
+      throw new RuntimeException("Unable to lease device " + serial, e);
+    }
+    IOUtils.closeQuietly(channel);
+    return false;
+  }
+
+  /** Give up the leases on every device except {@code serials}. */
+  synchronized void releaseAllBut(Set<String> serials) {
+    for (Iterator<Map.Entry<String, FileChannel>> i = held.entrySet().iterator(); i.hasNext();) {
+      Map.Entry<String, FileChannel> entry = i.next();
+      if (!serials.contains(entry.getKey())) {
+        // Closing the channel releases its lock.
+        IOUtils.closeQuietly(entry.getValue());
+        i.remove();
+      }
+    }
+  }
+
+  /** Give up every lease. */
+  void releaseAll() {
+    releaseAllBut(new LinkedHashSet<String>());
+  }
+}
@@ -0,0 +1,94 @@
+package com.squareup.spoon;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logDebug;
+
+/**
+ * Executes the work of each device on its own thread, limiting how many devices run at once.
+ * Devices may join until {@link #await()} observes that all work has finished.
+ */
+final class DevicePool {
+  private final Executor executor;
+  private final Semaphore slots;
+  private final boolean debug;
+  private final Set<String> started = new HashSet<String>();
+  private final Set<String> remaining = new LinkedHashSet<String>();
+  private boolean closed;
+
+  /**
+   * @param maxConcurrentDevices Maximum number of devices executing at once or {@code 0} for no
+   *        limit.
+   */
+  DevicePool(Executor executor, int maxConcurrentDevices, boolean debug) {
+    checkNotNull(executor);
+    checkArgument(maxConcurrentDevices >= 0, "Device limit cannot be negative.");
+    this.executor = executor;
+    this.slots = maxConcurrentDevices > 0 ? new Semaphore(maxConcurrentDevices, true) : null;
+    this.debug = debug;
+  }
+
+  /**
+   * Execute {@code work} for {@code serial} once a device slot is free.
+   *
+   * @return {@code false} if the device was already started or the pool has finished.
+   */
+  synchronized boolean start(final String serial, final Runnable work) {
+    checkNotNull(serial);
+    checkNotNull(work);
+    if (closed || !started.add(serial)) {
+      return false;
+    }
+    remaining.add(serial);
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        long waitStart = System.nanoTime();
+        if (slots != null) {
+          slots.acquireUninterruptibly();
+        }
+        logDebug(debug, "[%s] Starting execution. (waited %dms for a device slot)", serial,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart));
+        try {
+          work.run();
+        } finally {
+          if (slots != null) {
+            slots.release();
+          }
+          finished(serial);
+        }
+      }
+    });
+    return true;
+  }
+
+  /** {@code true} once all work has finished and no more devices can join. */
+  synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /** Block until the work of every started device has finished. */
+  synchronized void await() {
+    while (!remaining.isEmpty()) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    closed = true;
+  }
+
+  private synchronized void finished(String serial) {
+    remaining.remove(serial);
+    logDebug(debug, "[%s] Execution done. (%s remaining %s)", serial, remaining.size(),
+        remaining);
+    notifyAll();
+  }
+}
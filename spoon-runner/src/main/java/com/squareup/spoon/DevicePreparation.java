@@ -0,0 +1,19 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+
+/**
+ * A change made to a device before its tests execute. Every preparation is undone once execution
+ * has finished, whether or not it succeeded.
+ * <p>
+ * Preparations registered with {@link SpoonRunner.Builder#addDevicePreparation} need a public
+ * no-argument constructor. Each device gets its own instance, created in the process which drives
+ * the device.
+ */
+public interface DevicePreparation {
+  /** Apply the change to {@code device}, remembering whatever is needed to undo it. */
+  void prepare(IDevice device, DeviceDetails details) throws Exception;
+
+  /** Undo {@link #prepare}. Only called if {@link #prepare} was. */
+  void restore(IDevice device) throws Exception;
+}
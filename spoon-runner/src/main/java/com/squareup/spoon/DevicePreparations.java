@@ -0,0 +1,176 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.squareup.spoon.SpoonUtils.executeShellCommand;
+
+/** Preparations which remove sources of slowness and flakiness from UI tests. */
+final class DevicePreparations {
+  /** First API level with the {@code settings} command. */
+  private static final int SETTINGS_API_LEVEL = 17;
+
+  /** Fresh instances of the standard preparations, for a single device. */
+  static List<DevicePreparation> standard() {
+    return new ArrayList<DevicePreparation>(Arrays.asList(
+        new DisableAnimations(), new StayAwake(), new LogcatBuffer()));
+  }
+
+  /** Fresh instances of the preparations named by their class names, for a single device. */
+  static List<DevicePreparation> create(List<String> classNames) {
+    List<DevicePreparation> preparations = new ArrayList<DevicePreparation>();
+    for (String className : classNames) {
+      preparations.add(newInstance(load(className)));
+    }
+    return preparations;
+  }
+
+  private static DevicePreparation newInstance(Class<? extends DevicePreparation> type) {
+    try {
+      return type.getDeclaredConstructor().newInstance();
+    } catch (NoSuchMethodException e) {
+      throw new IllegalArgumentException(type.getName() + " has no no-arg constructor.", e);
+    } catch (InvocationTargetException e) {
+      throw new IllegalArgumentException(
+          "Unable to create device preparation " + type.getName(), e.getCause());
+    } catch (InstantiationException e) {
+      throw new IllegalArgumentException(
+          "Unable to create device preparation " + type.getName(), e);
+    } catch (IllegalAccessException e) {
+      throw new IllegalArgumentException(
+          "Unable to create device preparation " + type.getName(), e);
+    }
+  }
+
+  /** The {@link DevicePreparation} class named {@code className}. */
+  static Class<? extends DevicePreparation> load(String className) {
+    try {
+      return Class.forName(className).asSubclass(DevicePreparation.class);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalArgumentException("Unknown device preparation: " + className, e);
+    } catch (ClassCastException e) {
+      throw new IllegalArgumentException(className + " is not a DevicePreparation.", e);
+    }
+  }
+
+  /** Turns off window, transition and animator animations. */
+  static final class DisableAnimations implements DevicePreparation {
+    private static final List<String> SCALES = Arrays.asList("window_animation_scale",
+        "transition_animation_scale", "animator_duration_scale");
+
+    private final Map<String, String> original = new LinkedHashMap<String, String>();
+
+    @Override public void prepare(IDevice device, DeviceDetails details) throws Exception {
+      if (details.getApiLevel() < SETTINGS_API_LEVEL) {
+        return;
+      }
+      for (String scale : SCALES) {
+        original.put(scale, getGlobalSetting(device, scale));
+        putGlobalSetting(device, scale, "0");
+      }
+    }
+
+    @Override public void restore(IDevice device) throws Exception {
+      for (Map.Entry<String, String> entry : original.entrySet()) {
+        // Unset scales behave as the default of 1.
+        String value = entry.getValue() != null ? entry.getValue() : "1";
+        putGlobalSetting(device, entry.getKey(), value);
+      }
+    }
+  }
+
+  /** Keeps the screen on while plugged in and dismisses the keyguard. */
+  static final class StayAwake implements DevicePreparation {
+    private static final String SETTING = "stay_on_while_plugged_in";
+    private static final int KEYCODE_MENU = 82;
+    private static final int KEYCODE_WAKEUP = 224;
+
+    private boolean hasSetting;
+    private String original;
+
+    @Override public void prepare(IDevice device, DeviceDetails details) throws Exception {
+      int apiLevel = details.getApiLevel();
+      hasSetting = apiLevel >= SETTINGS_API_LEVEL;
+      if (hasSetting) {
+        original = getGlobalSetting(device, SETTING);
+      }
+      executeShellCommand(device, "svc power stayon true");
+      if (apiLevel >= 20) {
+        executeShellCommand(device, "input keyevent " + KEYCODE_WAKEUP);
+      }
+      if (apiLevel >= 23) {
+        executeShellCommand(device, "wm dismiss-keyguard");
+      } else {
+        executeShellCommand(device, "input keyevent " + KEYCODE_MENU);
+      }
+    }
+
+    @Override public void restore(IDevice device) throws Exception {
+      if (hasSetting && original != null) {
+        putGlobalSetting(device, SETTING, original);
+      } else {
+        executeShellCommand(device, "svc power stayon false");
+      }
+    }
+  }
+
+  /** Clears the logcat buffer and enlarges it so that long tests do not lose their output. */
+  static final class LogcatBuffer implements DevicePreparation {
+    private static final String SIZE = "16M";
+    /** First API level which can resize the buffer. */
+    private static final int RESIZE_API_LEVEL = 21;
+    private static final Pattern BUFFER_SIZE = Pattern.compile("ring buffer is (\\d+)\\s*(\\w*)");
+
+    private String original;
+
+    @Override public void prepare(IDevice device, DeviceDetails details) throws Exception {
+      if (details.getApiLevel() >= RESIZE_API_LEVEL) {
+        original = parseBufferSize(executeShellCommand(device, "logcat -g"));
+        executeShellCommand(device, "logcat -G " + SIZE);
+      }
+      executeShellCommand(device, "logcat -c");
+    }
+
+    @Override public void restore(IDevice device) throws Exception {
+      if (original != null) {
+        executeShellCommand(device, "logcat -G " + original);
+      }
+    }
+
+    /** Convert the output of {@code logcat -g} to a size {@code logcat -G} accepts. */
+    static String parseBufferSize(String output) {
+      Matcher matcher = BUFFER_SIZE.matcher(output);
+      if (!matcher.find()) {
+        return null;
+      }
+      String unit = matcher.group(2).toUpperCase(Locale.US);
+      if (unit.startsWith("K") || unit.startsWith("M")) {
+        return matcher.group(1) + unit.charAt(0);
+      }
+      return matcher.group(1);
+    }
+  }
+
+  /** The value of a global setting or {@code null} if it is not set. */
+  private static String getGlobalSetting(IDevice device, String name) throws Exception {
+    String value = executeShellCommand(device, "settings get global " + name).trim();
+    return value.isEmpty() || "null".equals(value) ? null : value;
+  }
+
+  private static void putGlobalSetting(IDevice device, String name, String value)
+      throws Exception {
+    executeShellCommand(device, "settings put global " + name + " " + value);
+  }
+
+  private DevicePreparations() {
+    // No instances.
+  }
+}
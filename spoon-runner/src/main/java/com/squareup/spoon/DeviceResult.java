@@ -4,8 +4,10 @@ import com.squareup.spoon.misc.StackTrace;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
@@ -23,12 +25,21 @@ public final class DeviceResult {
   private final long started;
   private final long duration;
   private final List<StackTrace> exceptions;
+  private final List<String> skippedInstalls;
+  private final long installTimeSaved;
+  private final boolean precompiled;
+  private final long compileDuration;
 
   private DeviceResult(boolean installFailed, String installMessage, DeviceDetails deviceDetails,
       Map<DeviceTest, DeviceTestResult> testResults, long started, long duration,
-      List<StackTrace> exceptions) {
+      List<StackTrace> exceptions, List<String> skippedInstalls, long installTimeSaved,
+      boolean precompiled, long compileDuration) {
     this.installFailed = installFailed;
     this.installMessage = installMessage;
+    this.skippedInstalls = unmodifiableList(new ArrayList<String>(skippedInstalls));
+    this.installTimeSaved = installTimeSaved;
+    this.precompiled = precompiled;
+    this.compileDuration = compileDuration;
     this.deviceDetails = deviceDetails;
     this.started = started;
     this.testResults = unmodifiableMap(new TreeMap<DeviceTest, DeviceTestResult>(testResults));
@@ -55,6 +66,34 @@ public final class DeviceResult {
     return installMessage;
   }
 
+  /** File names of the APKs which were not installed because the device already had them. */
+  public List<String> getSkippedInstalls() {
+    return skippedInstalls;
+  }
+
+  /**
+   * Estimated time (in milliseconds) saved by skipping installs, or {@code 0} if unknown.
+   *
+   * @see #getSkippedInstalls()
+   */
+  public long getInstallTimeSaved() {
+    return installTimeSaved;
+  }
+
+  /**
+   * {@code true} if the APKs were compiled ahead of time before the tests executed.
+   *
+   * @see #getCompileDuration()
+   */
+  public boolean isPrecompiled() {
+    return precompiled;
+  }
+
+  /** Length (in milliseconds) of ahead-of-time compilation. Only meaningful if precompiled. */
+  public long getCompileDuration() {
+    return compileDuration;
+  }
+
   /** Configuration and hardware device details. */
   public DeviceDetails getDeviceDetails() {
     return deviceDetails;
@@ -80,6 +119,20 @@ public final class DeviceResult {
     return exceptions;
   }
 
+  /**
+   * A copy of this result which also contains results recorded by an earlier attempt of the same
+   * execution. Results of this attempt take precedence.
+   */
+  DeviceResult withEarlierResults(DeviceDetails earlierDetails,
+      Map<DeviceTest, DeviceTestResult> earlierResults) {
+    Map<DeviceTest, DeviceTestResult> merged =
+        new HashMap<DeviceTest, DeviceTestResult>(earlierResults);
+    merged.putAll(testResults);
+    DeviceDetails details = deviceDetails != null ? deviceDetails : earlierDetails;
+    return new DeviceResult(installFailed, installMessage, details, merged, started, duration,
+        exceptions, skippedInstalls, installTimeSaved, precompiled, compileDuration);
+  }
+
   static class Builder {
     private boolean installFailed = false;
     private String installMessage = null;
@@ -90,6 +143,10 @@ public final class DeviceResult {
     private long start;
     private long duration = -1;
     private final List<StackTrace> exceptions = new ArrayList<StackTrace>();
+    private final List<String> skippedInstalls = new ArrayList<String>();
+    private long installTimeSaved;
+    private boolean precompiled;
+    private long compileDuration;
 
     public Builder addTestResultBuilder(DeviceTest test,
         DeviceTestResult.Builder methodResultBuilder) {
@@ -103,6 +160,11 @@ public final class DeviceResult {
       return testResultBuilders.get(test);
     }
 
+    /** Tests for which a result has been added so far. */
+    Set<DeviceTest> getTests() {
+      return new HashSet<DeviceTest>(testResultBuilders.keySet());
+    }
+
     public Builder setDeviceDetails(DeviceDetails deviceDetails) {
       checkNotNull(deviceDetails);
       this.deviceDetails = deviceDetails;
@@ -117,16 +179,38 @@ public final class DeviceResult {
       return this;
     }
 
+    /** Record that {@code apk} was already installed, saving an estimated {@code savedMillis}. */
+    public Builder addSkippedInstall(String apk, long savedMillis) {
+      checkNotNull(apk);
+      checkArgument(savedMillis >= 0, "Saved time cannot be negative.");
+      skippedInstalls.add(apk);
+      installTimeSaved += savedMillis;
+      return this;
+    }
+
+    /** Record that the APKs were compiled ahead of time, which took {@code millis}. */
+    public Builder addCompileDuration(long millis) {
+      checkArgument(millis >= 0, "Compile duration cannot be negative.");
+      precompiled = true;
+      compileDuration += millis;
+      return this;
+    }
+
+    /**
+     * Mark the start of an instrumentation run. When tests are executed in several runs only the
+     * first call is recorded so that the duration spans all of them.
+     */
     public Builder startTests() {
       checkArgument(!installFailed, "Cannot start tests when install failed.");
-      checkArgument(start == 0, "Start already called.");
-      start = System.nanoTime();
+      if (start == 0) {
+        start = System.nanoTime();
+      }
       return this;
     }
 
+    /** Mark the end of an instrumentation run. The last call determines the duration. */
     public Builder endTests() {
       checkArgument(start != 0, "Start was not called.");
-      checkArgument(duration == -1, "End was already called.");
       duration = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
       return this;
     }
@@ -151,7 +235,7 @@ public final class DeviceResult {
       }
 
       return new DeviceResult(installFailed, installMessage, deviceDetails, testResults, started,
-          duration, exceptions);
+          duration, exceptions, skippedInstalls, installTimeSaved, precompiled, compileDuration);
     }
   }
 }
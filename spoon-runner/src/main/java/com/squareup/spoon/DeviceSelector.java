@@ -0,0 +1,54 @@
+package com.squareup.spoon;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/** Chooses few devices which together still cover every configuration of a larger set. */
+final class DeviceSelector {
+  /**
+   * A small subset of {@code devices} which has every value of each of {@code dimensions} which
+   * any of the devices has. Devices are picked greedily by how many uncovered values they add,
+   * preferring the earlier device on ties.
+   */
+  static Set<String> selectCovering(Map<String, DeviceDetails> devices,
+      Set<CoverageDimension> dimensions) {
+    Map<String, Set<String>> provided = new LinkedHashMap<String, Set<String>>();
+    Set<String> uncovered = new HashSet<String>();
+    for (Map.Entry<String, DeviceDetails> entry : devices.entrySet()) {
+      Set<String> values = new HashSet<String>();
+      for (CoverageDimension dimension : dimensions) {
+        values.add(dimension.name() + "=" + dimension.valueFor(entry.getValue()));
+      }
+      provided.put(entry.getKey(), values);
+      uncovered.addAll(values);
+    }
+
+    Set<String> selected = new LinkedHashSet<String>();
+    while (!uncovered.isEmpty()) {
+      String best = null;
+      int bestCount = 0;
+      for (Map.Entry<String, Set<String>> entry : provided.entrySet()) {
+        int count = 0;
+        for (String value : entry.getValue()) {
+          if (uncovered.contains(value)) {
+            count++;
+          }
+        }
+        if (count > bestCount) {
+          best = entry.getKey();
+          bestCount = count;
+        }
+      }
+      selected.add(best);
+      uncovered.removeAll(provided.remove(best));
+    }
+    return selected;
+  }
+
+  private DeviceSelector() {
+    // No instances.
+  }
+}
@@ -2,15 +2,22 @@ package com.squareup.spoon;
 
 import com.android.ddmlib.logcat.LogCatMessage;
 import com.squareup.spoon.misc.StackTrace;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
 
 public final class DeviceTestResult {
   /** Separator between screenshot timestamp and tag. */
@@ -24,15 +31,20 @@ public final class DeviceTestResult {
   private final StackTrace exception;
   private final long duration;
   private final List<File> screenshots;
+  private final Map<File, String> screenshotHashes;
+  private final File screenshotPack;
   private final File animatedGif;
   private final List<LogCatMessage> log;
 
   private DeviceTestResult(Status status, StackTrace exception, long duration,
-      List<File> screenshots, File animatedGif, List<LogCatMessage> log) {
+      List<File> screenshots, Map<File, String> screenshotHashes, File screenshotPack,
+      File animatedGif, List<LogCatMessage> log) {
     this.status = status;
     this.exception = exception;
     this.duration = duration;
     this.screenshots = unmodifiableList(new ArrayList<File>(screenshots));
+    this.screenshotHashes = unmodifiableMap(new LinkedHashMap<File, String>(screenshotHashes));
+    this.screenshotPack = screenshotPack;
     this.animatedGif = animatedGif;
     this.log = unmodifiableList(new ArrayList<LogCatMessage>(log));
   }
@@ -52,11 +64,56 @@ public final class DeviceTestResult {
     return duration;
   }
 
-  /** Screenshots taken during test. */
+  /**
+   * Screenshots taken during test, as the places they have in the report:
+   * {@code image/<serial>/<class>/<method>/<name>}. Screenshots with a
+   * {@link #getScreenshotHash hash} do not exist at that path; their content is kept in the
+   * {@link ScreenshotStore} or a {@link ScreenshotPack}. Use {@link #openScreenshot} to read any of
+   * them.
+   */
   public List<File> getScreenshots() {
     return screenshots;
   }
 
+  /** Content hashes of the screenshots kept in the {@link ScreenshotStore}. */
+  public Map<File, String> getScreenshotHashes() {
+    // Results written before screenshots were stored by content have none.
+    if (screenshotHashes == null) {
+      return Collections.emptyMap();
+    }
+    return screenshotHashes;
+  }
+
+  /**
+   * Content hash of {@code screenshot} or {@code null} if it was not kept in the
+   * {@link ScreenshotStore}.
+   */
+  public String getScreenshotHash(File screenshot) {
+    return getScreenshotHashes().get(screenshot);
+  }
+
+  /** The {@link ScreenshotPack} holding the stored screenshots, or {@code null} if unpacked. */
+  public File getScreenshotPack() {
+    return screenshotPack;
+  }
+
+  /**
+   * Read the content of one of the {@link #getScreenshots() screenshots}, wherever it is kept.
+   *
+   * @param output Output directory of the execution.
+   */
+  public InputStream openScreenshot(File screenshot, File output) throws IOException {
+    String hash = getScreenshotHash(screenshot);
+    if (hash == null) {
+      return new FileInputStream(screenshot);
+    }
+    if (screenshotPack != null) {
+      String name = ScreenshotStore.getFileName(hash, screenshot.getName());
+      return new ByteArrayInputStream(ScreenshotPack.open(screenshotPack).read(name));
+    }
+    return new FileInputStream(ScreenshotStore.getFile(output, hash, screenshot.getName()));
+  }
+
   /** Animated GIF of screenshots. */
   public File getAnimatedGif() {
     return animatedGif;
@@ -68,6 +125,8 @@ public final class DeviceTestResult {
 
   public static class Builder {
     private final List<File> screenshots = new ArrayList<File>();
+    private final Map<File, String> screenshotHashes = new LinkedHashMap<File, String>();
+    private File screenshotPack;
     private Status status = Status.PASS;
     private StackTrace exception;
     private long start;
@@ -117,6 +176,21 @@ public final class DeviceTestResult {
       return this;
     }
 
+    /** Add a screenshot whose content is kept in the {@link ScreenshotStore} under {@code hash}. */
+    public Builder addScreenshot(File screenshot, String hash) {
+      checkNotNull(hash);
+      addScreenshot(screenshot);
+      screenshotHashes.put(screenshot, hash);
+      return this;
+    }
+
+    /** Mark the stored screenshots as packed into {@code screenshotPack}. */
+    public Builder setScreenshotPack(File screenshotPack) {
+      checkNotNull(screenshotPack);
+      this.screenshotPack = screenshotPack;
+      return this;
+    }
+
     public Builder setAnimatedGif(File animatedGif) {
       checkNotNull(animatedGif);
       checkArgument(this.animatedGif == null, "Animated GIF already set.");
@@ -125,10 +199,12 @@ public final class DeviceTestResult {
     }
 
     public DeviceTestResult build() {
+      List<LogCatMessage> log = this.log;
       if (log == null) {
         log = Collections.emptyList();
       }
-      return new DeviceTestResult(status, exception, duration, screenshots, animatedGif, log);
+      return new DeviceTestResult(status, exception, duration, screenshots, screenshotHashes,
+          screenshotPack, animatedGif, log);
     }
   }
 }
@@ -1,6 +1,25 @@
 package com.squareup.spoon;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 final class DeviceUtils {
+  private static final Pattern PROPERTY = Pattern.compile("^\\[(.+?)\\]: \\[(.*)\\]$");
+
+  /** Parse the {@code [name]: [value]} lines printed by {@code getprop}. */
+  static Map<String, String> parseProperties(String output) {
+    Map<String, String> properties = new HashMap<String, String>();
+    for (String line : output.split("\n")) {
+      Matcher matcher = PROPERTY.matcher(line.trim());
+      if (matcher.matches()) {
+        properties.put(matcher.group(1), matcher.group(2));
+      }
+    }
+    return properties;
+  }
+
   /** Scrub the model so that it does not contain redundant data. */
   static String scrubModel(String manufacturer, String model) {
     if (manufacturer == null || model == null) {
@@ -0,0 +1,218 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncService;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import static com.android.ddmlib.FileListingService.FileEntry;
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonUtils.obtainDirectoryFileEntry;
+
+/**
+ * Copies directories from a device. Where possible the directory is streamed as a single tar
+ * archive through {@code adb exec-out} and unpacked as it arrives, which avoids the per-file round
+ * trips of the sync protocol. Devices which cannot do so fall back to a sync pull.
+ */
+final class DirectoryPuller {
+  /** First API level with a {@code tar} binary on the device. */
+  static final int ARCHIVE_API_LEVEL = 23;
+  private static final int BLOCK_SIZE = 512;
+  private static final String CHARSET = "UTF-8";
+
+  private final IDevice device;
+  private final String serial;
+  private final File adb;
+  private final AdbThrottle throttle;
+  private final boolean debug;
+  private volatile boolean archive;
+
+  DirectoryPuller(IDevice device, File sdk, int apiLevel, AdbThrottle throttle, boolean debug) {
+    this.device = device;
+    this.serial = device.getSerialNumber();
+    this.adb = FileUtils.getFile(sdk, "platform-tools", "adb");
+    this.archive = apiLevel >= ARCHIVE_API_LEVEL && adb.exists();
+    this.throttle = throttle;
+    this.debug = debug;
+  }
+
+  /**
+   * Copy {@code devicePath} and everything below it into {@code localParent}. Missing directories
+   * copy nothing.
+   */
+  void pull(String devicePath, File localParent) throws Exception {
+    throttle.acquire(AdbThrottle.Operation.PULL, serial);
+    try {
+      if (archive) {
+        try {
+          pullArchive(devicePath, localParent);
+          return;
+        } catch (IOException e) {
+          logDebug(debug, "[%s] Archive pull failed, using sync instead: %s", serial, e);
+          archive = false;
+        }
+      }
+      SyncService sync = device.getSyncService();
+      try {
+        sync.pull(new FileEntry[] {obtainDirectoryFileEntry(devicePath)},
+            localParent.getAbsolutePath(), SyncService.getNullProgressMonitor());
+      } finally {
+        sync.close();
+      }
+    } finally {
+      throttle.release(AdbThrottle.Operation.PULL);
+    }
+  }
+
+  private void pullArchive(String devicePath, File localParent) throws IOException {
+    int nameStart = devicePath.lastIndexOf('/');
+    String parent = devicePath.substring(0, Math.max(nameStart, 1));
+    String name = devicePath.substring(nameStart + 1);
+    // Missing directories produce an empty stream. Any failure of tar itself produces output which
+    // is not an archive, so that the caller falls back to a sync pull.
+    String command = "if [ -d '" + devicePath + "' ]; then tar -cf - -C '" + parent + "' '" + name
+        + "' 2>/dev/null || echo failed; fi";
+    Process process = new ProcessBuilder(adb.getAbsolutePath(), "-s", serial, "exec-out", command)
+        .redirectErrorStream(true)
+        .start();
+    InputStream stream = process.getInputStream();
+    try {
+      int files = extractTar(stream, localParent);
+      logDebug(debug, "[%s] Unpacked %d files of %s.", serial, files, devicePath);
+      if (process.waitFor() != 0) {
+        throw new IOException("adb exited with " + process.exitValue());
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while pulling " + devicePath);
+    } finally {
+      IOUtils.closeQuietly(stream);
+      process.destroy();
+    }
+  }
+
+  /**
+   * Unpack a tar archive into {@code directory} while it is read. Only directories and regular
+   * files are created.
+   *
+   * @return The number of files unpacked.
+   * @throws IOException if the stream is not a tar archive.
+   */
+  static int extractTar(InputStream stream, File directory) throws IOException {
+    DataInputStream in = new DataInputStream(stream);
+    byte[] header = new byte[BLOCK_SIZE];
+    String longName = null;
+    int files = 0;
+    while (true) {
+      int read = IOUtils.read(in, header);
+      if (read == 0) {
+        return files; // Nothing to archive.
+      }
+      if (read < BLOCK_SIZE) {
+        throw new EOFException("Truncated tar header.");
+      }
+      if (isZero(header)) {
+        return files; // End of archive.
+      }
+      if (parseOctal(header, 148, 8) != checksum(header)) {
+        throw new IOException("Not a tar archive.");
+      }
+      String name = longName != null ? longName : parseName(header);
+      longName = null;
+      long size = parseOctal(header, 124, 12);
+      char type = (char) header[156];
+      if (type == 'L') { // GNU extension for names longer than 100 characters.
+        byte[] data = new byte[(int) size];
+        in.readFully(data);
+        skipPadding(in, size);
+        longName = trimNul(new String(data, CHARSET));
+        continue;
+      }
+      File file = resolve(directory, name);
+      if (type == '5') {
+        FileUtils.forceMkdir(file);
+      } else if (type == '0' || type == '\0') {
+        FileUtils.forceMkdir(file.getParentFile());
+        OutputStream out = new FileOutputStream(file);
+        try {
+          if (IOUtils.copyLarge(in, out, 0, size) != size) {
+            throw new EOFException("Truncated tar entry " + name);
+          }
+        } finally {
+          out.close();
+        }
+        files++;
+      } else {
+        IOUtils.skipFully(in, size); // Links, devices and extended headers are of no use here.
+      }
+      skipPadding(in, size);
+    }
+  }
+
+  private static File resolve(File directory, String name) throws IOException {
+    if (name.startsWith("/") || ("/" + name + "/").contains("/../")) {
+      throw new IOException("Refusing to unpack " + name);
+    }
+    return new File(directory, name);
+  }
+
+  private static String parseName(byte[] header) throws IOException {
+    String name = trimNul(new String(header, 0, 100, CHARSET));
+    if (new String(header, 257, 5, CHARSET).equals("ustar")) {
+      String prefix = trimNul(new String(header, 345, 155, CHARSET));
+      if (!prefix.isEmpty()) {
+        name = prefix + "/" + name;
+      }
+    }
+    return name;
+  }
+
+  private static String trimNul(String value) {
+    int end = value.indexOf('\0');
+    return end >= 0 ? value.substring(0, end) : value;
+  }
+
+  private static long parseOctal(byte[] header, int offset, int length) {
+    int i = offset;
+    int end = offset + length;
+    while (i < end && header[i] == ' ') {
+      i++;
+    }
+    long value = 0;
+    for (; i < end && header[i] >= '0' && header[i] <= '7'; i++) {
+      value = value * 8 + (header[i] - '0');
+    }
+    return value;
+  }
+
+  /** Sum of the header bytes with the checksum field itself counted as spaces. */
+  private static long checksum(byte[] header) {
+    long sum = 0;
+    for (int i = 0; i < header.length; i++) {
+      sum += (i >= 148 && i < 156) ? ' ' : header[i] & 0xff;
+    }
+    return sum;
+  }
+
+  private static boolean isZero(byte[] block) {
+    for (byte b : block) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void skipPadding(InputStream in, long size) throws IOException {
+    long remainder = size % BLOCK_SIZE;
+    if (remainder != 0) {
+      IOUtils.skipFully(in, BLOCK_SIZE - remainder);
+    }
+  }
+}
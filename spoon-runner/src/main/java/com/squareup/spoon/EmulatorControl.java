@@ -0,0 +1,24 @@
+package com.squareup.spoon;
+
+import java.io.IOException;
+
+/**
+ * Starts, resets and stops emulators. Separates {@link EmulatorPool} from the emulator binary so
+ * that it can be exercised without one.
+ */
+public interface EmulatorControl {
+  /** Start {@code avdName} on console {@code port} from its snapshot {@code snapshot}. */
+  void launch(String avdName, int port, String snapshot) throws IOException;
+
+  /** Name of the AVD running as {@code serial} or {@code null} if no emulator is. */
+  String getRunningAvd(String serial) throws IOException;
+
+  /** {@code true} once the emulator running as {@code serial} has finished booting. */
+  boolean isBooted(String serial) throws IOException;
+
+  /** Restore the emulator running as {@code serial} to its snapshot {@code snapshot}. */
+  void loadSnapshot(String serial, String snapshot) throws IOException;
+
+  /** Stop the emulator running as {@code serial}. */
+  void kill(String serial) throws IOException;
+}
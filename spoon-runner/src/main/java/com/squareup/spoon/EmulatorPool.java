@@ -0,0 +1,214 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * A fixed set of emulators which boot from a snapshot and are restored to it after every
+ * execution instead of being rebooted. Emulators are left running between processes so that the
+ * next pool for the same AVDs picks them up without booting at all.
+ * <p>
+ * Emulators are only reused, launched, restored or stopped under a {@linkplain DeviceLeases lease},
+ * so that pools of concurrent executions neither share the same console port nor disturb each
+ * other's emulators while they are in use. The pool holds the leases from {@link #start()} until
+ * {@link #release()} or {@link #close()}, so executions on its emulators do not lease them again.
+ */
+public final class EmulatorPool {
+  /** Snapshot which the emulator saves for quick boot. */
+  public static final String QUICKBOOT_SNAPSHOT = "default_boot";
+  private static final int FIRST_CONSOLE_PORT = 5554;
+  /** Last console port of an emulator which adb connects to by itself. */
+  private static final int LAST_CONSOLE_PORT = 5584;
+  private static final long DEFAULT_BOOT_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+  private static final long POLL_INTERVAL_MS = 1000;
+
+  private final EmulatorControl control;
+  private final List<String> avdNames;
+  private final String snapshot;
+  private final long bootTimeoutMillis;
+  private final boolean debug;
+  private final DeviceLeases leases;
+  /** AVD names by the serial of the emulator running them. */
+  private final Map<String, String> running = new LinkedHashMap<String, String>();
+
+  public EmulatorPool(EmulatorControl control, List<String> avdNames, String snapshot,
+      long bootTimeoutMillis, boolean debug) {
+    this(control, avdNames, snapshot, bootTimeoutMillis, debug,
+        new DeviceLeases(DeviceLeases.DEFAULT_DIRECTORY));
+  }
+
+  EmulatorPool(EmulatorControl control, List<String> avdNames, String snapshot,
+      long bootTimeoutMillis, boolean debug, DeviceLeases leases) {
+    checkNotNull(control);
+    checkNotNull(snapshot);
+    checkNotNull(leases);
+    checkArgument(!avdNames.isEmpty(), "At least one AVD is required.");
+    checkArgument(bootTimeoutMillis > 0, "Boot timeout must be positive.");
+    this.control = control;
+    this.avdNames = new ArrayList<String>(avdNames);
+    this.snapshot = snapshot;
+    this.bootTimeoutMillis = bootTimeoutMillis;
+    this.debug = debug;
+    this.leases = leases;
+  }
+
+  /** A pool driving the emulator of the Android SDK at {@code sdk}. */
+  public static EmulatorPool fromSdk(File sdk, List<String> avdNames, String snapshot,
+      boolean debug) {
+    return new EmulatorPool(new SdkEmulatorControl(sdk, debug), avdNames, snapshot,
+        DEFAULT_BOOT_TIMEOUT_MS, debug);
+  }
+
+  /**
+   * Make every AVD available, reusing emulators which already run it and nobody else leases, and
+   * launching the others from the snapshot on console ports which are free. Blocks until all of
+   * them have booted. The pool keeps leasing them until {@link #release()} or {@link #close()}.
+   *
+   * @return The serials of the emulators.
+   */
+  public synchronized Set<String> start() throws IOException {
+    checkArgument(running.isEmpty(), "Pool already started.");
+    Map<Integer, String> runningAvds = new HashMap<Integer, String>();
+    boolean started = false;
+    try {
+      for (String avdName : avdNames) {
+        int port = findPort(avdName, runningAvds);
+        String serial = serial(port);
+        if (avdName.equals(runningAvds.get(port))) {
+          logDebug(debug, "[%s] Reusing running %s.", serial, avdName);
+        } else {
+          logDebug(debug, "[%s] Launching %s from snapshot %s.", serial, avdName, snapshot);
+          control.launch(avdName, port, snapshot);
+        }
+        running.put(serial, avdName);
+      }
+      awaitBoot(running.keySet());
+      started = true;
+    } finally {
+      if (!started) {
+        leases.releaseAll();
+      }
+    }
+    logInfo("%d emulator(s) ready.", running.size());
+    return getSerials();
+  }
+
+  /**
+   * Lease the console port of an emulator which already runs {@code avdName} or, if there is none,
+   * a free one. Ports already taken by this pool are leased and skipped.
+   */
+  private int findPort(String avdName, Map<Integer, String> runningAvds) throws IOException {
+    List<Integer> free = new ArrayList<Integer>();
+    for (int port = FIRST_CONSOLE_PORT; port <= LAST_CONSOLE_PORT; port += 2) {
+      if (running.containsKey(serial(port))) {
+        continue;
+      }
+      if (!runningAvds.containsKey(port)) {
+        runningAvds.put(port, control.getRunningAvd(serial(port)));
+      }
+      String runningAvd = runningAvds.get(port);
+      if (avdName.equals(runningAvd) && leases.tryAcquire(serial(port))) {
+        return port;
+      }
+      if (runningAvd == null) {
+        free.add(port);
+      }
+    }
+    // Another pool which is still launching an emulator on a free port holds its lease.
+    for (int port : free) {
+      if (leases.tryAcquire(serial(port))) {
+        return port;
+      }
+    }
+    throw new IllegalStateException("No free emulator console port for " + avdName + ".");
+  }
+
+  /**
+   * Restore every emulator to the snapshot, discarding the state an execution left behind.
+   * Emulators which another execution has leased since {@link #release()} are left alone.
+   */
+  public synchronized void reset() throws IOException {
+    Set<String> leased = leaseRunning();
+    for (String serial : leased) {
+      logDebug(debug, "[%s] Restoring snapshot %s.", serial, snapshot);
+      control.loadSnapshot(serial, snapshot);
+    }
+    awaitBoot(leased);
+  }
+
+  /** Give up the leases on the emulators, leaving them running for the next execution. */
+  public synchronized void release() {
+    leases.releaseAll();
+  }
+
+  /** Stop every emulator which no other execution has leased. */
+  public synchronized void close() throws IOException {
+    try {
+      for (String serial : leaseRunning()) {
+        control.kill(serial);
+      }
+    } finally {
+      leases.releaseAll();
+    }
+    running.clear();
+  }
+
+  /** Serials of the started emulators. */
+  public synchronized Set<String> getSerials() {
+    return Collections.unmodifiableSet(new LinkedHashSet<String>(running.keySet()));
+  }
+
+  /** Lease the emulators of this pool which nobody else leases. */
+  private Set<String> leaseRunning() {
+    Set<String> leased = new LinkedHashSet<String>();
+    for (String serial : running.keySet()) {
+      if (leases.tryAcquire(serial)) {
+        leased.add(serial);
+      } else {
+        logInfo("[%s] Leased by another execution. Leaving it alone.", serial);
+      }
+    }
+    return leased;
+  }
+
+  private static String serial(int port) {
+    return "emulator-" + port;
+  }
+
+  private void awaitBoot(Set<String> serials) throws IOException {
+    long deadline = System.currentTimeMillis() + bootTimeoutMillis;
+    Set<String> booting = new LinkedHashSet<String>(serials);
+    while (true) {
+      for (String serial : new ArrayList<String>(booting)) {
+        if (control.isBooted(serial)) {
+          booting.remove(serial);
+        }
+      }
+      if (booting.isEmpty()) {
+        return;
+      }
+      if (System.currentTimeMillis() > deadline) {
+        throw new IOException("Emulators did not boot in time: " + booting);
+      }
+      try {
+        Thread.sleep(POLL_INTERVAL_MS);
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while waiting for emulators to boot.");
+      }
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.commons.io.FileUtils;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.squareup.spoon.SpoonUtils.executeShellCommand;
+
+/**
+ * Detects APKs which are already installed on a device in the exact same build so that pushing
+ * and installing them again can be skipped. The installed file is located with {@code pm path}
+ * and compared by its MD5 digest. Devices which cannot answer either question always install.
+ */
+final class InstalledApks {
+  private static final String PACKAGE_PREFIX = "package:";
+
+  /** Digests of local APKs, keyed by path, size and modification time. */
+  private static final ConcurrentMap<String, String> DIGESTS =
+      new ConcurrentHashMap<String, String>();
+
+  /** Install throughput of each device, kept across executions like the device details. */
+  private static final File THROUGHPUT_DIR =
+      new File(System.getProperty("java.io.tmpdir"), "spoon-install-throughput");
+  /** Install throughput observed or loaded by this process, by serial. */
+  private static final Map<String, Throughput> THROUGHPUTS = new HashMap<String, Throughput>();
+
+  /** MD5 digest of {@code apk}, computed once per build of the file. */
+  static String digest(File apk) throws IOException {
+    String key = apk.getAbsolutePath() + ':' + apk.length() + ':' + apk.lastModified();
+    String digest = DIGESTS.get(key);
+    if (digest == null) {
+      digest = Files.hash(apk, Hashing.md5()).toString();
+      DIGESTS.put(key, digest);
+    }
+    return digest;
+  }
+
+  /** {@code true} if {@code packageName} is installed on {@code device} from an identical APK. */
+  static boolean isInstalled(IDevice device, String packageName, String digest) {
+    try {
+      String path = parseSingleApkPath(executeShellCommand(device, "pm path " + packageName));
+      return path != null
+          && matchesDigest(executeShellCommand(device, "md5sum " + path), digest);
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  /**
+   * The path of the installed APK in the output of {@code pm path}, or {@code null} if the package
+   * is not installed or is installed from split APKs, which cannot be compared with a single file.
+   */
+  static String parseSingleApkPath(String output) {
+    List<String> paths = new ArrayList<String>();
+    for (String line : output.split("\n")) {
+      line = line.trim();
+      if (line.startsWith(PACKAGE_PREFIX)) {
+        paths.add(line.substring(PACKAGE_PREFIX.length()));
+      }
+    }
+    return paths.size() == 1 ? paths.get(0) : null;
+  }
+
+  /** {@code true} if the output of {@code md5sum} starts with {@code digest}. */
+  static boolean matchesDigest(String output, String digest) {
+    String[] fields = output.trim().split("\\s+");
+    return fields[0].length() > 0 && digest.equalsIgnoreCase(fields[0]);
+  }
+
+  /** Record that installing APKs totalling {@code bytes} on {@code serial} took {@code millis}. */
+  static void recordInstall(String serial, long bytes, long millis) {
+    Throughput throughput;
+    synchronized (THROUGHPUTS) {
+      throughput = getThroughput(serial).plus(bytes, millis);
+      THROUGHPUTS.put(serial, throughput);
+    }
+    storeThroughput(THROUGHPUT_DIR, serial, throughput);
+  }
+
+  /**
+   * Estimated time in milliseconds which installing {@code apk} on {@code serial} would take,
+   * based on the installs observed on it in this or earlier executions, or {@code 0} if there
+   * were none.
+   */
+  static long estimateInstallMillis(String serial, File apk) {
+    synchronized (THROUGHPUTS) {
+      return getThroughput(serial).estimateMillis(apk.length());
+    }
+  }
+
+  private static Throughput getThroughput(String serial) {
+    Throughput throughput = THROUGHPUTS.get(serial);
+    if (throughput == null) {
+      throughput = loadThroughput(THROUGHPUT_DIR, serial);
+      THROUGHPUTS.put(serial, throughput);
+    }
+    return throughput;
+  }
+
+  /** Throughput stored for {@code serial}, which is empty if there is none. */
+  static Throughput loadThroughput(File directory, String serial) {
+    File file = new File(directory, SpoonUtils.sanitizeSerial(serial) + ".json");
+    if (file.exists()) {
+      try {
+        Throughput throughput =
+            SpoonUtils.GSON.fromJson(Files.toString(file, UTF_8), Throughput.class);
+        if (throughput != null) {
+          return throughput;
+        }
+      } catch (Exception ignored) {
+        // Corrupt or from an incompatible version. It will be overwritten.
+      }
+    }
+    return new Throughput(0, 0);
+  }
+
+  /** Store {@code throughput} for {@code serial}. */
+  static void storeThroughput(File directory, String serial, Throughput throughput) {
+    File file = new File(directory, SpoonUtils.sanitizeSerial(serial) + ".json");
+    try {
+      FileUtils.forceMkdir(directory);
+      // Other processes may read the file at the same time, so replace it in one step.
+      File temp = File.createTempFile(file.getName(), ".tmp", directory);
+      Files.write(SpoonUtils.GSON.toJson(throughput), temp, UTF_8);
+      if (!temp.renameTo(file)) {
+        FileUtils.deleteQuietly(temp);
+      }
+    } catch (IOException ignored) {
+      // Skipped installs will be estimated from the installs of this execution only.
+    }
+  }
+
+  /** Bytes installed on a device and the time that took. */
+  static final class Throughput {
+    private final long bytes;
+    private final long millis;
+
+    Throughput(long bytes, long millis) {
+      this.bytes = bytes;
+      this.millis = millis;
+    }
+
+    Throughput plus(long bytes, long millis) {
+      return new Throughput(this.bytes + bytes, this.millis + millis);
+    }
+
+    /** Milliseconds which installing {@code length} bytes takes, or {@code 0} if unknown. */
+    long estimateMillis(long length) {
+      return bytes == 0 ? 0 : length * millis / bytes;
+    }
+  }
+
+  private InstalledApks() {
+    // No instances.
+  }
+}
@@ -0,0 +1,88 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.squareup.spoon.adapters.TestIdentifierAdapter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logError;
+
+/**
+ * Journals the result of every test. Has to follow the listener which records the results.
+ * <p>
+ * Screenshots are only collected once a batch finishes, so a test which ends is journaled with its
+ * screenshots pending and a resumed execution runs it again. {@link #finishBatch} journals the
+ * final results of the batch once the screenshots are collected.
+ */
+final class JournalListener implements ITestRunListener {
+  private final TestJournal.Writer writer;
+  private final DeviceResult.Builder result;
+  private final TestIdentifierAdapter testIdentifierAdapter;
+  private final String serial;
+  /** Tests whose final result is journaled. */
+  private final Set<DeviceTest> journaled = new HashSet<DeviceTest>();
+
+  JournalListener(TestJournal.Writer writer, DeviceResult.Builder result,
+      TestIdentifierAdapter testIdentifierAdapter, String serial) {
+    this.writer = checkNotNull(writer);
+    this.result = checkNotNull(result);
+    this.testIdentifierAdapter = checkNotNull(testIdentifierAdapter);
+    this.serial = serial;
+  }
+
+  @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+    write(DeviceTest.from(testIdentifierAdapter.adapt(test)), true);
+  }
+
+  /**
+   * Journal the final results of the batch now that its screenshots are collected, as well as any
+   * result which was recorded without its test ending.
+   */
+  void finishBatch() {
+    for (DeviceTest test : result.getTests()) {
+      if (!journaled.contains(test) && write(test, false)) {
+        journaled.add(test);
+      }
+    }
+  }
+
+  private boolean write(DeviceTest test, boolean screenshotsPending) {
+    DeviceTestResult.Builder builder = result.getMethodResultBuilder(test);
+    if (builder == null) {
+      return false;
+    }
+    try {
+      if (screenshotsPending) {
+        writer.screenshotsPending(test, builder.build());
+      } else {
+        writer.test(test, builder.build());
+      }
+      return true;
+    } catch (IOException e) {
+      logError("[%s] Unable to write journal: %s", serial, e.getMessage());
+      return false;
+    }
+  }
+
+  @Override public void testRunStarted(String runName, int testCount) {
+  }
+
+  @Override public void testStarted(TestIdentifier test) {
+  }
+
+  @Override public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+  }
+
+  @Override public void testRunFailed(String errorMessage) {
+  }
+
+  @Override public void testRunStopped(long elapsedTime) {
+  }
+
+  @Override public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+  }
+}
@@ -0,0 +1,14 @@
+package com.squareup.spoon;
+
+/**
+ * How an execution claims its devices when other executions on the same host may be using some
+ * of them. Claimed devices are released when the execution ends, even if its process dies.
+ */
+public enum LeasePolicy {
+  /** Use the devices without claiming them. */
+  NONE,
+  /** Wait until every device is free and claim them all at once. */
+  WAIT,
+  /** Claim the devices which are free, waiting only if none are. */
+  AVAILABLE
+}
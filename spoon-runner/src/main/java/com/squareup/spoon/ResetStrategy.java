@@ -0,0 +1,14 @@
+package com.squareup.spoon;
+
+/**
+ * How application state is reset between the batches of tests a device executes. Stronger resets
+ * isolate batches from each other at the cost of time.
+ */
+public enum ResetStrategy {
+  /** Keep all state. */
+  NONE,
+  /** Clear the application's data with {@code pm clear}, keeping the installed APKs. */
+  CLEAR,
+  /** Uninstall and install both APKs again. */
+  REINSTALL
+}
@@ -0,0 +1,172 @@
+package com.squareup.spoon;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The screenshots of one device packed into a single file, for outputs in which many small files
+ * are slow to write, archive and upload. Screenshots are appended one after the other and followed
+ * by an index of their offsets, so that any one of them can be read on its own.
+ */
+public final class ScreenshotPack {
+  /** "SpoonPak", ending every pack. */
+  private static final long MAGIC = 0x53706f6f6e50616bL;
+  /** Offset of the index followed by {@link #MAGIC}. */
+  private static final int TRAILER_SIZE = 16;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  /** Packs opened before whose file has not changed since. */
+  private static final Cache<File, ScreenshotPack> OPENED =
+      CacheBuilder.newBuilder().maximumSize(32).build();
+
+  private final File file;
+  private final long fileLength;
+  private final long lastModified;
+  private final Map<String, Entry> entries;
+
+  private ScreenshotPack(File file, long fileLength, long lastModified,
+      Map<String, Entry> entries) {
+    this.file = file;
+    this.fileLength = fileLength;
+    this.lastModified = lastModified;
+    this.entries = Collections.unmodifiableMap(entries);
+  }
+
+  /** Read the index of {@code file}. A pack which does not exist yet is empty. */
+  public static ScreenshotPack open(File file) throws IOException {
+    long fileLength = file.length();
+    long lastModified = file.lastModified();
+    ScreenshotPack pack = OPENED.getIfPresent(file);
+    if (pack != null && pack.fileLength == fileLength && pack.lastModified == lastModified) {
+      return pack;
+    }
+    Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    if (file.exists()) {
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+        in.seek(readIndexOffset(in));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          String name = in.readUTF();
+          entries.put(name, new Entry(in.readLong(), in.readLong()));
+        }
+      } finally {
+        in.close();
+      }
+    }
+    pack = new ScreenshotPack(file, fileLength, lastModified, entries);
+    OPENED.put(file, pack);
+    return pack;
+  }
+
+  /**
+   * Append {@code files} which are not packed yet to the pack in {@code file}, each under its name.
+   *
+   * @return The pack including the new entries.
+   */
+  static ScreenshotPack append(File file, Collection<File> files) throws IOException {
+    Map<String, Entry> entries = new LinkedHashMap<String, Entry>(open(file).entries);
+    FileUtils.forceMkdir(file.getParentFile());
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      // New entries overwrite the old index, which is written again after them.
+      long position = entries.isEmpty() ? 0 : readIndexOffset(out);
+      out.seek(position);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      for (File screenshot : files) {
+        if (entries.containsKey(screenshot.getName())) {
+          continue;
+        }
+        RandomAccessFile in = new RandomAccessFile(screenshot, "r");
+        try {
+          int read;
+          while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+          }
+        } finally {
+          in.close();
+        }
+        long end = out.getFilePointer();
+        entries.put(screenshot.getName(), new Entry(position, end - position));
+        position = end;
+      }
+      out.writeInt(entries.size());
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeLong(entry.getValue().getOffset());
+        out.writeLong(entry.getValue().getLength());
+      }
+      out.writeLong(position);
+      out.writeLong(MAGIC);
+      out.setLength(out.getFilePointer());
+    } finally {
+      out.close();
+    }
+    return open(file);
+  }
+
+  private static long readIndexOffset(RandomAccessFile in) throws IOException {
+    if (in.length() < TRAILER_SIZE) {
+      throw new IOException("Not a screenshot pack.");
+    }
+    in.seek(in.length() - TRAILER_SIZE);
+    long indexOffset = in.readLong();
+    if (in.readLong() != MAGIC || indexOffset < 0 || indexOffset > in.length() - TRAILER_SIZE) {
+      throw new IOException("Not a screenshot pack.");
+    }
+    return indexOffset;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /** Where the screenshot named {@code name} is in the pack, or {@code null} if it is not. */
+  public Entry getEntry(String name) {
+    return entries.get(name);
+  }
+
+  /** The content of the screenshot named {@code name}. */
+  public byte[] read(String name) throws IOException {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      throw new FileNotFoundException(name + " is not in " + file);
+    }
+    byte[] content = new byte[(int) entry.getLength()];
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      in.seek(entry.getOffset());
+      in.readFully(content);
+    } finally {
+      in.close();
+    }
+    return content;
+  }
+
+  /** The range of a screenshot in its pack. */
+  public static final class Entry {
+    private final long offset;
+    private final long length;
+
+    Entry(long offset, long length) {
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public long getLength() {
+      return length;
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.squareup.spoon.adapters.TestIdentifierAdapter;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonLogger.logError;
+
+/**
+ * Pulls the screenshots of each test as soon as it has ended, in the background while the next
+ * test executes, so that little is left to transfer once the instrumentation finishes.
+ */
+final class ScreenshotPuller implements ITestRunListener {
+  private final DirectoryPuller puller;
+  private final String serial;
+  private final String devicePath;
+  private final File localDir;
+  private final TestIdentifierAdapter testIdentifierAdapter;
+  private final boolean debug;
+  private final ExecutorService executor;
+  private final List<Future<?>> pulls = new ArrayList<Future<?>>();
+
+  /**
+   * @param devicePath Screenshot directory of the application on the device.
+   * @param localDir Directory to which the test directories below {@code devicePath} are pulled.
+   */
+  ScreenshotPuller(DirectoryPuller puller, String serial, String devicePath, File localDir,
+      TestIdentifierAdapter testIdentifierAdapter, boolean debug) {
+    this.puller = puller;
+    this.serial = serial;
+    this.devicePath = devicePath;
+    this.localDir = localDir;
+    this.testIdentifierAdapter = testIdentifierAdapter;
+    this.debug = debug;
+    this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Spoon screenshots " + ScreenshotPuller.this.serial);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+    final TestIdentifier adapted = testIdentifierAdapter.adapt(test);
+    pulls.add(executor.submit(new Runnable() {
+      @Override public void run() {
+        try {
+          pull(adapted.getClassName(), adapted.getTestName());
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }));
+  }
+
+  @Override public void testRunStarted(String runName, int testCount) {
+  }
+
+  @Override public void testStarted(TestIdentifier test) {
+  }
+
+  @Override public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+  }
+
+  @Override public void testRunFailed(String errorMessage) {
+  }
+
+  @Override public void testRunStopped(long elapsedTime) {
+  }
+
+  @Override public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+  }
+
+  /**
+   * Wait for the pulls of all ended tests to finish.
+   *
+   * @return {@code false} if any of them failed.
+   */
+  boolean finish() {
+    long start = System.nanoTime();
+    executor.shutdown();
+    boolean complete = true;
+    for (Future<?> pull : pulls) {
+      try {
+        pull.get();
+      } catch (ExecutionException e) {
+        logError("[%s] Unable to pull screenshots: %s", serial, e.getCause());
+        complete = false;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        executor.shutdownNow();
+        return false;
+      }
+    }
+    logDebug(debug, "[%s] Waited %dms for %d screenshot pulls.", serial,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), pulls.size());
+    return complete;
+  }
+
+  private void pull(String className, String methodName) throws Exception {
+    File classDir = new File(localDir, className);
+    if (!classDir.isDirectory() && !classDir.mkdirs()) {
+      throw new IllegalStateException("Unable to create " + classDir);
+    }
+    puller.pull(devicePath + "/" + className + "/" + methodName, classDir);
+    // Tests without screenshots leave empty directories behind.
+    new File(classDir, methodName).delete();
+    classDir.delete();
+  }
+}
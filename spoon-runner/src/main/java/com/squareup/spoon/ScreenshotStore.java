@@ -0,0 +1,119 @@
+package com.squareup.spoon;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Screenshots stored once by their content below {@code image/objects}, however many tests, devices
+ * or executions took them. Test results refer to them by hash.
+ */
+public final class ScreenshotStore {
+  static final String DIRECTORY = "objects";
+
+  private final File directory;
+
+  ScreenshotStore(File output) {
+    this.directory = getDirectory(output);
+  }
+
+  /**
+   * Move {@code screenshot} into the store unless an identical one is already there.
+   *
+   * @return The hash by which the screenshot is found again.
+   */
+  String add(File screenshot) throws IOException {
+    String hash = Files.hash(screenshot, Hashing.sha1()).toString();
+    File stored = get(hash, screenshot.getName());
+    // Other devices, possibly in other processes, may store the same content at the same time.
+    // Whichever rename wins, the content is the same.
+    if (!stored.exists()) {
+      FileUtils.forceMkdir(directory);
+      if (!screenshot.renameTo(stored) && !stored.exists()) {
+        FileUtils.copyFile(screenshot, stored);
+      }
+    }
+    FileUtils.deleteQuietly(screenshot);
+    return hash;
+  }
+
+  /** The stored file of a screenshot named {@code name} whose content has {@code hash}. */
+  File get(String hash, String name) {
+    return locate(directory, hash, name);
+  }
+
+  /**
+   * The file with the content of a screenshot in the store of {@code output}.
+   *
+   * @param name File name the screenshot had on the device, for its extension.
+   */
+  public static File getFile(File output, String hash, String name) {
+    return locate(getDirectory(output), hash, name);
+  }
+
+  /** Name of the stored file of a screenshot named {@code name} whose content has {@code hash}. */
+  public static String getFileName(String hash, String name) {
+    String extension = FilenameUtils.getExtension(name);
+    return extension.isEmpty() ? hash : hash + "." + extension;
+  }
+
+  /** Remove everything from {@code output} except for the store. */
+  static void cleanOutput(File output) throws IOException {
+    File[] children = output.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (!child.getName().equals(SpoonDeviceRunner.IMAGE_DIR)) {
+        FileUtils.forceDelete(child);
+        continue;
+      }
+      File[] images = child.listFiles();
+      if (images != null) {
+        for (File image : images) {
+          if (!image.getName().equals(DIRECTORY)) {
+            FileUtils.forceDelete(image);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Remove stored screenshots which none of the results of {@code summary} refer to. Packed
+   * screenshots are no longer needed in the store.
+   */
+  static void prune(File output, SpoonSummary summary) {
+    File[] stored = getDirectory(output).listFiles();
+    if (stored == null) {
+      return;
+    }
+    Set<String> referenced = new HashSet<String>();
+    for (DeviceResult deviceResult : summary.getResults().values()) {
+      for (DeviceTestResult testResult : deviceResult.getTestResults().values()) {
+        if (testResult.getScreenshotPack() != null) {
+          continue;
+        }
+        referenced.addAll(testResult.getScreenshotHashes().values());
+      }
+    }
+    for (File file : stored) {
+      if (!referenced.contains(FilenameUtils.getBaseName(file.getName()))) {
+        FileUtils.deleteQuietly(file);
+      }
+    }
+  }
+
+  private static File getDirectory(File output) {
+    return FileUtils.getFile(output, SpoonDeviceRunner.IMAGE_DIR, DIRECTORY);
+  }
+
+  private static File locate(File directory, String hash, String name) {
+    return new File(directory, getFileName(hash, name));
+  }
+}
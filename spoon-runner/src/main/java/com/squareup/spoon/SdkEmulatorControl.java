@@ -0,0 +1,104 @@
+package com.squareup.spoon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import static com.squareup.spoon.SpoonLogger.logDebug;
+
+/** Controls emulators through the {@code emulator} and {@code adb} binaries of an Android SDK. */
+final class SdkEmulatorControl implements EmulatorControl {
+  private static final String CHARSET = "UTF-8";
+
+  private final File emulator;
+  private final File adb;
+  private final boolean debug;
+
+  SdkEmulatorControl(File sdk, boolean debug) {
+    this.emulator = FileUtils.getFile(sdk, "emulator", "emulator");
+    this.adb = FileUtils.getFile(sdk, "platform-tools", "adb");
+    this.debug = debug;
+  }
+
+  @Override public void launch(final String avdName, int port, String snapshot)
+      throws IOException {
+    final Process process = new ProcessBuilder(emulator.getAbsolutePath(), "-avd", avdName,
+        "-port", String.valueOf(port), "-snapshot", snapshot, "-no-snapshot-save", "-no-window",
+        "-no-audio").redirectErrorStream(true).start();
+    // The emulator blocks once its output is not read.
+    Thread drain = new Thread(new Runnable() {
+      @Override public void run() {
+        BufferedReader output = null;
+        try {
+          output = new BufferedReader(new InputStreamReader(process.getInputStream(), CHARSET));
+          String line;
+          while ((line = output.readLine()) != null) {
+            logDebug(debug, "[%s] %s", avdName, line);
+          }
+        } catch (IOException ignored) {
+        } finally {
+          IOUtils.closeQuietly(output);
+        }
+      }
+    }, "Spoon emulator " + avdName);
+    drain.setDaemon(true);
+    drain.start();
+  }
+
+  @Override public String getRunningAvd(String serial) throws IOException {
+    List<String> lines = adb(serial, "emu", "avd", "name");
+    // Answered with the name followed by "OK", or with an error if no emulator is running.
+    if (lines.size() < 2 || !"OK".equals(lines.get(lines.size() - 1))) {
+      return null;
+    }
+    return lines.get(0);
+  }
+
+  @Override public boolean isBooted(String serial) throws IOException {
+    List<String> lines = adb(serial, "shell", "getprop", "sys.boot_completed");
+    return !lines.isEmpty() && "1".equals(lines.get(0));
+  }
+
+  @Override public void loadSnapshot(String serial, String snapshot) throws IOException {
+    List<String> lines = adb(serial, "emu", "avd", "snapshot", "load", snapshot);
+    if (!lines.contains("OK")) {
+      throw new IOException("Unable to load snapshot " + snapshot + " on " + serial + ": " + lines);
+    }
+  }
+
+  @Override public void kill(String serial) throws IOException {
+    adb(serial, "emu", "kill");
+  }
+
+  /** Run an adb command against {@code serial} and return its non-empty output lines. */
+  private List<String> adb(String serial, String... args) throws IOException {
+    List<String> command = new ArrayList<String>();
+    command.add(adb.getAbsolutePath());
+    command.add("-s");
+    command.add(serial);
+    command.addAll(Arrays.asList(args));
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    List<String> lines = new ArrayList<String>();
+    InputStream output = process.getInputStream();
+    try {
+      for (String line : IOUtils.readLines(output, CHARSET)) {
+        if (!line.trim().isEmpty()) {
+          lines.add(line.trim());
+        }
+      }
+      process.waitFor();
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while running " + command);
+    } finally {
+      IOUtils.closeQuietly(output);
+    }
+    return lines;
+  }
+}
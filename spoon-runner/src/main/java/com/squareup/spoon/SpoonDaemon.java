@@ -0,0 +1,299 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonLogger.logError;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+import static com.squareup.spoon.SpoonUtils.GSON;
+
+/**
+ * Long-lived process which keeps the debug bridge, device details and device threads warm between
+ * executions. Clients submit their {@link SpoonRunner} configuration over a local socket and are
+ * told whether it succeeded once it finishes. Executions are handled one at a time.
+ * <p>
+ * On start the daemon writes a random token to a file in the home directory which only its user
+ * can read. Submissions which do not echo the token back are refused.
+ */
+public final class SpoonDaemon {
+  /** Port on which the daemon listens unless told otherwise. */
+  public static final int DEFAULT_PORT = 7325;
+  private static final String CHARSET = "UTF-8";
+  private static final int TOKEN_BYTES = 32;
+  /** Time a client has to send its request before the daemon moves on to the next one. */
+  private static final int REQUEST_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(30);
+
+  private final File androidSdk;
+  private final int port;
+  private final boolean debug;
+  private final EmulatorPool emulators;
+
+  public SpoonDaemon(File androidSdk, int port, boolean debug) {
+    this(androidSdk, port, debug, null);
+  }
+
+  /** @param emulators Emulators to start with the daemon and restore after every execution. */
+  public SpoonDaemon(File androidSdk, int port, boolean debug, EmulatorPool emulators) {
+    checkNotNull(androidSdk, "SDK is required.");
+    checkArgument(androidSdk.exists(), "SDK path does not exist.");
+    checkArgument(port > 0, "Port must be positive.");
+    this.androidSdk = androidSdk;
+    this.port = port;
+    this.debug = debug;
+    this.emulators = emulators;
+  }
+
+  /** Accept and execute submissions until this process is killed. */
+  public void serve() throws IOException {
+    AndroidDebugBridge adb = SpoonUtils.initAdb(androidSdk);
+    AndroidDebugBridge.addDeviceChangeListener(new AndroidDebugBridge.IDeviceChangeListener() {
+      @Override public void deviceConnected(IDevice device) {
+        logDebug(debug, "[%s] Connected.", device.getSerialNumber());
+      }
+
+      @Override public void deviceDisconnected(IDevice device) {
+        logDebug(debug, "[%s] Disconnected.", device.getSerialNumber());
+        DeviceDetails.evictFromCache(device.getSerialNumber());
+      }
+
+      @Override public void deviceChanged(IDevice device, int changeMask) {
+      }
+    });
+    ExecutorService executor = SpoonUtils.newDeviceExecutor();
+    if (emulators != null) {
+      emulators.start();
+    }
+
+    File tokenFile = getTokenFile(port);
+    String token = writeToken(tokenFile);
+    ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(null));
+    logInfo("Listening for executions on port %d.", port);
+    try {
+      while (true) {
+        Socket socket = server.accept();
+        try {
+          handle(adb, executor, socket, token);
+        } catch (IOException e) {
+          logError("Unable to communicate with client: %s", e.getMessage());
+        } finally {
+          IOUtils.closeQuietly(socket);
+        }
+        if (emulators != null) {
+          try {
+            emulators.reset();
+          } catch (IOException e) {
+            logError("Unable to restore emulators: %s", e.getMessage());
+          }
+        }
+      }
+    } finally {
+      IOUtils.closeQuietly(server);
+      FileUtils.deleteQuietly(tokenFile);
+      executor.shutdownNow();
+      AndroidDebugBridge.terminate();
+      if (emulators != null) {
+        emulators.release();
+      }
+    }
+  }
+
+  private void handle(AndroidDebugBridge adb, ExecutorService executor, Socket socket,
+      String token) throws IOException {
+    String request = readRequest(socket, REQUEST_TIMEOUT_MS);
+    Response response;
+    try {
+      Set<String> leasedDevices =
+          emulators != null ? emulators.getSerials() : Collections.<String>emptySet();
+      SpoonRunner runner = parseRequest(request, token, androidSdk, leasedDevices);
+      logInfo("Starting submitted execution.");
+      response = new Response(runner.run(adb, executor), null);
+    } catch (Exception e) {
+      logError("Submitted execution failed: %s", e);
+      response = new Response(false, String.valueOf(e.getMessage()));
+    }
+    logInfo("Finished submitted execution.");
+
+    Writer writer = new OutputStreamWriter(socket.getOutputStream(), CHARSET);
+    GSON.toJson(response, writer);
+    writer.flush();
+  }
+
+  /**
+   * Read the request a client sends on {@code socket}. Clients which send nothing for
+   * {@code timeoutMillis} fail with a {@link java.net.SocketTimeoutException} rather than holding
+   * up the daemon.
+   */
+  static String readRequest(Socket socket, int timeoutMillis) throws IOException {
+    socket.setSoTimeout(timeoutMillis);
+    return IOUtils.toString(socket.getInputStream(), CHARSET);
+  }
+
+  /**
+   * The runner described by the {@code json} of a {@link DaemonRequest}, driving the SDK at
+   * {@code androidSdk} on the {@code leasedDevices} of the daemon without leasing them again.
+   *
+   * @throws SecurityException If the request does not carry {@code token}.
+   */
+  static SpoonRunner parseRequest(String json, String token, File androidSdk,
+      Set<String> leasedDevices) {
+    DaemonRequest request = GSON.fromJson(json, DaemonRequest.class);
+    if (request == null || request.token == null
+        || !MessageDigest.isEqual(token.getBytes(UTF_8), request.token.getBytes(UTF_8))) {
+      throw new SecurityException("Submission does not carry the token of this daemon.");
+    }
+    return request.toRunner(androidSdk, leasedDevices);
+  }
+
+  /** File holding the token of the daemon listening on {@code port}. */
+  static File getTokenFile(int port) {
+    File directory = new File(System.getProperty("user.home"), ".spoon");
+    return new File(directory, "daemon-" + port + ".token");
+  }
+
+  /** Write a new random token to {@code file}, readable only by the current user. */
+  static String writeToken(File file) throws IOException {
+    byte[] bytes = new byte[TOKEN_BYTES];
+    new SecureRandom().nextBytes(bytes);
+    String token = BaseEncoding.base16().lowerCase().encode(bytes);
+    FileUtils.forceMkdir(file.getParentFile());
+    FileUtils.deleteQuietly(file);
+    // Restrict access before the token is written so that it is never readable by others.
+    if (!file.createNewFile()
+        || !file.setReadable(false, false) || !file.setReadable(true, true)
+        || !file.setWritable(false, false) || !file.setWritable(true, true)) {
+      throw new IOException("Unable to create token file readable only by its owner: " + file);
+    }
+    Files.write(token, file, UTF_8);
+    return token;
+  }
+
+  /**
+   * Execute {@code runner} on the daemon listening on {@code port}.
+   *
+   * @return The overall success of the execution or {@code null} if no daemon is listening or its
+   * token cannot be read.
+   */
+  static Boolean submit(SpoonRunner runner, int port) {
+    String token;
+    try {
+      token = Files.toString(getTokenFile(port), UTF_8).trim();
+    } catch (IOException e) {
+      return null;
+    }
+    Socket socket;
+    try {
+      socket = new Socket(InetAddress.getByName(null), port);
+    } catch (IOException e) {
+      return null;
+    }
+    logInfo("Submitting execution to daemon on port %d.", port);
+    try {
+      Writer writer = new OutputStreamWriter(socket.getOutputStream(), CHARSET);
+      GSON.toJson(runner.toRequest(token), writer);
+      writer.flush();
+      socket.shutdownOutput();
+
+      String json = IOUtils.toString(socket.getInputStream(), CHARSET);
+      Response response = GSON.fromJson(json, Response.class);
+      if (response == null) {
+        throw new RuntimeException("Daemon closed the connection without a result.");
+      }
+      if (response.error != null) {
+        throw new RuntimeException("Daemon execution failed: " + response.error);
+      }
+      return response.success;
+    } catch (IOException e) {
+      throw new RuntimeException("Lost connection to daemon.", e);
+    } finally {
+      IOUtils.closeQuietly(socket);
+    }
+  }
+
+  /** Outcome of a submitted execution. */
+  static final class Response {
+    final boolean success;
+    final String error;
+
+    Response(boolean success, String error) {
+      this.success = success;
+      this.error = error;
+    }
+  }
+
+  static class CommandLineArgs {
+    @Parameter(names = { "--sdk" }, description = "Path to Android SDK",
+        converter = SpoonRunner.FileConverter.class)
+    public File sdk = System.getenv("ANDROID_HOME") != null
+        ? new File(System.getenv("ANDROID_HOME")) : null;
+
+    @Parameter(names = { "--port" }, description = "Local port to listen on")
+    public int port = DEFAULT_PORT;
+
+    @Parameter(names = { "--avd" },
+        description = "Boot this AVD from a snapshot and restore it after executions (repeatable)")
+    public List<String> avds = new ArrayList<String>();
+
+    @Parameter(names = { "--snapshot" },
+        description = "Snapshot which --avd emulators boot from and are restored to")
+    public String snapshot = EmulatorPool.QUICKBOOT_SNAPSHOT;
+
+    @Parameter(names = { "--debug" }, hidden = true)
+    public boolean debug;
+
+    @Parameter(names = { "-h", "--help" }, description = "Command help", help = true, hidden = true)
+    public boolean help;
+  }
+
+  public static void main(String... args) throws IOException {
+    CommandLineArgs parsedArgs = new CommandLineArgs();
+    JCommander jc = new JCommander(parsedArgs);
+
+    try {
+      jc.parse(args);
+    } catch (ParameterException e) {
+      StringBuilder out = new StringBuilder(e.getLocalizedMessage()).append("\n\n");
+      jc.usage(out);
+      System.err.println(out.toString());
+      System.exit(1);
+      return;
+    }
+    if (parsedArgs.help) {
+      jc.usage();
+      return;
+    }
+
+    EmulatorPool emulators = null;
+    if (!parsedArgs.avds.isEmpty()) {
+      emulators = EmulatorPool.fromSdk(parsedArgs.sdk, parsedArgs.avds, parsedArgs.snapshot,
+          parsedArgs.debug);
+    }
+    new SpoonDaemon(parsedArgs.sdk, parsedArgs.port, parsedArgs.debug, emulators).serve();
+  }
+}
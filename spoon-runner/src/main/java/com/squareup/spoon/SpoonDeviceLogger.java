@@ -19,13 +19,23 @@ final class SpoonDeviceLogger implements LogCatListener {
   private final List<LogCatMessage> messages;
   private final LogCatReceiverTask logCatReceiverTask;
 
-  public SpoonDeviceLogger(IDevice device) {
+  public SpoonDeviceLogger(final IDevice device, final AdbThrottle throttle) {
     messages = new ArrayList<LogCatMessage>();
     logCatReceiverTask = new LogCatReceiverTask(device);
     logCatReceiverTask.addLogCatListener(this);
 
     // Start a background thread to monitor the device logs. This will exit when we call stop below.
-    new Thread(logCatReceiverTask).start();
+    // Waiting for a logcat slot happens there as well so that it never holds up the tests.
+    new Thread(new Runnable() {
+      @Override public void run() {
+        throttle.acquire(AdbThrottle.Operation.LOGCAT, device.getSerialNumber());
+        try {
+          logCatReceiverTask.run();
+        } finally {
+          throttle.release(AdbThrottle.Operation.LOGCAT);
+        }
+      }
+    }).start();
   }
 
   @Override public void log(List<LogCatMessage> msgList) {
@@ -2,46 +2,53 @@ package com.squareup.spoon;
 
 import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.IDevice;
-import com.android.ddmlib.InstallException;
-import com.android.ddmlib.SyncService;
 import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.TestIdentifier;
 import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.TrueFileFilter;
 import com.squareup.spoon.adapters.TestIdentifierAdapter;
 
-import static com.android.ddmlib.FileListingService.FileEntry;
 import static com.squareup.spoon.Spoon.SPOON_SCREENSHOTS;
 import static com.squareup.spoon.SpoonLogger.logDebug;
 import static com.squareup.spoon.SpoonLogger.logError;
 import static com.squareup.spoon.SpoonLogger.logInfo;
 import static com.squareup.spoon.SpoonUtils.GSON;
+import static com.squareup.spoon.SpoonUtils.GSON_COMPACT;
 import static com.squareup.spoon.SpoonUtils.createAnimatedGif;
-import static com.squareup.spoon.SpoonUtils.obtainDirectoryFileEntry;
+import static com.squareup.spoon.SpoonUtils.executeShellCommand;
 import static com.squareup.spoon.SpoonUtils.obtainRealDevice;
 
 /** Represents a single device and the test configuration to be executed. */
 public final class SpoonDeviceRunner {
-  private static final String FILE_EXECUTION = "execution.json";
-  private static final String FILE_RESULT = "result.json";
+  private static final String CHARSET = "UTF-8";
   static final String TEMP_DIR = "work";
   static final String JUNIT_DIR = "junit-reports";
   static final String IMAGE_DIR = "image";
+  /** First API level whose package manager can compile on demand. */
+  private static final int COMPILE_API_LEVEL = 24;
 
   private final File sdk;
   private final File apk;
@@ -49,15 +56,31 @@ public final class SpoonDeviceRunner {
   private final String serial;
   private final boolean debug;
   private final boolean noAnimations;
+  private final boolean packScreenshots;
+  private final boolean prepareDevice;
+  private final List<String> devicePreparations;
+  private final boolean precompile;
+  private final ResetStrategy resetStrategy;
   private final int adbTimeout;
+  private final int idleTimeout;
   private final String className;
   private final String methodName;
   private final IRemoteAndroidTestRunner.TestSize testSize;
+  private final TestBatch batch;
   private final File work;
   private final File junitReport;
+  private final File journal;
   private final File imageDir;
+  private final File screenshotPack;
+  private final ScreenshotStore store;
+  /** Stored files of the screenshots collected so far, by their place in the report. */
+  private final Map<File, File> storedScreenshots = new HashMap<File, File>();
   private final String classpath;
   private final SpoonInstrumentationInfo instrumentationInfo;
+  /** Not shared with child processes, which are never throttled. */
+  private transient AdbThrottle throttle;
+  /** Receives progress when running as a child process, otherwise {@code null}. */
+  private transient DeviceEventStream.Writer events;
 
   /**
    * Create a test runner for a single device.
@@ -68,63 +91,105 @@ public final class SpoonDeviceRunner {
    * @param output Path to output directory.
    * @param serial Device to run the test on.
    * @param debug Whether or not debug logging is enabled.
+   * @param packScreenshots Whether to pack screenshots into a single file per device.
+   * @param prepareDevice Whether to disable animations and keep the device awake while testing.
+   * @param devicePreparations Class names of additional {@link DevicePreparation}s.
+   * @param precompile Whether to compile both APKs ahead of time before testing.
+   * @param resetStrategy How to reset application state between batches.
    * @param adbTimeout time in ms for longest test execution
+   * @param idleTimeout time in ms without progress after which instrumentation is cancelled, or
+   *        {@code 0} to wait for {@code adbTimeout}.
    * @param classpath Custom JVM classpath or {@code null}.
    * @param instrumentationInfo Test apk manifest information.
    * @param className Test class name to run or {@code null} to run all tests.
    * @param methodName Test method name to run or {@code null} to run all tests.  Must also pass
    *        {@code className}.
+   * @param batch Subset of tests to run or {@code null} to run all tests matching the filters.
+   * @param throttle Limits on concurrent adb operations shared with other devices.
    */
   SpoonDeviceRunner(File sdk, File apk, File testApk, File output, String serial, boolean debug,
-      boolean noAnimations, int adbTimeout, String classpath,
-      SpoonInstrumentationInfo instrumentationInfo, String className, String methodName,
-      IRemoteAndroidTestRunner.TestSize testSize) {
+      boolean noAnimations, boolean packScreenshots, boolean prepareDevice,
+      List<String> devicePreparations, boolean precompile,
+      ResetStrategy resetStrategy, int adbTimeout, int idleTimeout, String classpath,
+      SpoonInstrumentationInfo instrumentationInfo,
+      String className, String methodName, IRemoteAndroidTestRunner.TestSize testSize,
+      TestBatch batch, AdbThrottle throttle) {
     this.sdk = sdk;
     this.apk = apk;
     this.testApk = testApk;
     this.serial = serial;
     this.debug = debug;
     this.noAnimations = noAnimations;
+    this.packScreenshots = packScreenshots;
+    this.prepareDevice = prepareDevice;
+    this.devicePreparations = devicePreparations;
+    this.precompile = precompile;
+    this.resetStrategy = resetStrategy;
     this.adbTimeout = adbTimeout;
+    this.idleTimeout = idleTimeout;
     this.className = className;
     this.methodName = methodName;
     this.testSize = testSize;
+    this.batch = batch;
+    this.throttle = throttle;
     this.classpath = classpath;
     this.instrumentationInfo = instrumentationInfo;
 
     serial = SpoonUtils.sanitizeSerial(serial);
     this.work = FileUtils.getFile(output, TEMP_DIR, serial);
     this.junitReport = FileUtils.getFile(output, JUNIT_DIR, serial + ".xml");
+    this.journal = TestJournal.fileFor(output, serial);
     this.imageDir = FileUtils.getFile(output, IMAGE_DIR, serial);
+    this.screenshotPack = FileUtils.getFile(output, IMAGE_DIR, serial + ".pack");
+    this.store = new ScreenshotStore(output);
   }
 
-  /** Serialize to disk and start {@link #main(String...)} in another process. */
+  /**
+   * Start {@link #main(String...)} in another process and assemble its result from the events it
+   * streams back. Results reported before the process dies unexpectedly are retained.
+   */
   public DeviceResult runInNewProcess() throws IOException, InterruptedException {
     logDebug(debug, "[%s]", serial);
 
     // Create the output directory.
     work.mkdirs();
 
-    // Write our configuration to a file in the output directory.
-    FileWriter executionWriter = new FileWriter(new File(work, FILE_EXECUTION));
-    GSON.toJson(this, executionWriter);
-    executionWriter.close();
-
     // Kick off a new process to interface with ADB and perform the real execution.
     String name = SpoonDeviceRunner.class.getName();
-    Process process = new ProcessBuilder("java", "-Djava.awt.headless=true", "-cp", classpath, name,
-        work.getAbsolutePath()).start();
-    printStream(process.getInputStream(), "STDOUT");
+    Process process = new ProcessBuilder("java", "-Djava.awt.headless=true", "-cp", classpath, name)
+        .start();
+
+    // Hand our configuration to the new process.
+    Writer configuration = new OutputStreamWriter(process.getOutputStream(), CHARSET);
+    GSON.toJson(this, configuration);
+    configuration.close();
+
+    String testRunner = instrumentationInfo.getTestRunnerClass();
+    TestIdentifierAdapter testIdentifierAdapter = TestIdentifierAdapter.fromTestRunner(testRunner);
+    DeviceResult.Builder partial = new DeviceResult.Builder();
+    DeviceEventStream.Reader reader = new DeviceEventStream.Reader(partial,
+        new SpoonTestRunListener(partial, debug, testIdentifierAdapter), GSON_COMPACT);
+    BufferedReader stdout =
+        new BufferedReader(new InputStreamReader(process.getInputStream(), CHARSET));
+    String line;
+    while ((line = stdout.readLine()) != null) {
+      if (!reader.accept(line)) {
+        logDebug(debug, "[%s] STDOUT %s", serial, line);
+      }
+    }
     printStream(process.getErrorStream(), "STDERR");
 
     final int exitCode = process.waitFor();
     logDebug(debug, "Process.waitFor() finished for [%s] with exitCode %d", serial, exitCode);
 
-    // Read the result from a file in the output directory.
-    FileReader resultFile = new FileReader(new File(work, FILE_RESULT));
-    DeviceResult result = GSON.fromJson(resultFile, DeviceResult.class);
-    resultFile.close();
-
+    DeviceResult result = reader.getResult();
+    if (result == null) {
+      logError("[%s] Device process exited with code %d before reporting its result.", serial,
+          exitCode);
+      partial.addException("Device process exited with code " + exitCode
+          + " before reporting its result.");
+      result = reader.getPartialResult();
+    }
     return result;
   }
 
@@ -138,11 +203,16 @@ public final class SpoonDeviceRunner {
 
   /** Execute instrumentation on the target device and return a result summary. */
   public DeviceResult run(AndroidDebugBridge adb) {
-    String appPackage = instrumentationInfo.getApplicationPackage();
-    String testPackage = instrumentationInfo.getInstrumentationPackage();
-    String testRunner = instrumentationInfo.getTestRunnerClass();
-    TestIdentifierAdapter testIdentifierAdapter = TestIdentifierAdapter.fromTestRunner(testRunner);
+    return run(adb, null);
+  }
 
+  /**
+   * Execute instrumentation on the target device and return a result summary. If {@code queue} is
+   * not {@code null} batches are pulled from it, after the batch assigned to this device if any,
+   * until it is exhausted. Tests which could not be executed because the device went away are
+   * returned to the queue for other devices.
+   */
+  DeviceResult run(AndroidDebugBridge adb, TestQueue queue) {
     logDebug(debug, "InstrumentationInfo: [%s]", instrumentationInfo);
 
     if (debug) {
@@ -155,55 +225,92 @@ public final class SpoonDeviceRunner {
     logDebug(debug, "Got realDevice for [%s]", serial);
 
     // Get relevant device information.
-    final DeviceDetails deviceDetails = DeviceDetails.createForDevice(device);
+    final DeviceDetails deviceDetails = DeviceDetails.obtainForDevice(device);
     result.setDeviceDetails(deviceDetails);
     logDebug(debug, "[%s] setDeviceDetails %s", serial, deviceDetails);
-
+    if (events != null) {
+      events.deviceDetails(deviceDetails);
+    }
+    TestJournal.Writer journalWriter = openJournal(deviceDetails);
     try {
-      // Now install the main application and the instrumentation application.
-      String installError = device.installPackage(apk.getAbsolutePath(), true);
-      if (installError != null) {
-        logInfo("[%s] app apk install failed.  Error [%s]", serial, installError);
-        return result.markInstallAsFailed("Unable to install application APK.").build();
+      runBatches(device, queue, result, journalWriter);
+    } finally {
+      if (journalWriter != null) {
+        journalWriter.close();
       }
-      installError = device.installPackage(testApk.getAbsolutePath(), true);
-      if (installError != null) {
-        logInfo("[%s] test apk install failed.  Error [%s]", serial, installError);
-        return result.markInstallAsFailed("Unable to install instrumentation APK.").build();
+    }
+    return result.build();
+  }
+
+  /** Install the APKs, execute the tests and attach logs and animations to {@code result}. */
+  private void runBatches(IDevice device, TestQueue queue, DeviceResult.Builder result,
+      TestJournal.Writer journalWriter) {
+    String testRunner = instrumentationInfo.getTestRunnerClass();
+    TestIdentifierAdapter testIdentifierAdapter = TestIdentifierAdapter.fromTestRunner(testRunner);
+
+    // Now install the main application and the instrumentation application.
+    String installError = installApks(device, result);
+    if (installError != null) {
+      if (queue != null && batch != null) {
+        queue.requeue(batch);
       }
-    } catch (InstallException e) {
-      logInfo("InstallException on device [%s]", serial);
-      e.printStackTrace(System.out);
-      return result.markInstallAsFailed(e.getMessage()).build();
+      result.markInstallAsFailed(installError);
+      return;
+    }
+
+    if (precompile) {
+      compileApks(device, result);
     }
 
     // Create the output directory, if it does not already exist.
     work.mkdirs();
 
+    // Strip away animations and power management for the duration of the tests.
+    List<DevicePreparation> preparations = prepareDevice(device);
+    try {
+      runPreparedBatches(device, queue, result, journalWriter, testIdentifierAdapter);
+    } finally {
+      restoreDevice(device, preparations);
+    }
+  }
+
+  private void runPreparedBatches(IDevice device, TestQueue queue, DeviceResult.Builder result,
+      TestJournal.Writer journalWriter, TestIdentifierAdapter testIdentifierAdapter) {
     // Initiate device logging.
-    SpoonDeviceLogger deviceLogger = new SpoonDeviceLogger(device);
+    SpoonDeviceLogger deviceLogger = new SpoonDeviceLogger(device, throttle);
 
     // Run all the tests! o/
-    try {
-      logDebug(debug, "About to actually run tests for [%s]", serial);
-      RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(testPackage, testRunner, device);
-      runner.setMaxtimeToOutputResponse(adbTimeout);
-      if (!Strings.isNullOrEmpty(className)) {
-        if (Strings.isNullOrEmpty(methodName)) {
-          runner.setClassName(className);
-        } else {
-          runner.setMethodName(className, methodName);
-        }
+    Multimap<DeviceTest, File> testScreenshots = ArrayListMultimap.create();
+    JournalListener journalListener = journalWriter == null ? null
+        : new JournalListener(journalWriter, result, testIdentifierAdapter, serial);
+    if (queue == null) {
+      runBatch(device, batch, 0, result, testIdentifierAdapter, journalListener, testScreenshots);
+      finishJournalBatch(journalListener);
+    } else {
+      int batchIndex = 0;
+      TestBatch next = batch;
+      if (next != null) {
+        queue.claim(serial, next);
+      } else {
+        next = queue.next(serial);
       }
-      if (testSize != null) {
-        runner.setTestSize(testSize);
+      while (next != null) {
+        logDebug(debug, "[%s] Pulled batch %s", serial, next);
+        if (batchIndex > 0 && !resetState(device, result)) {
+          queue.complete(serial, next, next);
+          break;
+        }
+        boolean stalled = runBatch(device, next, batchIndex++, result, testIdentifierAdapter,
+            journalListener, testScreenshots);
+        finishJournalBatch(journalListener);
+        // Leave the tests which did not run to healthy devices.
+        boolean lost = stalled || !device.isOnline();
+        queue.complete(serial, next, lost ? unfinished(next, result) : null);
+        if (lost) {
+          break;
+        }
+        next = queue.next(serial);
       }
-      runner.run(
-          new SpoonTestRunListener(result, debug, testIdentifierAdapter),
-          new XmlTestRunListener(junitReport)
-      );
-    } catch (Exception e) {
-      result.addException(e);
     }
 
     // Grab all the parsed logs and map them to individual tests.
@@ -215,106 +322,504 @@ public final class SpoonDeviceRunner {
       }
     }
 
+    // Don't generate animations if the switch is present
+    if (!noAnimations) {
+      try {
+        createAnimatedGifs(result, testScreenshots);
+      } catch (Exception e) {
+        result.addException(e);
+      }
+    }
+  }
+
+  /**
+   * Compile the application and instrumentation ahead of time so that the first tests do not run
+   * interpreted. Devices without ART profiles are left alone.
+   */
+  private void compileApks(IDevice device, DeviceResult.Builder result) {
+    if (DeviceDetails.obtainForDevice(device).getApiLevel() < COMPILE_API_LEVEL) {
+      logDebug(debug, "[%s] Device does not support ahead-of-time compilation.", serial);
+      return;
+    }
+    long start = System.nanoTime();
+    throttle.acquire(AdbThrottle.Operation.SHELL, serial);
+    try {
+      for (String packageName : Arrays.asList(instrumentationInfo.getApplicationPackage(),
+          instrumentationInfo.getInstrumentationPackage())) {
+        String output =
+            executeShellCommand(device, "cmd package compile -m speed -f " + packageName);
+        if (!output.contains("Success")) {
+          logError("[%s] Unable to compile %s: %s", serial, packageName, output.trim());
+          return;
+        }
+      }
+    } catch (Exception e) {
+      logError("[%s] Unable to compile APKs: %s", serial, e);
+      return;
+    } finally {
+      throttle.release(AdbThrottle.Operation.SHELL);
+    }
+    long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    logInfo("[%s] Compiled APKs ahead of time in %dms.", serial, took);
+    result.addCompileDuration(took);
+  }
+
+  /**
+   * Reset application state left behind by the previous batch.
+   *
+   * @return {@code false} if the APKs could not be installed again and the device has to stop.
+   */
+  private boolean resetState(IDevice device, DeviceResult.Builder result) {
+    String appPackage = instrumentationInfo.getApplicationPackage();
+    switch (resetStrategy) {
+      case NONE:
+        return true;
+      case CLEAR:
+        throttle.acquire(AdbThrottle.Operation.SHELL, serial);
+        try {
+          String output = executeShellCommand(device, "pm clear " + appPackage);
+          if (!output.contains("Success")) {
+            logError("[%s] Unable to clear %s: %s", serial, appPackage, output.trim());
+          }
+        } catch (Exception e) {
+          logError("[%s] Unable to clear %s: %s", serial, appPackage, e);
+        } finally {
+          throttle.release(AdbThrottle.Operation.SHELL);
+        }
+        return true;
+      case REINSTALL:
+        try {
+          device.uninstallPackage(appPackage);
+          device.uninstallPackage(instrumentationInfo.getInstrumentationPackage());
+        } catch (Exception e) {
+          logError("[%s] Unable to uninstall APKs: %s", serial, e);
+        }
+        String installError = installApks(device, result);
+        if (installError != null) {
+          result.addException("Unable to reinstall APKs between batches: " + installError);
+          return false;
+        }
+        if (precompile) {
+          compileApks(device, result);
+        }
+        return true;
+      default:
+        throw new IllegalStateException("Unknown reset strategy: " + resetStrategy);
+    }
+  }
+
+  /** Apply the requested preparations, returning those which have to be undone. */
+  private List<DevicePreparation> prepareDevice(IDevice device) {
+    List<DevicePreparation> prepared = new ArrayList<DevicePreparation>();
+    List<DevicePreparation> preparations = new ArrayList<DevicePreparation>();
+    if (prepareDevice) {
+      preparations.addAll(DevicePreparations.standard());
+    }
+    preparations.addAll(DevicePreparations.create(devicePreparations));
+    if (preparations.isEmpty()) {
+      return prepared;
+    }
+    DeviceDetails details = DeviceDetails.obtainForDevice(device);
+    throttle.acquire(AdbThrottle.Operation.SHELL, serial);
     try {
-      logDebug(debug, "About to grab screenshots and prepare output for [%s]", serial);
-
-      // Sync device screenshots, if any, to the local filesystem.
-      String dirName = "app_" + SPOON_SCREENSHOTS;
-      String localDirName = work.getAbsolutePath();
-      final String devicePath = "/data/data/" + appPackage + "/" + dirName;
-      FileEntry deviceDir = obtainDirectoryFileEntry(devicePath);
-      logDebug(debug, "Pulling screenshots from [%s] %s", serial, devicePath);
-
-      device.getSyncService()
-          .pull(new FileEntry[] {deviceDir}, localDirName, SyncService.getNullProgressMonitor());
-
-      File screenshotDir = new File(work, dirName);
-      if (screenshotDir.exists()) {
-        imageDir.mkdirs();
-
-        // Move all children of the screenshot directory into the image folder.
-        File[] classNameDirs = screenshotDir.listFiles();
-        if (classNameDirs != null) {
-          Multimap<DeviceTest, File> testScreenshots = ArrayListMultimap.create();
-          for (File classNameDir : classNameDirs) {
-            String className = classNameDir.getName();
-            File destDir = new File(imageDir, className);
-            FileUtils.copyDirectory(classNameDir, destDir);
-
-            // Get a sorted list of all screenshots from the device run.
-            List<File> screenshots = new ArrayList<File>(
-                FileUtils.listFiles(destDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE));
-            Collections.sort(screenshots);
-
-            // Iterate over each screenshot and associate it with its corresponding method result.
-            for (File screenshot : screenshots) {
-              String methodName = screenshot.getParentFile().getName();
-
-              DeviceTest testIdentifier = new DeviceTest(className, methodName);
-              DeviceTestResult.Builder builder = result.getMethodResultBuilder(testIdentifier);
-              if (builder != null) {
-                builder.addScreenshot(screenshot);
-                testScreenshots.put(testIdentifier, screenshot);
-              } else {
-                logError("Unable to find test for %s", testIdentifier);
-              }
-            }
+      for (DevicePreparation preparation : preparations) {
+        prepared.add(preparation);
+        try {
+          preparation.prepare(device, details);
+        } catch (Exception e) {
+          logError("[%s] Unable to prepare device: %s", serial, e);
+        }
+      }
+    } finally {
+      throttle.release(AdbThrottle.Operation.SHELL);
+    }
+    logDebug(debug, "[%s] Prepared device.", serial);
+    return prepared;
+  }
+
+  /** Undo {@code preparations} in reverse order. */
+  private void restoreDevice(IDevice device, List<DevicePreparation> preparations) {
+    if (preparations.isEmpty()) {
+      return;
+    }
+    throttle.acquire(AdbThrottle.Operation.SHELL, serial);
+    try {
+      for (int i = preparations.size() - 1; i >= 0; i--) {
+        try {
+          preparations.get(i).restore(device);
+        } catch (Exception e) {
+          logError("[%s] Unable to restore device: %s", serial, e);
+        }
+      }
+    } finally {
+      throttle.release(AdbThrottle.Operation.SHELL);
+    }
+    logDebug(debug, "[%s] Restored device.", serial);
+  }
+
+  /** Open the journal of this device, logging instead of failing if that is not possible. */
+  private TestJournal.Writer openJournal(DeviceDetails deviceDetails) {
+    try {
+      TestJournal.Writer writer = new TestJournal.Writer(journal, GSON_COMPACT);
+      writer.device(deviceDetails);
+      return writer;
+    } catch (IOException e) {
+      logError("[%s] Unable to write journal %s: %s", serial, journal, e.getMessage());
+      return null;
+    }
+  }
+
+  /** Journal what only became known once the batch finished, if there is a journal. */
+  private static void finishJournalBatch(JournalListener journalListener) {
+    if (journalListener != null) {
+      journalListener.finishBatch();
+    }
+  }
+
+  /**
+   * Execute a single instrumentation invocation and collect the screenshots it produced.
+   *
+   * @return {@code true} if the instrumentation was cancelled because it stopped making progress.
+   */
+  private boolean runBatch(final IDevice device, TestBatch batch, int batchIndex,
+      DeviceResult.Builder result, TestIdentifierAdapter testIdentifierAdapter,
+      JournalListener journalListener, Multimap<DeviceTest, File> testScreenshots) {
+    boolean stalled = false;
+    DirectoryPuller puller = new DirectoryPuller(device, sdk,
+        DeviceDetails.obtainForDevice(device).getApiLevel(), throttle, debug);
+    ScreenshotPuller screenshots = new ScreenshotPuller(puller, serial, getScreenshotDevicePath(),
+        getScreenshotWorkDir(), testIdentifierAdapter, debug);
+    try {
+      logDebug(debug, "About to actually run tests for [%s]", serial);
+      RemoteAndroidTestRunner runner = createTestRunner(device, batch);
+      List<ITestRunListener> listeners = new ArrayList<ITestRunListener>();
+      listeners.add(new SpoonTestRunListener(result, debug, testIdentifierAdapter));
+      if (journalListener != null) {
+        listeners.add(journalListener); // After the results it journals are recorded.
+      }
+      listeners.add(screenshots);
+      listeners.add(new XmlTestRunListener(getJunitReport(batchIndex)));
+      if (events != null) {
+        listeners.add(events);
+      }
+      if (idleTimeout > 0) {
+        ApkInstaller.Shell shell = new ApkInstaller.Shell() {
+          @Override public String execute(String command) throws Exception {
+            return executeShellCommand(device, command);
           }
+        };
+        stalled = new TestRunWatchdog(serial, idleTimeout, listeners, shell,
+            instrumentationInfo.getApplicationPackage(), throttle).run(runner);
+      } else {
+        runner.run(listeners);
+      }
+    } catch (Exception e) {
+      result.addException(e);
+    }
+    if (stalled) {
+      result.addException("Instrumentation was cancelled after making no progress for "
+          + TimeUnit.MILLISECONDS.toSeconds(idleTimeout) + " seconds.");
+    }
+
+    // The client clears its screenshots when a new instrumentation starts so pull them right away.
+    // Most were already pulled as their tests ended.
+    try {
+      if (!screenshots.finish()) {
+        pullScreenshots(puller);
+      }
+      collectScreenshots(result, testScreenshots);
+    } catch (Exception e) {
+      result.addException(e);
+    }
+    return stalled;
+  }
+
+  /** The tests of {@code batch} which did not produce a result, or {@code null} if all did. */
+  private TestBatch unfinished(TestBatch batch, DeviceResult.Builder result) {
+    List<DeviceTest> unfinished = new ArrayList<DeviceTest>();
+    for (DeviceTest test : batch.getTests()) {
+      if (result.getMethodResultBuilder(test) == null) {
+        unfinished.add(test);
+      }
+    }
+    logInfo("[%s] Returning %d unfinished tests to the queue.", serial, unfinished.size());
+    return unfinished.isEmpty() ? null : TestBatch.of(unfinished, batch.getTests());
+  }
+
+  /**
+   * JUnit report for a batch. Only subsequent batches carry their index in the file name. Reports
+   * left by an earlier attempt of a resumed execution are skipped rather than overwritten.
+   */
+  private File getJunitReport(int batchIndex) {
+    File report = batchIndex == 0 ? junitReport : getJunitReportWithIndex(batchIndex);
+    for (int index = batchIndex + 1; report.exists(); index++) {
+      report = getJunitReportWithIndex(index);
+    }
+    return report;
+  }
+
+  private File getJunitReportWithIndex(int index) {
+    String name = junitReport.getName().replace(".xml", "-" + index + ".xml");
+    return new File(junitReport.getParentFile(), name);
+  }
+
+  private String getScreenshotDevicePath() {
+    return "/data/data/" + instrumentationInfo.getApplicationPackage() + "/app_"
+        + SPOON_SCREENSHOTS;
+  }
 
-          // Don't generate animations if the switch is present
-          if (!noAnimations) {
-            // Make animated GIFs for all the tests which have screenshots.
-            for (DeviceTest deviceTest : testScreenshots.keySet()) {
-              List<File> screenshots = new ArrayList<File>(testScreenshots.get(deviceTest));
-              if (screenshots.size() == 1) {
-                continue; // Do not make an animated GIF if there is only one screenshot.
-              }
-              File animatedGif = FileUtils.getFile(imageDir, deviceTest.getClassName(),
-                  deviceTest.getMethodName() + ".gif");
-              createAnimatedGif(screenshots, animatedGif);
-              result.getMethodResultBuilder(deviceTest).setAnimatedGif(animatedGif);
+  private File getScreenshotWorkDir() {
+    return new File(work, "app_" + SPOON_SCREENSHOTS);
+  }
+
+  /** Pull all device screenshots to the work folder. */
+  private void pullScreenshots(DirectoryPuller puller) throws Exception {
+    String devicePath = getScreenshotDevicePath();
+    logDebug(debug, "Pulling screenshots from [%s] %s", serial, devicePath);
+    puller.pull(devicePath, work);
+  }
+
+  /** Move pulled screenshots to the store and associate them with their test results. */
+  private void collectScreenshots(DeviceResult.Builder result,
+      Multimap<DeviceTest, File> testScreenshots) throws IOException {
+    logDebug(debug, "About to prepare screenshot output for [%s]", serial);
+    File screenshotDir = getScreenshotWorkDir();
+    List<File> stored = new ArrayList<File>();
+    List<DeviceTestResult.Builder> builders = new ArrayList<DeviceTestResult.Builder>();
+    if (screenshotDir.exists()) {
+      // Move all children of the screenshot directory into the store. Both live below the output
+      // directory so each screenshot is renamed rather than written a second time.
+      File[] classNameDirs = screenshotDir.listFiles();
+      if (classNameDirs != null) {
+        for (File classNameDir : classNameDirs) {
+          String className = classNameDir.getName();
+          File destDir = new File(imageDir, className);
+
+          // Get a sorted list of all screenshots from the device run.
+          List<File> screenshots = new ArrayList<File>(
+              FileUtils.listFiles(classNameDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE));
+          Collections.sort(screenshots);
+
+          // Iterate over each screenshot and associate it with its corresponding method result.
+          for (File screenshot : screenshots) {
+            String methodName = screenshot.getParentFile().getName();
+            // Where the screenshot appears in the report. Its content only exists in the store.
+            File destination = FileUtils.getFile(destDir, methodName, screenshot.getName());
+            String hash = store.add(screenshot);
+
+            DeviceTest testIdentifier = new DeviceTest(className, methodName);
+            if (testScreenshots.containsEntry(testIdentifier, destination)) {
+              continue; // Left over from an earlier batch which was already pulled.
+            }
+            DeviceTestResult.Builder builder = result.getMethodResultBuilder(testIdentifier);
+            if (builder != null) {
+              builder.addScreenshot(destination, hash);
+              testScreenshots.put(testIdentifier, destination);
+              storedScreenshots.put(destination, store.get(hash, screenshot.getName()));
+              stored.add(store.get(hash, screenshot.getName()));
+              builders.add(builder);
+            } else {
+              logError("Unable to find test for %s", testIdentifier);
             }
           }
         }
-        FileUtils.deleteDirectory(screenshotDir);
+      }
+      FileUtils.deleteDirectory(screenshotDir);
+    }
+
+    // Each batch adds its screenshots to the pack before its results are journaled.
+    if (packScreenshots && !stored.isEmpty()) {
+      ScreenshotPack.append(screenshotPack, stored);
+      for (DeviceTestResult.Builder builder : builders) {
+        builder.setScreenshotPack(screenshotPack);
+      }
+    }
+  }
+
+  /** Make animated GIFs for all the tests which have screenshots. */
+  private void createAnimatedGifs(DeviceResult.Builder result,
+      Multimap<DeviceTest, File> testScreenshots) throws IOException {
+    for (DeviceTest deviceTest : testScreenshots.keySet()) {
+      List<File> screenshots = new ArrayList<File>();
+      for (File screenshot : testScreenshots.get(deviceTest)) {
+        screenshots.add(storedScreenshots.get(screenshot));
+      }
+      if (screenshots.size() == 1) {
+        continue; // Do not make an animated GIF if there is only one screenshot.
+      }
+      File animatedGif = FileUtils.getFile(imageDir, deviceTest.getClassName(),
+          deviceTest.getMethodName() + ".gif");
+      FileUtils.forceMkdir(animatedGif.getParentFile());
+      createAnimatedGif(screenshots, animatedGif);
+      result.getMethodResultBuilder(deviceTest).setAnimatedGif(animatedGif);
+    }
+  }
+
+  /**
+   * Install the application and instrumentation APKs and list the tests which would be executed
+   * without actually running them.
+   */
+  public List<DeviceTest> collectTests(AndroidDebugBridge adb) throws Exception {
+    IDevice device = obtainRealDevice(adb, serial);
+    String installError = installApks(device, new DeviceResult.Builder());
+    if (installError != null) {
+      throw new IllegalStateException("Unable to list tests on " + serial + ": " + installError);
+    }
+
+    TestListingListener listener = new TestListingListener();
+    RemoteAndroidTestRunner runner = createTestRunner(device, batch);
+    runner.setLogOnly(true);
+    runner.run(listener);
+    if (listener.failure != null) {
+      throw new IllegalStateException(
+          "Unable to list tests on " + serial + ": " + listener.failure);
+    }
+    logDebug(debug, "[%s] Listed %d tests.", serial, listener.tests.size());
+    return new ArrayList<DeviceTest>(listener.tests);
+  }
+
+  /** Install both APKs, returning a failure message or {@code null} on success. */
+  private String installApks(IDevice device, DeviceResult.Builder result) {
+    throttle.acquire(AdbThrottle.Operation.INSTALL, serial);
+    try {
+      List<File> pending = new ArrayList<File>();
+      if (!isInstalled(device, apk, instrumentationInfo.getApplicationPackage(), result)) {
+        pending.add(apk);
+      }
+      if (!isInstalled(device, testApk, instrumentationInfo.getInstrumentationPackage(), result)) {
+        pending.add(testApk);
+      }
+      long start = System.nanoTime();
+      int apiLevel = DeviceDetails.obtainForDevice(device).getApiLevel();
+      Map<File, String> errors = new ApkInstaller(device, serial, debug).install(pending, apiLevel);
+      String installError = errors.get(apk);
+      if (installError != null) {
+        logInfo("[%s] app apk install failed.  Error [%s]", serial, installError);
+        return "Unable to install application APK.";
+      }
+      installError = errors.get(testApk);
+      if (installError != null) {
+        logInfo("[%s] test apk install failed.  Error [%s]", serial, installError);
+        return "Unable to install instrumentation APK.";
+      }
+      if (!pending.isEmpty()) {
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        logDebug(debug, "[%s] Installed %d APK(s) in %dms.", serial, pending.size(), took);
+        long bytes = 0;
+        for (File file : pending) {
+          bytes += file.length();
+        }
+        InstalledApks.recordInstall(serial, bytes, took);
       }
     } catch (Exception e) {
-      result.addException(e);
+      logInfo("Install exception on device [%s]", serial);
+      e.printStackTrace(System.out);
+      return e.getMessage() != null ? e.getMessage() : e.toString();
+    } finally {
+      throttle.release(AdbThrottle.Operation.INSTALL);
     }
+    return null;
+  }
 
-    return result.build();
+  /**
+   * {@code true} if the identical build of {@code file} is already installed as
+   * {@code packageName}, in which case the skip is recorded on {@code result}.
+   */
+  private boolean isInstalled(IDevice device, File file, String packageName,
+      DeviceResult.Builder result) {
+    if (packageName == null) {
+      return false;
+    }
+    String digest;
+    try {
+      digest = InstalledApks.digest(file);
+    } catch (IOException e) {
+      logDebug(debug, "[%s] Unable to compute digest of %s: %s", serial, file, e.getMessage());
+      return false;
+    }
+    if (!InstalledApks.isInstalled(device, packageName, digest)) {
+      return false;
+    }
+    logInfo("[%s] %s is already installed. Skipping install.", serial, file.getName());
+    result.addSkippedInstall(file.getName(), InstalledApks.estimateInstallMillis(serial, file));
+    return true;
+  }
+
+  /** Create an instrumentation runner honoring the batch, class, method, and size filters. */
+  private RemoteAndroidTestRunner createTestRunner(IDevice device, TestBatch batch) {
+    String testPackage = instrumentationInfo.getInstrumentationPackage();
+    String testRunner = instrumentationInfo.getTestRunnerClass();
+    RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(testPackage, testRunner, device);
+    runner.setMaxtimeToOutputResponse(adbTimeout);
+    if (batch != null) {
+      List<String> targets = batch.getTargets();
+      runner.setClassNames(targets.toArray(new String[targets.size()]));
+    } else if (!Strings.isNullOrEmpty(className)) {
+      if (Strings.isNullOrEmpty(methodName)) {
+        runner.setClassName(className);
+      } else {
+        runner.setMethodName(className, methodName);
+      }
+    }
+    if (testSize != null) {
+      runner.setTestSize(testSize);
+    }
+    return runner;
+  }
+
+  /** Records the tests reported by a log-only instrumentation run. */
+  private static final class TestListingListener implements ITestRunListener {
+    final Set<DeviceTest> tests = new LinkedHashSet<DeviceTest>();
+    String failure;
+
+    @Override public void testRunStarted(String runName, int testCount) {
+    }
+
+    @Override public void testStarted(TestIdentifier test) {
+      tests.add(DeviceTest.from(test));
+    }
+
+    @Override public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+    }
+
+    @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+    }
+
+    @Override public void testRunFailed(String errorMessage) {
+      failure = errorMessage;
+    }
+
+    @Override public void testRunStopped(long elapsedTime) {
+    }
+
+    @Override public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+    }
   }
 
   /////////////////////////////////////////////////////////////////////////////
   ////  Secondary Per-Device Process  /////////////////////////////////////////
   /////////////////////////////////////////////////////////////////////////////
 
-  /** De-serialize from disk, run the tests, and serialize the result back to disk. */
+  /**
+   * Execute a device configuration read from standard input. Progress and the final result are
+   * reported on standard output as {@link DeviceEventStream} events.
+   */
   public static void main(String... args) {
-    if (args.length != 1) {
-      throw new IllegalArgumentException("Must be started with a device directory.");
-    }
-
     try {
-      String outputDirName = args[0];
-      File outputDir = new File(outputDirName);
-      File executionFile = new File(outputDir, FILE_EXECUTION);
-      if (!executionFile.exists()) {
-        throw new IllegalArgumentException("Device directory and/or execution file doesn't exist.");
-      }
-
-      FileReader reader = new FileReader(executionFile);
+      Reader reader = new InputStreamReader(System.in, CHARSET);
       SpoonDeviceRunner target = GSON.fromJson(reader, SpoonDeviceRunner.class);
       reader.close();
+      if (target == null) {
+        throw new IllegalArgumentException("No device configuration was provided.");
+      }
+      target.throttle = AdbThrottle.unlimited();
+      target.events = new DeviceEventStream.Writer(System.out, GSON_COMPACT);
 
       AndroidDebugBridge adb = SpoonUtils.initAdb(target.sdk);
       DeviceResult result = target.run(adb);
       AndroidDebugBridge.terminate();
 
-      // Write device result file.
-      FileWriter writer = new FileWriter(new File(outputDir, FILE_RESULT));
-      GSON.toJson(result, writer);
-      writer.close();
+      target.events.result(result);
     } catch (Throwable ex) {
       logInfo("ERROR: Unable to execute test for target.  Exception message: %s", ex.getMessage());
       ex.printStackTrace(System.out);
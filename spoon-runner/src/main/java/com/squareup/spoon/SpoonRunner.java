@@ -1,21 +1,33 @@
 package com.squareup.spoon;
 
 import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.beust.jcommander.IStringConverter;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 import com.squareup.spoon.html.HtmlRenderer;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.io.FileUtils;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -24,13 +36,13 @@ import static com.squareup.spoon.DeviceTestResult.Status;
 import static com.squareup.spoon.SpoonInstrumentationInfo.parseFromFile;
 import static com.squareup.spoon.SpoonLogger.logDebug;
 import static com.squareup.spoon.SpoonLogger.logInfo;
-import static java.util.Collections.synchronizedSet;
 
 /** Represents a collection of devices and the test configuration to be executed. */
 public final class SpoonRunner {
   private static final String DEFAULT_TITLE = "Spoon Execution";
   public static final String DEFAULT_OUTPUT_DIRECTORY = "spoon-output";
   private static final int DEFAULT_ADB_TIMEOUT = 10 * 60; //10 minutes
+  private static final long BOOT_POLL_INTERVAL_MS = 2000;
 
   private final String title;
   private final File androidSdk;
@@ -39,18 +51,45 @@ public final class SpoonRunner {
   private final File output;
   private final boolean debug;
   private final boolean noAnimations;
+  private final boolean packScreenshots;
+  private final boolean prepareDevice;
+  private final List<String> devicePreparations;
+  private final boolean precompile;
+  private final ResetStrategy resetStrategy;
   private final int adbTimeout;
+  private final int idleTimeout;
   private final String className;
   private final String methodName;
   private final Set<String> serials;
+  private final Set<CoverageDimension> coverage;
   private final String classpath;
   private final IRemoteAndroidTestRunner.TestSize testSize;
   private final boolean failIfNoDeviceConnected;
+  private final boolean sharding;
+  private final boolean dynamicScheduling;
+  private final File shardHistory;
+  private final boolean forkDevices;
+  private final boolean resume;
+  private final LeasePolicy leasePolicy;
+  private final Set<String> leasedDevices;
+  private final int maxConcurrentDevices;
+  private final int maxConcurrentInstalls;
+  private final int maxConcurrentPulls;
+  private final int maxConcurrentShells;
+  private final int maxConcurrentLogcats;
+  private final boolean useDaemon;
+  private final int daemonPort;
 
   private SpoonRunner(String title, File androidSdk, File applicationApk, File instrumentationApk,
-      File output, boolean debug, boolean noAnimations, int adbTimeout, Set<String> serials,
-      String classpath, String className, String methodName,
-      IRemoteAndroidTestRunner.TestSize testSize, boolean failIfNoDeviceConnected) {
+      File output, boolean debug, boolean noAnimations, boolean packScreenshots,
+      boolean prepareDevice, List<String> devicePreparations, boolean precompile,
+      ResetStrategy resetStrategy, int adbTimeout, int idleTimeout, Set<String> serials,
+      Set<CoverageDimension> coverage, String classpath, String className, String methodName,
+      IRemoteAndroidTestRunner.TestSize testSize, boolean failIfNoDeviceConnected,
+      boolean sharding, boolean dynamicScheduling, File shardHistory, boolean forkDevices,
+      boolean resume, LeasePolicy leasePolicy, Set<String> leasedDevices, int maxConcurrentDevices,
+      int maxConcurrentInstalls, int maxConcurrentPulls, int maxConcurrentShells,
+      int maxConcurrentLogcats, boolean useDaemon, int daemonPort) {
     this.title = title;
     this.androidSdk = androidSdk;
     this.applicationApk = applicationApk;
@@ -58,13 +97,34 @@ public final class SpoonRunner {
     this.output = output;
     this.debug = debug;
     this.noAnimations = noAnimations;
+    this.packScreenshots = packScreenshots;
+    this.prepareDevice = prepareDevice;
+    this.devicePreparations = ImmutableList.copyOf(devicePreparations);
+    this.precompile = precompile;
+    this.resetStrategy = resetStrategy;
     this.adbTimeout = adbTimeout;
+    this.idleTimeout = idleTimeout;
     this.className = className;
     this.methodName = methodName;
     this.classpath = classpath;
     this.testSize = testSize;
     this.serials = ImmutableSet.copyOf(serials);
+    this.coverage = ImmutableSet.copyOf(coverage);
     this.failIfNoDeviceConnected = failIfNoDeviceConnected;
+    this.sharding = sharding;
+    this.dynamicScheduling = dynamicScheduling;
+    this.shardHistory = shardHistory;
+    this.forkDevices = forkDevices;
+    this.resume = resume;
+    this.leasePolicy = leasePolicy;
+    this.leasedDevices = ImmutableSet.copyOf(leasedDevices);
+    this.maxConcurrentDevices = maxConcurrentDevices;
+    this.maxConcurrentInstalls = maxConcurrentInstalls;
+    this.maxConcurrentPulls = maxConcurrentPulls;
+    this.maxConcurrentShells = maxConcurrentShells;
+    this.maxConcurrentLogcats = maxConcurrentLogcats;
+    this.useDaemon = useDaemon;
+    this.daemonPort = daemonPort;
   }
 
   /**
@@ -76,39 +136,86 @@ public final class SpoonRunner {
     checkArgument(applicationApk.exists(), "Could not find application APK.");
     checkArgument(instrumentationApk.exists(), "Could not find instrumentation APK.");
 
-    AndroidDebugBridge adb = SpoonUtils.initAdb(androidSdk);
+    if (useDaemon) {
+      Boolean success = SpoonDaemon.submit(this, daemonPort);
+      if (success != null) {
+        return success;
+      }
+      logInfo("No daemon available on port %d. Running standalone.", daemonPort);
+    }
 
+    // Executions in the same process, e.g. modules of a parallel build, share one bridge.
+    AndroidDebugBridge adb = SpoonUtils.obtainSharedAdb(androidSdk);
+    ExecutorService executor = SpoonUtils.newDeviceExecutor();
     try {
-      // If we were given an empty serial set, load all available devices.
-      Set<String> serials = this.serials;
-      if (serials.isEmpty()) {
-        serials = SpoonUtils.findAllDevices(adb);
-      }
-      if (failIfNoDeviceConnected && serials.isEmpty()) {
-        throw new RuntimeException("No device(s) found.");
-      }
+      return run(adb, executor);
+    } finally {
+      executor.shutdownNow();
+      SpoonUtils.releaseSharedAdb();
+    }
+  }
 
+  /** Execute the tests using an already connected bridge and threads owned by the caller. */
+  boolean run(AndroidDebugBridge adb, ExecutorService executor) {
+    // If we were given an empty serial set, load all available devices.
+    Set<String> serials = this.serials;
+    if (serials.isEmpty()) {
+      serials = SpoonUtils.findAllDevices(adb);
+    }
+    if (failIfNoDeviceConnected && serials.isEmpty()) {
+      throw new RuntimeException("No device(s) found.");
+    }
+
+    // Keep other executions on this host away from the devices while they are in use. Devices
+    // the caller already leases, like the emulators of an EmulatorPool, are not leased again.
+    DeviceLeases leases = leasePolicy == LeasePolicy.NONE
+        ? DeviceLeases.disabled() : new DeviceLeases(DeviceLeases.DEFAULT_DIRECTORY);
+    Set<String> acquired = leases.acquire(Sets.difference(serials, leasedDevices), leasePolicy);
+    serials = ImmutableSet.copyOf(
+        Sets.union(Sets.intersection(serials, leasedDevices), acquired));
+
+    Map<AdbThrottle.Operation, Integer> limits =
+        new EnumMap<AdbThrottle.Operation, Integer>(AdbThrottle.Operation.class);
+    limits.put(AdbThrottle.Operation.INSTALL, maxConcurrentInstalls);
+    limits.put(AdbThrottle.Operation.PULL, maxConcurrentPulls);
+    limits.put(AdbThrottle.Operation.SHELL, maxConcurrentShells);
+    limits.put(AdbThrottle.Operation.LOGCAT, maxConcurrentLogcats);
+    AdbThrottle throttle = new AdbThrottle(limits, debug);
+
+    try {
       // Execute all the things...
-      SpoonSummary summary = runTests(adb, serials);
+      SpoonSummary summary = runTests(adb, executor, throttle, leases, serials);
+      ScreenshotStore.prune(output, summary);
       // ...and render to HTML
       new HtmlRenderer(summary, SpoonUtils.GSON, output).render();
 
       return parseOverallSuccess(summary);
     } finally {
-      AndroidDebugBridge.terminate();
+      leases.releaseAll();
     }
   }
 
-  private SpoonSummary runTests(AndroidDebugBridge adb, Set<String> serials) {
+  private SpoonSummary runTests(final AndroidDebugBridge adb, ExecutorService executor,
+      final AdbThrottle throttle, DeviceLeases leases, Set<String> serials) {
     int targetCount = serials.size();
     logInfo("Executing instrumentation suite on %d device(s).", targetCount);
 
-    try {
-      FileUtils.deleteDirectory(output);
-    } catch (IOException e) {
-      throw new RuntimeException("Unable to clean output directory: " + output, e);
+    // Durations from the previous execution guide sharding and serve as the baseline against
+    // which precompilation is measured. Read them before the output is gone.
+    File historyFile = shardHistory != null ? shardHistory : new File(output, "result.json");
+    TestHistory history = TestHistory.empty();
+    if (sharding && targetCount > 0) {
+      history = TestHistory.load(historyFile, SpoonUtils.GSON);
+      logDebug(debug, "Loaded durations for %d tests from %s", history.size(), historyFile);
+    }
+    TestHistory precompileBaseline = TestHistory.empty();
+    if (precompile) {
+      precompileBaseline = TestHistory.load(historyFile, SpoonUtils.GSON, true);
     }
 
+    // A resumed execution keeps the output of the previous attempt and skips its finished tests.
+    TestJournal journal = loadJournal();
+
     final SpoonInstrumentationInfo testInfo = parseFromFile(instrumentationApk);
     logDebug(debug, "Application: %s from %s", testInfo.getApplicationPackage(),
         applicationApk.getAbsolutePath());
@@ -121,13 +228,68 @@ public final class SpoonRunner {
       summary.setTestSize(testSize);
     }
 
-    if (targetCount == 1) {
+    // Devices which cannot run the APKs are left out before any time is spent installing.
+    final ApkRequirements requirements = ApkRequirements.parseFromFile(applicationApk)
+        .and(ApkRequirements.parseFromFile(instrumentationApk));
+    logDebug(debug, "Requirements: %s", requirements);
+    serials = filterCompatible(adb, serials, requirements, throttle, summary);
+    if (!coverage.isEmpty()) {
+      serials = selectCovering(adb, serials);
+    }
+    leases.releaseAllBut(serials);
+    targetCount = serials.size();
+
+    // When sharding, each device only receives its own portion of the suite.
+    final Map<String, TestBatch> shards = new HashMap<String, TestBatch>();
+    TestQueue testQueue = null;
+    List<DeviceTest> allTests = null;
+    // Even a single device distributes its tests so that devices which connect later can help.
+    boolean distribute = dynamicScheduling || sharding;
+    if (targetCount > 0 && (distribute || !journal.isEmpty())) {
+      allTests = listTests(adb, serials, testInfo, throttle);
+    }
+    if (dynamicScheduling && targetCount > 0) {
+      testQueue = TestQueue.forClasses(journal.unrecorded(allTests), allTests);
+      logInfo("Distributing %d test classes across %d device(s).", testQueue.size(), targetCount);
+    } else if (sharding && targetCount > 0) {
+      List<TestBatch> batches =
+          TestSharder.shard(journal.unrecorded(allTests), allTests, targetCount, history);
+      logInfo("Sharding tests across %d device(s).", batches.size());
+      Set<String> assigned = new LinkedHashSet<String>();
+      Iterator<TestBatch> batchIterator = batches.iterator();
+      for (String serial : serials) {
+        if (!batchIterator.hasNext()) {
+          logInfo("[%s] No tests left to shard onto device.", serial);
+          continue;
+        }
+        TestBatch batch = batchIterator.next();
+        long estimate = TimeUnit.MILLISECONDS.toSeconds(history.estimate(batch.getTests()));
+        logDebug(debug, "[%s] Assigned shard %s, expected to take %ds", serial, batch, estimate);
+        shards.put(serial, batch);
+        summary.addShardEstimate(SpoonUtils.sanitizeSerial(serial), estimate);
+        assigned.add(serial);
+      }
+      serials = assigned;
+      targetCount = serials.size();
+    } else if (allTests != null) {
+      serials = assignUnrecorded(serials, allTests, journal, shards);
+      targetCount = serials.size();
+    }
+
+    // Sharded devices which finish early pick up the tests of devices which went away.
+    if (sharding && !forkDevices && targetCount > 0) {
+      testQueue = new TestQueue();
+    }
+
+    if (targetCount == 1 && testQueue == null) {
       // Since there is only one device just execute it synchronously in this process.
       String serial = serials.iterator().next();
       String safeSerial = SpoonUtils.sanitizeSerial(serial);
       try {
         logDebug(debug, "[%s] Starting execution.", serial);
-        summary.addResult(safeSerial, getTestRunner(serial, testInfo).run(adb));
+        SpoonDeviceRunner testRunner =
+            getTestRunner(serial, testInfo, shards.get(serial), throttle);
+        summary.addResult(safeSerial, testRunner.run(adb));
       } catch (Exception e) {
         logDebug(debug, "[%s] Execution exception!", serial);
         e.printStackTrace(System.out);
@@ -136,32 +298,38 @@ public final class SpoonRunner {
         logDebug(debug, "[%s] Execution done.", serial);
       }
     } else {
-      // Spawn a new thread for each device and wait for them all to finish.
-      final CountDownLatch done = new CountDownLatch(targetCount);
-      final Set<String> remaining = synchronizedSet(new HashSet<String>(serials));
-      for (final String serial : serials) {
-        final String safeSerial = SpoonUtils.sanitizeSerial(serial);
-        logDebug(debug, "[%s] Starting execution.", serial);
-        new Thread(new Runnable() {
-          @Override public void run() {
-            try {
-              summary.addResult(safeSerial, getTestRunner(serial, testInfo).runInNewProcess());
-            } catch (Exception e) {
-              summary.addResult(safeSerial, new DeviceResult.Builder().addException(e).build());
-            } finally {
-              done.countDown();
-              remaining.remove(serial);
-              logDebug(debug, "[%s] Execution done. (%s remaining %s)", serial, done.getCount(),
-                  remaining);
-            }
-          }
-        }).start();
+      // Hand each device to a worker thread and wait for them all to finish. Unless isolation was
+      // requested, every device is driven from this process through the shared bridge.
+      DevicePool pool = new DevicePool(executor, maxConcurrentDevices, debug);
+      for (String serial : serials) {
+        pool.start(serial,
+            newDeviceWork(adb, serial, testInfo, shards.get(serial), throttle, testQueue, summary));
       }
 
+      // Devices which show up later can help with work that is not bound to a particular device.
+      AndroidDebugBridge.IDeviceChangeListener hotPlugListener = null;
+      if (testQueue != null) {
+        hotPlugListener =
+            newHotPlugListener(adb, pool, executor, testInfo, requirements, throttle, leases,
+                testQueue, summary);
+        AndroidDebugBridge.addDeviceChangeListener(hotPlugListener);
+      }
       try {
-        done.await();
-      } catch (InterruptedException e) {
-        throw new RuntimeException(e);
+        pool.await();
+      } finally {
+        if (hotPlugListener != null) {
+          AndroidDebugBridge.removeDeviceChangeListener(hotPlugListener);
+        }
+      }
+      if (testQueue != null) {
+        List<TestBatch> unexecuted = testQueue.drain();
+        if (!unexecuted.isEmpty()) {
+          logInfo("%d batches of tests were not executed because no device was left to run them.",
+              unexecuted.size());
+          for (TestBatch batch : unexecuted) {
+            summary.addUnexecutedTests(batch.getTests());
+          }
+        }
       }
     }
 
@@ -173,11 +341,216 @@ public final class SpoonRunner {
       }
     }
 
+    addJournalResults(journal, summary);
+    summary.addPrecompileBaselines(precompileBaseline);
     return summary.end().build();
   }
 
+  /** Clean the output directory or, when resuming, read the journal of the previous attempt. */
+  private TestJournal loadJournal() {
+    try {
+      if (resume) {
+        TestJournal journal = TestJournal.load(output, SpoonUtils.GSON_COMPACT);
+        logInfo("Resuming execution. Found results from %d device(s).",
+            journal.getSerials().size());
+        return journal;
+      }
+      // Screenshots from earlier executions are kept, so that repeated ones need not be stored.
+      ScreenshotStore.cleanOutput(output);
+      return TestJournal.empty();
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to prepare output directory: " + output, e);
+    }
+  }
+
+  /**
+   * Assign each device the tests which have no recorded result on it, leaving out devices which
+   * already finished all of them.
+   */
+  private Set<String> assignUnrecorded(Set<String> serials, List<DeviceTest> allTests,
+      TestJournal journal, Map<String, TestBatch> shards) {
+    Set<String> assigned = new LinkedHashSet<String>();
+    for (String serial : serials) {
+      List<DeviceTest> tests = journal.unrecorded(allTests, SpoonUtils.sanitizeSerial(serial));
+      if (tests.isEmpty()) {
+        logInfo("[%s] All tests already have a recorded result.", serial);
+        continue;
+      }
+      logInfo("[%s] Resuming with %d of %d tests.", serial, tests.size(), allTests.size());
+      shards.put(serial, TestBatch.of(tests, allTests));
+      assigned.add(serial);
+    }
+    return assigned;
+  }
+
+  /** Add the results recorded by a previous attempt to those of this one. */
+  private static void addJournalResults(TestJournal journal, SpoonSummary.Builder summary) {
+    for (String serial : journal.getSerials()) {
+      Map<DeviceTest, DeviceTestResult> results = journal.getResults(serial);
+      if (!results.isEmpty()) {
+        summary.addEarlierResults(serial, journal.getDeviceDetails(serial), results);
+      }
+    }
+  }
+
+  /** Work which executes the tests on {@code serial} and records its result. */
+  private Runnable newDeviceWork(final AndroidDebugBridge adb, final String serial,
+      final SpoonInstrumentationInfo testInfo, final TestBatch batch, final AdbThrottle throttle,
+      final TestQueue queue, final SpoonSummary.Builder summary) {
+    final String safeSerial = SpoonUtils.sanitizeSerial(serial);
+    return new Runnable() {
+      @Override public void run() {
+        try {
+          SpoonDeviceRunner testRunner = getTestRunner(serial, testInfo, batch, throttle);
+          if (forkDevices) {
+            summary.addResult(safeSerial, testRunner.runInNewProcess());
+          } else {
+            summary.addResult(safeSerial, testRunner.run(adb, queue));
+          }
+        } catch (Exception e) {
+          logDebug(debug, "[%s] Execution exception!", serial);
+          e.printStackTrace(System.out);
+          summary.addResult(safeSerial, new DeviceResult.Builder().addException(e).build());
+        }
+      }
+    };
+  }
+
+  /**
+   * Listens for devices which connect during the execution and, once they have finished booting,
+   * adds them to {@code pool} to pull work from {@code queue}. The batches of devices which
+   * disconnect are returned to {@code queue}.
+   */
+  private AndroidDebugBridge.IDeviceChangeListener newHotPlugListener(
+      final AndroidDebugBridge adb, final DevicePool pool, final Executor executor,
+      final SpoonInstrumentationInfo testInfo, final ApkRequirements requirements,
+      final AdbThrottle throttle, final DeviceLeases leases, final TestQueue queue,
+      final SpoonSummary.Builder summary) {
+    return new AndroidDebugBridge.IDeviceChangeListener() {
+      @Override public void deviceConnected(IDevice device) {
+        join(device);
+      }
+
+      @Override public void deviceDisconnected(IDevice device) {
+        logInfo("[%s] Device disconnected.", device.getSerialNumber());
+        // Other devices pick up its batch rather than waiting for the instrumentation to fail.
+        queue.abandon(device.getSerialNumber());
+      }
+
+      @Override public void deviceChanged(IDevice device, int changeMask) {
+        if ((changeMask & IDevice.CHANGE_STATE) != 0) {
+          join(device);
+        }
+      }
+
+      private void join(final IDevice device) {
+        final String serial = device.getSerialNumber();
+        if (!device.isOnline() || (!serials.isEmpty() && !serials.contains(serial))) {
+          return;
+        }
+        if (!coverage.isEmpty()) {
+          return; // Devices beyond the covering selection are left to other jobs.
+        }
+        // Callbacks arrive on the bridge's monitoring thread which must not be held up.
+        executor.execute(new Runnable() {
+          @Override public void run() {
+            while (!pool.isClosed() && device.isOnline()) {
+              if (SpoonUtils.isBootCompleted(device, throttle)) {
+                String reason = findIncompatibility(device, requirements, throttle);
+                if (reason != null) {
+                  logInfo("[%s] Device connected but is skipped. %s", serial, reason);
+                  summary.addSkippedDevice(SpoonUtils.sanitizeSerial(serial), reason);
+                } else if (!leasedDevices.contains(serial) && !leases.tryAcquire(serial)) {
+                  logDebug(debug, "[%s] Device connected but is leased elsewhere.", serial);
+                } else if (pool.start(serial,
+                    newDeviceWork(adb, serial, testInfo, null, throttle, queue, summary))) {
+                  logInfo("[%s] Device connected and joined the execution.", serial);
+                }
+                return;
+              }
+              try {
+                Thread.sleep(BOOT_POLL_INTERVAL_MS);
+              } catch (InterruptedException e) {
+                return;
+              }
+            }
+          }
+        });
+      }
+    };
+  }
+
+  /** The devices among {@code serials} which can run the APKs. Others are recorded as skipped. */
+  private Set<String> filterCompatible(AndroidDebugBridge adb, Set<String> serials,
+      ApkRequirements requirements, AdbThrottle throttle, SpoonSummary.Builder summary) {
+    Set<String> compatible = new LinkedHashSet<String>();
+    for (String serial : serials) {
+      IDevice device = SpoonUtils.obtainRealDevice(adb, serial);
+      String reason = findIncompatibility(device, requirements, throttle);
+      if (reason == null) {
+        compatible.add(serial);
+      } else {
+        logInfo("[%s] Skipping device. %s", serial, reason);
+        summary.addSkippedDevice(SpoonUtils.sanitizeSerial(serial), reason);
+      }
+    }
+    return compatible;
+  }
+
+  /** Few devices among {@code serials} which still cover every configuration of them all. */
+  private Set<String> selectCovering(AndroidDebugBridge adb, Set<String> serials) {
+    Map<String, DeviceDetails> details = new LinkedHashMap<String, DeviceDetails>();
+    for (String serial : serials) {
+      details.put(serial, DeviceDetails.obtainForDevice(SpoonUtils.obtainRealDevice(adb, serial)));
+    }
+    Set<String> selected = DeviceSelector.selectCovering(details, coverage);
+    logInfo("Selected %d of %d device(s) covering %s.", selected.size(), serials.size(), coverage);
+    for (String serial : serials) {
+      if (!selected.contains(serial)) {
+        logDebug(debug, "[%s] Not needed for coverage.", serial);
+      }
+    }
+    return selected;
+  }
+
+  /** Why {@code device} cannot run the APKs, or {@code null} if it can. */
+  private String findIncompatibility(IDevice device, ApkRequirements requirements,
+      AdbThrottle throttle) {
+    DeviceDetails details = DeviceDetails.obtainForDevice(device);
+    Set<String> features = null;
+    if (requirements.hasFeatures()) {
+      throttle.acquire(AdbThrottle.Operation.SHELL, device.getSerialNumber());
+      try {
+        features = ApkRequirements.readDeviceFeatures(device);
+      } catch (Exception e) {
+        // Let the device try; installing reports the problem if it really lacks a feature.
+        logDebug(debug, "[%s] Unable to list features: %s", device.getSerialNumber(), e);
+      } finally {
+        throttle.release(AdbThrottle.Operation.SHELL);
+      }
+    }
+    return requirements.findIncompatibility(details, features);
+  }
+
+  /** List the tests which are to be distributed by executing a dry run on the first device. */
+  private List<DeviceTest> listTests(AndroidDebugBridge adb, Set<String> serials,
+      SpoonInstrumentationInfo testInfo, AdbThrottle throttle) {
+    String serial = serials.iterator().next();
+    logDebug(debug, "[%s] Listing tests.", serial);
+    try {
+      List<DeviceTest> tests = getTestRunner(serial, testInfo, null, throttle).collectTests(adb);
+      logInfo("Found %d tests to distribute.", tests.size());
+      return tests;
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to list tests.", e);
+    }
+  }
+
   /** Returns {@code false} if a test failed on any device. */
   static boolean parseOverallSuccess(SpoonSummary summary) {
+    if (!summary.getUnexecutedTests().isEmpty()) {
+      return false; // No device was left to run some of the tests.
+    }
     for (DeviceResult result : summary.getResults().values()) {
       if (result.getInstallFailed()) {
         return false; // App and/or test installation failed.
@@ -194,9 +567,52 @@ public final class SpoonRunner {
     return true;
   }
 
-  private SpoonDeviceRunner getTestRunner(String serial, SpoonInstrumentationInfo testInfo) {
+  /**
+   * Describe this execution for a daemon, authenticated with {@code token}. Paths are made
+   * absolute since the daemon runs in another directory.
+   */
+  DaemonRequest toRequest(String token) {
+    DaemonRequest request = new DaemonRequest();
+    request.token = token;
+    request.title = title;
+    request.applicationApk = applicationApk.getAbsoluteFile();
+    request.instrumentationApk = instrumentationApk.getAbsoluteFile();
+    request.output = output.getAbsoluteFile();
+    request.debug = debug;
+    request.noAnimations = noAnimations;
+    request.packScreenshots = packScreenshots;
+    request.prepareDevice = prepareDevice;
+    request.devicePreparations.addAll(devicePreparations);
+    request.precompile = precompile;
+    request.resetStrategy = resetStrategy;
+    request.adbTimeout = adbTimeout;
+    request.idleTimeout = idleTimeout;
+    request.serials.addAll(serials);
+    request.coverage.addAll(coverage);
+    request.className = className;
+    request.methodName = methodName;
+    request.testSize = testSize;
+    request.failIfNoDeviceConnected = failIfNoDeviceConnected;
+    request.sharding = sharding;
+    request.dynamicScheduling = dynamicScheduling;
+    request.shardHistory = shardHistory != null ? shardHistory.getAbsoluteFile() : null;
+    request.forkDevices = forkDevices;
+    request.resume = resume;
+    request.leasePolicy = leasePolicy;
+    request.maxConcurrentDevices = maxConcurrentDevices;
+    request.maxConcurrentInstalls = maxConcurrentInstalls;
+    request.maxConcurrentPulls = maxConcurrentPulls;
+    request.maxConcurrentShells = maxConcurrentShells;
+    request.maxConcurrentLogcats = maxConcurrentLogcats;
+    return request;
+  }
+
+  private SpoonDeviceRunner getTestRunner(String serial, SpoonInstrumentationInfo testInfo,
+      TestBatch batch, AdbThrottle throttle) {
     return new SpoonDeviceRunner(androidSdk, applicationApk, instrumentationApk, output, serial,
-        debug, noAnimations, adbTimeout, classpath, testInfo, className, methodName, testSize);
+        debug, noAnimations, packScreenshots, prepareDevice, devicePreparations, precompile,
+        resetStrategy, adbTimeout, idleTimeout, classpath, testInfo, className, methodName,
+        testSize, batch, throttle);
   }
 
   /** Build a test suite for the specified devices and configuration. */
@@ -208,13 +624,34 @@ public final class SpoonRunner {
     private File output;
     private boolean debug = false;
     private Set<String> serials;
+    private Set<CoverageDimension> coverage = Collections.emptySet();
     private String classpath = System.getProperty("java.class.path");
     private String className;
     private String methodName;
     private boolean noAnimations;
+    private boolean packScreenshots;
+    private boolean prepareDevice;
+    private final List<String> devicePreparations = new ArrayList<String>();
+    private boolean precompile;
+    private ResetStrategy resetStrategy = ResetStrategy.NONE;
     private IRemoteAndroidTestRunner.TestSize testSize;
     private int adbTimeout;
+    private int idleTimeout;
     private boolean failIfNoDeviceConnected;
+    private boolean sharding;
+    private boolean dynamicScheduling;
+    private File shardHistory;
+    private boolean forkDevices;
+    private boolean resume;
+    private LeasePolicy leasePolicy = LeasePolicy.NONE;
+    private Set<String> leasedDevices = Collections.emptySet();
+    private int maxConcurrentDevices;
+    private int maxConcurrentInstalls;
+    private int maxConcurrentPulls;
+    private int maxConcurrentShells;
+    private int maxConcurrentLogcats;
+    private boolean useDaemon;
+    private int daemonPort = SpoonDaemon.DEFAULT_PORT;
 
     /** Identifying title for this execution. */
     public Builder setTitle(String title) {
@@ -266,6 +703,62 @@ public final class SpoonRunner {
       return this;
     }
 
+    /**
+     * Whether to pack the screenshots of each device into a single file instead of keeping one
+     * file per screenshot. Reports of packed executions have to be served over HTTP.
+     */
+    public Builder setPackScreenshots(boolean packScreenshots) {
+      this.packScreenshots = packScreenshots;
+      return this;
+    }
+
+    /**
+     * Whether to disable system animations, keep the screen on and enlarge the log buffer while
+     * tests execute. Original settings are restored afterwards.
+     */
+    public Builder setPrepareDevice(boolean prepareDevice) {
+      this.prepareDevice = prepareDevice;
+      return this;
+    }
+
+    /**
+     * Apply a {@link DevicePreparation} to every device before its tests execute, after the
+     * standard ones, and undo it afterwards.
+     */
+    public Builder addDevicePreparation(Class<? extends DevicePreparation> preparation) {
+      checkNotNull(preparation);
+      devicePreparations.add(preparation.getName());
+      return this;
+    }
+
+    /**
+     * Whether to compile the application and instrumentation ahead of time before executing tests
+     * on devices which support it.
+     */
+    public Builder setPrecompile(boolean precompile) {
+      this.precompile = precompile;
+      return this;
+    }
+
+    /** How to reset application state before each batch after the first on a device. */
+    public Builder setResetStrategy(ResetStrategy resetStrategy) {
+      checkNotNull(resetStrategy);
+      this.resetStrategy = resetStrategy;
+      return this;
+    }
+
+    /**
+     * Time in milliseconds a device may go without reporting test progress before its
+     * instrumentation is cancelled, or {@code 0} to only rely on the ADB timeout. The test which
+     * was executing is marked as an error and tests which did not run are handed to other devices
+     * when tests are distributed.
+     */
+    public Builder setIdleTimeout(int idleTimeout) {
+      checkArgument(idleTimeout >= 0, "Idle timeout cannot be negative.");
+      this.idleTimeout = idleTimeout;
+      return this;
+    }
+
     /** Set ADB timeout. */
     public Builder setAdbTimeout(int value) {
       this.adbTimeout = value;
@@ -283,6 +776,16 @@ public final class SpoonRunner {
       return this;
     }
 
+    /**
+     * Execute on as few of the devices as cover every value of {@code coverage} which they have,
+     * leaving the others untouched. Empty to use every device.
+     */
+    public Builder setCoverage(Set<CoverageDimension> coverage) {
+      checkNotNull(coverage);
+      this.coverage = coverage;
+      return this;
+    }
+
     /** Use all currently attached device serials when executed. */
     public Builder useAllAttachedDevices() {
       if (this.serials != null) {
@@ -295,6 +798,98 @@ public final class SpoonRunner {
       return this;
     }
 
+    /**
+     * Whether to execute each device in its own JVM process when running on more than one device.
+     * By default all devices are driven from threads sharing this process' debug bridge.
+     */
+    public Builder setForkDevices(boolean forkDevices) {
+      this.forkDevices = forkDevices;
+      return this;
+    }
+
+    /**
+     * Whether to resume a previous execution into the same output directory, only executing the
+     * tests which have no result recorded in its journal.
+     */
+    public Builder setResume(boolean resume) {
+      this.resume = resume;
+      return this;
+    }
+
+    /** How to claim devices against other executions on this host. */
+    public Builder setLeasePolicy(LeasePolicy leasePolicy) {
+      checkNotNull(leasePolicy);
+      this.leasePolicy = leasePolicy;
+      return this;
+    }
+
+    /**
+     * Devices which the caller already leases for the whole execution, such as the emulators of
+     * an {@link EmulatorPool}. They are used whatever the lease policy and not leased again.
+     */
+    public Builder setLeasedDevices(Set<String> leasedDevices) {
+      checkNotNull(leasedDevices);
+      this.leasedDevices = leasedDevices;
+      return this;
+    }
+
+    /**
+     * Whether to submit the execution to a {@link SpoonDaemon}. If no daemon is listening the
+     * execution falls back to running in this process.
+     */
+    public Builder setUseDaemon(boolean useDaemon) {
+      this.useDaemon = useDaemon;
+      return this;
+    }
+
+    /** Local port on which the daemon is listening. */
+    public Builder setDaemonPort(int daemonPort) {
+      checkArgument(daemonPort > 0, "Daemon port must be positive.");
+      this.daemonPort = daemonPort;
+      return this;
+    }
+
+    /** Maximum number of devices to execute at the same time or {@code 0} for no limit. */
+    public Builder setMaxConcurrentDevices(int maxConcurrentDevices) {
+      checkArgument(maxConcurrentDevices >= 0, "Device limit cannot be negative.");
+      this.maxConcurrentDevices = maxConcurrentDevices;
+      return this;
+    }
+
+    /** Maximum number of devices installing APKs at the same time or {@code 0} for no limit. */
+    public Builder setMaxConcurrentInstalls(int maxConcurrentInstalls) {
+      checkArgument(maxConcurrentInstalls >= 0, "Install limit cannot be negative.");
+      this.maxConcurrentInstalls = maxConcurrentInstalls;
+      return this;
+    }
+
+    /** Maximum number of devices pulling files at the same time or {@code 0} for no limit. */
+    public Builder setMaxConcurrentPulls(int maxConcurrentPulls) {
+      checkArgument(maxConcurrentPulls >= 0, "Pull limit cannot be negative.");
+      this.maxConcurrentPulls = maxConcurrentPulls;
+      return this;
+    }
+
+    /**
+     * Maximum number of devices executing short shell commands at the same time or {@code 0} for
+     * no limit. Instrumentation is not affected.
+     */
+    public Builder setMaxConcurrentShells(int maxConcurrentShells) {
+      checkArgument(maxConcurrentShells >= 0, "Shell limit cannot be negative.");
+      this.maxConcurrentShells = maxConcurrentShells;
+      return this;
+    }
+
+    /**
+     * Maximum number of devices streaming logcat at the same time or {@code 0} for no limit.
+     * Devices waiting for a slot keep executing tests but miss their log output until then.
+     */
+    public Builder setMaxConcurrentLogcats(int maxConcurrentLogcats) {
+      checkArgument(maxConcurrentLogcats >= 0, "Logcat limit cannot be negative.");
+      this.maxConcurrentLogcats = maxConcurrentLogcats;
+      return this;
+    }
+
     /** Classpath to use for new JVM processes. */
     public Builder setClasspath(String classpath) {
       checkNotNull(classpath, "Classpath cannot be null.");
@@ -322,6 +917,33 @@ public final class SpoonRunner {
       return this;
     }
 
+    /**
+     * Whether to split the tests across the devices so that each test runs on a single device,
+     * rather than running the whole suite on every device.
+     */
+    public Builder setSharding(boolean sharding) {
+      this.sharding = sharding;
+      return this;
+    }
+
+    /**
+     * A {@code result.json} from a previous execution whose test durations are used to balance
+     * shards. Defaults to the one in the output directory.
+     */
+    public Builder setShardHistory(File shardHistory) {
+      this.shardHistory = shardHistory;
+      return this;
+    }
+
+    /**
+     * Whether to keep a shared queue of test classes from which each device pulls its next class
+     * when it becomes idle. Devices are driven from threads within this process.
+     */
+    public Builder setDynamicScheduling(boolean dynamicScheduling) {
+      this.dynamicScheduling = dynamicScheduling;
+      return this;
+    }
+
     public SpoonRunner build() {
       checkNotNull(androidSdk, "SDK is required.");
       checkArgument(androidSdk.exists(), "SDK path does not exist.");
@@ -333,10 +955,18 @@ public final class SpoonRunner {
         checkArgument(!Strings.isNullOrEmpty(className),
             "Must specify class name if you're specifying a method name.");
       }
+      checkArgument(!(sharding && dynamicScheduling),
+          "Sharding and dynamic scheduling cannot be combined.");
+      checkArgument(!(forkDevices && dynamicScheduling),
+          "Dynamic scheduling requires devices to run in this process.");
 
       return new SpoonRunner(title, androidSdk, applicationApk, instrumentationApk, output, debug,
-          noAnimations, adbTimeout, serials, classpath, className, methodName, testSize,
-          failIfNoDeviceConnected);
+          noAnimations, packScreenshots, prepareDevice, devicePreparations, precompile,
+          resetStrategy, adbTimeout, idleTimeout, serials, coverage, classpath, className,
+          methodName, testSize, failIfNoDeviceConnected, sharding, dynamicScheduling, shardHistory,
+          forkDevices, resume, leasePolicy, leasedDevices, maxConcurrentDevices,
+          maxConcurrentInstalls, maxConcurrentPulls, maxConcurrentShells, maxConcurrentLogcats,
+          useDaemon, daemonPort);
     }
   }
 
@@ -380,10 +1010,97 @@ public final class SpoonRunner {
     @Parameter(names = { "--no-animations" }, description = "Disable animated gif generation")
     public boolean noAnimations;
 
+    @Parameter(names = { "--pack-screenshots" },
+        description = "Pack each device's screenshots into a single file")
+    public boolean packScreenshots;
+
+    @Parameter(names = { "--prepare-device" },
+        description = "Disable system animations and keep the screen on while testing")
+    public boolean prepareDevice;
+
+    @Parameter(names = { "--prepare-with" },
+        description = "DevicePreparation class to apply to devices while testing (repeatable)")
+    public List<String> devicePreparations = new ArrayList<String>();
+
+    @Parameter(names = { "--precompile" },
+        description = "Compile the APKs ahead of time on devices before testing")
+    public boolean precompile;
+
+    @Parameter(names = { "--reset" }, converter = ResetStrategyConverter.class,
+        description = "Reset app state between batches (none, clear, reinstall)")
+    public ResetStrategy reset = ResetStrategy.NONE;
+
+    @Parameter(names = { "--cover" },
+        description = "Only use devices needed to cover api-level, locale, manufacturer, emulator")
+    public String cover;
+
     @Parameter(names = { "--adb-timeout" },
         description = "Set maximum execution time per test in seconds (10min default)")
     public int adbTimeoutSeconds = DEFAULT_ADB_TIMEOUT;
 
+    @Parameter(names = { "--idle-timeout" },
+        description = "Cancel tests after this many seconds without progress (0 disables)")
+    public int idleTimeoutSeconds;
+
+    @Parameter(names = { "--shard" },
+        description = "Split tests across devices instead of running all tests on each device")
+    public boolean shard;
+
+    @Parameter(names = { "--shard-history" }, converter = FileConverter.class,
+        description = "Previous result.json used to balance shards (defaults to output's)")
+    public File shardHistory;
+
+    @Parameter(names = { "--dynamic" },
+        description = "Hand out test classes to devices as they become idle")
+    public boolean dynamic;
+
+    @Parameter(names = { "--fork-devices" },
+        description = "Run each device in a separate JVM process")
+    public boolean forkDevices;
+
+    @Parameter(names = { "--resume" },
+        description = "Only execute tests without a result from the previous, interrupted run")
+    public boolean resume;
+
+    @Parameter(names = { "--lease" }, converter = LeasePolicyConverter.class,
+        description = "Claim devices against other executions on this host (none, wait, available)")
+    public LeasePolicy lease = LeasePolicy.NONE;
+
+    @Parameter(names = { "--avd" },
+        description = "Boot this AVD from a snapshot and test on it (repeatable)")
+    public List<String> avds = new ArrayList<String>();
+
+    @Parameter(names = { "--snapshot" },
+        description = "Snapshot which --avd emulators boot from and are restored to")
+    public String snapshot = EmulatorPool.QUICKBOOT_SNAPSHOT;
+
+    @Parameter(names = { "--max-devices" },
+        description = "Maximum number of devices to execute at once (0 for no limit)")
+    public int maxDevices;
+
+    @Parameter(names = { "--max-installs" },
+        description = "Maximum number of devices installing at once (0 for no limit)")
+    public int maxInstalls;
+
+    @Parameter(names = { "--max-pulls" },
+        description = "Maximum number of devices pulling files at once (0 for no limit)")
+    public int maxPulls;
+
+    @Parameter(names = { "--max-shells" },
+        description = "Maximum number of devices running shell commands at once (0 for no limit)")
+    public int maxShells;
+
+    @Parameter(names = { "--max-logcats" },
+        description = "Maximum number of devices streaming logcat at once (0 for no limit)")
+    public int maxLogcats;
+
+    @Parameter(names = { "--use-daemon" },
+        description = "Submit the execution to a running daemon, if there is one")
+    public boolean useDaemon;
+
+    @Parameter(names = { "--daemon-port" }, description = "Port of the daemon to submit to")
+    public int daemonPort = SpoonDaemon.DEFAULT_PORT;
+
     @Parameter(names = { "--debug" }, hidden = true)
     public boolean debug;
 
@@ -416,6 +1133,26 @@ public final class SpoonRunner {
     }
   }
 
+  public static class ResetStrategyConverter implements IStringConverter<ResetStrategy> {
+    @Override public ResetStrategy convert(String value) {
+      try {
+        return ResetStrategy.valueOf(value.toUpperCase(Locale.US));
+      } catch (IllegalArgumentException e) {
+        throw new ParameterException("Unknown reset strategy: " + value);
+      }
+    }
+  }
+
+  public static class LeasePolicyConverter implements IStringConverter<LeasePolicy> {
+    @Override public LeasePolicy convert(String value) {
+      try {
+        return LeasePolicy.valueOf(value.toUpperCase(Locale.US));
+      } catch (IllegalArgumentException e) {
+        throw new ParameterException("Unknown lease policy: " + value);
+      }
+    }
+  }
+
   public static void main(String... args) {
     CommandLineArgs parsedArgs = new CommandLineArgs();
     JCommander jc = new JCommander(parsedArgs);
@@ -433,8 +1170,23 @@ public final class SpoonRunner {
       jc.usage();
       return;
     }
+    Set<CoverageDimension> coverage;
+    List<Class<? extends DevicePreparation>> devicePreparations =
+        new ArrayList<Class<? extends DevicePreparation>>();
+    try {
+      coverage = CoverageDimension.parseAll(parsedArgs.cover);
+      for (String className : parsedArgs.devicePreparations) {
+        devicePreparations.add(DevicePreparations.load(className));
+      }
+    } catch (IllegalArgumentException e) {
+      StringBuilder out = new StringBuilder(e.getMessage()).append("\n\n");
+      jc.usage(out);
+      System.err.println(out.toString());
+      System.exit(1);
+      return;
+    }
 
-    SpoonRunner spoonRunner = new SpoonRunner.Builder() //
+    SpoonRunner.Builder builder = new SpoonRunner.Builder() //
         .setTitle(parsedArgs.title)
         .setApplicationApk(parsedArgs.apk)
         .setInstrumentationApk(parsedArgs.testApk)
@@ -442,15 +1194,67 @@ public final class SpoonRunner {
         .setDebug(parsedArgs.debug)
         .setAndroidSdk(parsedArgs.sdk)
         .setNoAnimations(parsedArgs.noAnimations)
+        .setPackScreenshots(parsedArgs.packScreenshots)
+        .setPrepareDevice(parsedArgs.prepareDevice)
+        .setPrecompile(parsedArgs.precompile)
+        .setResetStrategy(parsedArgs.reset)
         .setTestSize(parsedArgs.size)
         .setAdbTimeout(parsedArgs.adbTimeoutSeconds * 1000)
+        .setIdleTimeout(parsedArgs.idleTimeoutSeconds * 1000)
         .setFailIfNoDeviceConnected(parsedArgs.failIfNoDeviceConnected)
         .setClassName(parsedArgs.className)
         .setMethodName(parsedArgs.methodName)
-        .useAllAttachedDevices()
-        .build();
+        .setSharding(parsedArgs.shard)
+        .setShardHistory(parsedArgs.shardHistory)
+        .setDynamicScheduling(parsedArgs.dynamic)
+        .setForkDevices(parsedArgs.forkDevices)
+        .setResume(parsedArgs.resume)
+        .setLeasePolicy(parsedArgs.lease)
+        .setMaxConcurrentDevices(parsedArgs.maxDevices)
+        .setMaxConcurrentInstalls(parsedArgs.maxInstalls)
+        .setMaxConcurrentPulls(parsedArgs.maxPulls)
+        .setMaxConcurrentShells(parsedArgs.maxShells)
+        .setMaxConcurrentLogcats(parsedArgs.maxLogcats)
+        .setUseDaemon(parsedArgs.useDaemon)
+        .setDaemonPort(parsedArgs.daemonPort)
+        .setCoverage(coverage);
+    for (Class<? extends DevicePreparation> preparation : devicePreparations) {
+      builder.addDevicePreparation(preparation);
+    }
 
-    if (!spoonRunner.run() && parsedArgs.failOnFailure) {
+    EmulatorPool emulators = null;
+    if (parsedArgs.avds.isEmpty()) {
+      builder.useAllAttachedDevices();
+    } else {
+      emulators = EmulatorPool.fromSdk(parsedArgs.sdk, parsedArgs.avds, parsedArgs.snapshot,
+          parsedArgs.debug);
+      try {
+        Set<String> serials = emulators.start();
+        for (String serial : serials) {
+          builder.addDevice(serial);
+        }
+        builder.setLeasedDevices(serials);
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to start emulators.", e);
+      }
+    }
+
+    boolean success;
+    try {
+      success = builder.build().run();
+    } finally {
+      if (emulators != null) {
+        // Leave the emulators running in a clean state for the next execution.
+        try {
+          emulators.reset();
+        } catch (IOException e) {
+          logInfo("Unable to restore emulators: %s", e.getMessage());
+        } finally {
+          emulators.release();
+        }
+      }
+    }
+    if (!success && parsedArgs.failOnFailure) {
       System.exit(1);
     }
   }
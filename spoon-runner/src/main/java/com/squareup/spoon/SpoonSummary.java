@@ -2,13 +2,17 @@ package com.squareup.spoon;
 
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.Collections.unmodifiableList;
 import static java.util.Collections.unmodifiableMap;
 
 /** Result summary of executing instrumentation on multiple devices. */
@@ -18,14 +22,25 @@ public final class SpoonSummary {
   private final long started;
   private final long duration;
   private final Map<String, DeviceResult> results;
+  private final Map<String, Long> shardEstimates;
+  private final Map<String, Map<DeviceTest, Long>> precompileBaselines;
+  private final Map<String, String> skippedDevices;
+  private final List<DeviceTest> unexecutedTests;
 
   private SpoonSummary(String title, IRemoteAndroidTestRunner.TestSize testSize, long started,
-      long duration, Map<String, DeviceResult> results) {
+      long duration, Map<String, DeviceResult> results, Map<String, Long> shardEstimates,
+      Map<String, Map<DeviceTest, Long>> precompileBaselines, Map<String, String> skippedDevices,
+      List<DeviceTest> unexecutedTests) {
     this.title = title;
     this.testSize = testSize;
     this.started = started;
     this.duration = duration;
     this.results = unmodifiableMap(new HashMap<String, DeviceResult>(results));
+    this.shardEstimates = unmodifiableMap(new HashMap<String, Long>(shardEstimates));
+    this.precompileBaselines =
+        unmodifiableMap(new HashMap<String, Map<DeviceTest, Long>>(precompileBaselines));
+    this.skippedDevices = unmodifiableMap(new HashMap<String, String>(skippedDevices));
+    this.unexecutedTests = unmodifiableList(new ArrayList<DeviceTest>(unexecutedTests));
   }
 
   /** Execution title. */
@@ -53,8 +68,43 @@ public final class SpoonSummary {
     return results;
   }
 
+  /**
+   * Predicted length (in seconds) of the tests sharded onto each device, by serial number. Empty
+   * unless the suite was sharded.
+   */
+  public Map<String, Long> getShardEstimates() {
+    return shardEstimates;
+  }
+
+  /**
+   * Length (in seconds) which the tests each precompiled device executed took in an earlier
+   * execution without precompilation, by serial number and test. Tests which have no recorded
+   * length are left out, and it is empty if there was no such execution.
+   */
+  public Map<String, Map<DeviceTest, Long>> getPrecompileBaselines() {
+    return precompileBaselines;
+  }
+
+  /**
+   * Devices which were not used because they cannot run the APKs, by serial number, with the
+   * reason why.
+   */
+  public Map<String, String> getSkippedDevices() {
+    return skippedDevices;
+  }
+
+  /** Tests which were distributed but never executed because no device was left to run them. */
+  public List<DeviceTest> getUnexecutedTests() {
+    return unexecutedTests;
+  }
+
   static class Builder {
     private final Map<String, DeviceResult> results = new HashMap<String, DeviceResult>();
+    private final Map<String, Long> shardEstimates = new HashMap<String, Long>();
+    private final Map<String, Map<DeviceTest, Long>> precompileBaselines =
+        new HashMap<String, Map<DeviceTest, Long>>();
+    private final Map<String, String> skippedDevices = new HashMap<String, String>();
+    private final List<DeviceTest> unexecutedTests = new ArrayList<DeviceTest>();
     private String title;
     private IRemoteAndroidTestRunner.TestSize testSize;
     private long started;
@@ -86,6 +136,75 @@ public final class SpoonSummary {
       return this;
     }
 
+    /**
+     * Combine results recorded for {@code serial} by an earlier attempt of this execution with the
+     * result of this attempt, if any.
+     */
+    Builder addEarlierResults(String serial, DeviceDetails details,
+        Map<DeviceTest, DeviceTestResult> earlierResults) {
+      checkNotNull(serial);
+      checkNotNull(earlierResults);
+      synchronized (results) {
+        DeviceResult result = results.get(serial);
+        if (result == null) {
+          result = new DeviceResult.Builder().build();
+        }
+        results.put(serial, result.withEarlierResults(details, earlierResults));
+      }
+      return this;
+    }
+
+    Builder addShardEstimate(String serial, long estimate) {
+      checkNotNull(serial);
+      checkArgument(estimate >= 0, "Estimate must not be negative.");
+      synchronized (shardEstimates) {
+        shardEstimates.put(serial, estimate);
+      }
+      return this;
+    }
+
+    Builder addSkippedDevice(String serial, String reason) {
+      checkNotNull(serial);
+      checkNotNull(reason);
+      synchronized (skippedDevices) {
+        skippedDevices.put(serial, reason);
+      }
+      return this;
+    }
+
+    Builder addUnexecutedTests(Collection<DeviceTest> tests) {
+      checkNotNull(tests);
+      synchronized (unexecutedTests) {
+        unexecutedTests.addAll(tests);
+      }
+      return this;
+    }
+
+    /** Look up the earlier length of the tests of every precompiled device in {@code history}. */
+    Builder addPrecompileBaselines(TestHistory history) {
+      checkNotNull(history);
+      if (history.size() == 0) {
+        return this;
+      }
+      synchronized (results) {
+        for (Map.Entry<String, DeviceResult> entry : results.entrySet()) {
+          DeviceResult result = entry.getValue();
+          if (!result.isPrecompiled()) {
+            continue;
+          }
+          Map<DeviceTest, Long> baselines = new HashMap<DeviceTest, Long>();
+          for (DeviceTest test : result.getTestResults().keySet()) {
+            Long duration = history.getRecordedDuration(test);
+            if (duration != null) {
+              baselines.put(test, Math.round(duration / 1000.0));
+            }
+          }
+          precompileBaselines.put(entry.getKey(), baselines);
+        }
+      }
+      return this;
+    }
+
     Builder start() {
       checkArgument(start == 0, "Start already called.");
       start = System.nanoTime();
@@ -104,7 +223,8 @@ public final class SpoonSummary {
       checkNotNull(title, "Title is required.");
       checkNotNull(started, "Never started.");
 
-      return new SpoonSummary(title, testSize, started, duration, results);
+      return new SpoonSummary(title, testSize, started, duration, results, shardEstimates,
+          precompileBaselines, skippedDevices, unexecutedTests);
     }
   }
 }
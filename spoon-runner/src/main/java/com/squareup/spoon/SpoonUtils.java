@@ -1,8 +1,10 @@
 package com.squareup.spoon;
 
 import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.CollectingOutputReceiver;
 import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.IDevice;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.TypeAdapter;
@@ -18,6 +20,8 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 import javax.imageio.ImageIO;
 import org.apache.commons.io.FileUtils;
@@ -28,23 +32,32 @@ import static com.android.ddmlib.FileListingService.TYPE_DIRECTORY;
 /** Utilities for executing instrumentation tests on devices. */
 final class SpoonUtils {
   private static final Pattern SERIAL_VALIDATION = Pattern.compile("[^a-zA-Z0-9_-]");
-  static final Gson GSON = new GsonBuilder() //
-      .registerTypeAdapter(File.class, new TypeAdapter<File>() {
-        @Override public void write(JsonWriter jsonWriter, File file) throws IOException {
-          if (file == null) {
-            jsonWriter.nullValue();
-          } else {
-            jsonWriter.value(file.getAbsolutePath());
+  static final Gson GSON = newGsonBuilder().setPrettyPrinting().create();
+  /** Produces single-line JSON for streaming. */
+  static final Gson GSON_COMPACT = newGsonBuilder().create();
+
+  /** Guards the process-wide bridge which concurrent executions share. */
+  private static final Object ADB_LOCK = new Object();
+  private static AndroidDebugBridge sharedAdb;
+  private static int sharedAdbUsers;
+
+  private static GsonBuilder newGsonBuilder() {
+    return new GsonBuilder() //
+        .registerTypeAdapter(File.class, new TypeAdapter<File>() {
+          @Override public void write(JsonWriter jsonWriter, File file) throws IOException {
+            if (file == null) {
+              jsonWriter.nullValue();
+            } else {
+              jsonWriter.value(file.getAbsolutePath());
+            }
           }
-        }
 
-        @Override public File read(JsonReader jsonReader) throws IOException {
-          return new File(jsonReader.nextString());
-        }
-      }) //
-      .enableComplexMapKeySerialization() //
-      .setPrettyPrinting() //
-      .create();
+          @Override public File read(JsonReader jsonReader) throws IOException {
+            return new File(jsonReader.nextString());
+          }
+        }) //
+        .enableComplexMapKeySerialization();
+  }
 
   /** Fetch or create a real device that corresponds to a device model. */
   static IDevice obtainRealDevice(AndroidDebugBridge adb, String serial) {
@@ -95,6 +108,27 @@ final class SpoonUtils {
     return devices;
   }
 
+  /** Execute {@code command} on {@code device} and return everything it printed. */
+  static String executeShellCommand(IDevice device, String command) throws Exception {
+    CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+    device.executeShellCommand(command, receiver);
+    return receiver.getOutput();
+  }
+
+  /** {@code true} if {@code device} reports that it has finished booting. */
+  static boolean isBootCompleted(IDevice device, AdbThrottle throttle) {
+    CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+    throttle.acquire(AdbThrottle.Operation.SHELL, device.getSerialNumber());
+    try {
+      device.executeShellCommand("getprop sys.boot_completed", receiver);
+    } catch (Exception e) {
+      return false;
+    } finally {
+      throttle.release(AdbThrottle.Operation.SHELL);
+    }
+    return "1".equals(receiver.getOutput().trim());
+  }
+
   /** Get an {@link com.android.ddmlib.AndroidDebugBridge} instance given an SDK path. */
   static AndroidDebugBridge initAdb(File sdk) {
     AndroidDebugBridge.init(false);
@@ -104,6 +138,39 @@ final class SpoonUtils {
     return adb;
   }
 
+  /**
+   * Like {@link #initAdb} but shares the bridge with other executions in this process, which
+   * must each pair this with {@link #releaseSharedAdb}.
+   */
+  static AndroidDebugBridge obtainSharedAdb(File sdk) {
+    synchronized (ADB_LOCK) {
+      if (sharedAdb == null) {
+        sharedAdb = initAdb(sdk);
+      }
+      sharedAdbUsers++;
+      return sharedAdb;
+    }
+  }
+
+  /** Terminate the shared bridge once its last user is done with it. */
+  static void releaseSharedAdb() {
+    synchronized (ADB_LOCK) {
+      if (--sharedAdbUsers == 0) {
+        sharedAdb = null;
+        DeviceDetails.clearCache();
+        AndroidDebugBridge.terminate();
+      }
+    }
+  }
+
+  /** Create an executor whose idle threads are reused for the work of subsequent devices. */
+  static ExecutorService newDeviceExecutor() {
+    return Executors.newCachedThreadPool(new ThreadFactoryBuilder() //
+        .setNameFormat("spoon-device-%d") //
+        .setDaemon(true) //
+        .build());
+  }
+
   static void createAnimatedGif(List<File> testScreenshots, File animatedGif) throws IOException {
     AnimatedGifEncoder encoder = new AnimatedGifEncoder();
     encoder.start(animatedGif.getAbsolutePath());
@@ -0,0 +1,84 @@
+package com.squareup.spoon;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.Collections.unmodifiableList;
+
+/** A group of tests which are executed by a single instrumentation invocation. */
+final class TestBatch {
+  private final List<DeviceTest> tests;
+  private final List<String> targets;
+
+  private TestBatch(List<DeviceTest> tests, List<String> targets) {
+    this.tests = unmodifiableList(new ArrayList<DeviceTest>(tests));
+    this.targets = unmodifiableList(new ArrayList<String>(targets));
+  }
+
+  /** Tests contained in this batch. */
+  List<DeviceTest> getTests() {
+    return tests;
+  }
+
+  /**
+   * Instrumentation class arguments which select exactly the tests of this batch. Classes whose
+   * methods are all part of the batch are referenced by name, all others by {@code class#method}.
+   */
+  List<String> getTargets() {
+    return targets;
+  }
+
+  @Override public String toString() {
+    return targets.toString();
+  }
+
+  /**
+   * Create a batch from {@code tests}.
+   *
+   * @param tests Tests to execute.
+   * @param allTests Every test known to the instrumentation, used to decide which classes can be
+   *        selected as a whole.
+   */
+  static TestBatch of(Collection<DeviceTest> tests, Collection<DeviceTest> allTests) {
+    checkNotNull(tests);
+    checkNotNull(allTests);
+    checkArgument(!tests.isEmpty(), "Batch must contain at least one test.");
+
+    Map<String, Integer> classSizes = new LinkedHashMap<String, Integer>();
+    for (DeviceTest test : allTests) {
+      Integer size = classSizes.get(test.getClassName());
+      classSizes.put(test.getClassName(), size == null ? 1 : size + 1);
+    }
+
+    Map<String, Set<DeviceTest>> byClass = new LinkedHashMap<String, Set<DeviceTest>>();
+    for (DeviceTest test : tests) {
+      Set<DeviceTest> classTests = byClass.get(test.getClassName());
+      if (classTests == null) {
+        classTests = new LinkedHashSet<DeviceTest>();
+        byClass.put(test.getClassName(), classTests);
+      }
+      classTests.add(test);
+    }
+
+    List<String> targets = new ArrayList<String>();
+    for (Map.Entry<String, Set<DeviceTest>> entry : byClass.entrySet()) {
+      String className = entry.getKey();
+      Integer classSize = classSizes.get(className);
+      if (classSize != null && classSize == entry.getValue().size()) {
+        targets.add(className);
+      } else {
+        for (DeviceTest test : entry.getValue()) {
+          targets.add(className + "#" + test.getMethodName());
+        }
+      }
+    }
+    return new TestBatch(new ArrayList<DeviceTest>(tests), targets);
+  }
+}
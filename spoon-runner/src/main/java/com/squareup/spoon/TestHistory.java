@@ -0,0 +1,144 @@
+package com.squareup.spoon;
+
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.io.IOUtils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/** Per-test duration estimates gathered from the {@code result.json} of a previous execution. */
+final class TestHistory {
+  /** Estimate used for unknown tests when there is no history at all, in milliseconds. */
+  static final long DEFAULT_ESTIMATE = 1000;
+  /** Durations are recorded in whole seconds, so credit each known test with half of one more. */
+  private static final long ROUNDING_ALLOWANCE = 500;
+
+  private final Map<DeviceTest, Long> estimates;
+  private final Map<DeviceTest, Long> recorded;
+  private final long defaultEstimate;
+
+  TestHistory(Map<DeviceTest, Long> estimates) {
+    this(estimates, estimates);
+  }
+
+  private TestHistory(Map<DeviceTest, Long> estimates, Map<DeviceTest, Long> recorded) {
+    checkNotNull(estimates);
+    checkNotNull(recorded);
+    this.estimates = new HashMap<DeviceTest, Long>(estimates);
+    this.recorded = new HashMap<DeviceTest, Long>(recorded);
+
+    long total = 0;
+    for (long estimate : estimates.values()) {
+      total += estimate;
+    }
+    this.defaultEstimate = estimates.isEmpty() ? DEFAULT_ESTIMATE : total / estimates.size();
+  }
+
+  /** An empty history in which every test receives the same estimate. */
+  static TestHistory empty() {
+    return new TestHistory(new HashMap<DeviceTest, Long>());
+  }
+
+  /** Expected duration of {@code test} in milliseconds. Unknown tests receive the mean estimate. */
+  long estimate(DeviceTest test) {
+    Long estimate = estimates.get(test);
+    return estimate != null ? estimate : defaultEstimate;
+  }
+
+  /** Expected combined duration of {@code tests} in milliseconds. */
+  long estimate(Collection<DeviceTest> tests) {
+    long total = 0;
+    for (DeviceTest test : tests) {
+      total += estimate(test);
+    }
+    return total;
+  }
+
+  /**
+   * Duration of {@code test} in milliseconds as it was recorded, without any allowance, or
+   * {@code null} if it has none.
+   */
+  Long getRecordedDuration(DeviceTest test) {
+    return recorded.get(test);
+  }
+
+  /** Number of tests with a recorded duration. */
+  int size() {
+    return estimates.size();
+  }
+
+  /** Build estimates from the average duration of each test across all devices of a summary. */
+  static TestHistory from(SpoonSummary summary) {
+    return from(summary, false);
+  }
+
+  /**
+   * Build estimates from the average duration of each test across the devices of a summary,
+   * leaving out devices whose APKs were compiled ahead of time if {@code skipPrecompiled}.
+   */
+  static TestHistory from(SpoonSummary summary, boolean skipPrecompiled) {
+    Map<DeviceTest, Long> totals = new HashMap<DeviceTest, Long>();
+    Map<DeviceTest, Integer> counts = new HashMap<DeviceTest, Integer>();
+    for (DeviceResult deviceResult : summary.getResults().values()) {
+      if (skipPrecompiled && deviceResult.isPrecompiled()) {
+        continue;
+      }
+      Map<DeviceTest, DeviceTestResult> testResults = deviceResult.getTestResults();
+      for (Map.Entry<DeviceTest, DeviceTestResult> entry : testResults.entrySet()) {
+        long duration = entry.getValue().getDuration();
+        if (duration < 0) {
+          continue; // Test never finished.
+        }
+        DeviceTest test = entry.getKey();
+        Long total = totals.get(test);
+        Integer count = counts.get(test);
+        totals.put(test, (total == null ? 0 : total) + duration * 1000);
+        counts.put(test, (count == null ? 0 : count) + 1);
+      }
+    }
+
+    Map<DeviceTest, Long> estimates = new HashMap<DeviceTest, Long>();
+    Map<DeviceTest, Long> recorded = new HashMap<DeviceTest, Long>();
+    for (Map.Entry<DeviceTest, Long> entry : totals.entrySet()) {
+      long mean = entry.getValue() / counts.get(entry.getKey());
+      recorded.put(entry.getKey(), mean);
+      estimates.put(entry.getKey(), mean + ROUNDING_ALLOWANCE);
+    }
+    return new TestHistory(estimates, recorded);
+  }
+
+  /** Load a previous {@code result.json}, returning an empty history if it cannot be read. */
+  static TestHistory load(File resultJson, Gson gson) {
+    return load(resultJson, gson, false);
+  }
+
+  /**
+   * Load a previous {@code result.json}, returning an empty history if it cannot be read.
+   *
+   * @see #from(SpoonSummary, boolean)
+   */
+  static TestHistory load(File resultJson, Gson gson, boolean skipPrecompiled) {
+    if (resultJson == null || !resultJson.isFile()) {
+      return empty();
+    }
+    FileReader reader = null;
+    try {
+      reader = new FileReader(resultJson);
+      SpoonSummary summary = gson.fromJson(reader, SpoonSummary.class);
+      return summary != null ? from(summary, skipPrecompiled) : empty();
+    } catch (IOException e) {
+      logInfo("Unable to read test history from %s: %s", resultJson, e.getMessage());
+    } catch (RuntimeException e) {
+      logInfo("Unable to parse test history from %s: %s", resultJson, e.getMessage());
+    } finally {
+      IOUtils.closeQuietly(reader);
+    }
+    return empty();
+  }
+}
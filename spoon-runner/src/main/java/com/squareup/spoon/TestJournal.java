@@ -0,0 +1,208 @@
+package com.squareup.spoon;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.io.IOUtils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logError;
+
+/**
+ * Append-only record of the tests each device completed. Every device appends to its own file in
+ * the output directory as soon as each test ends so that an execution which died part way can
+ * be resumed without repeating the tests which already have a result. Later entries for a test
+ * supersede earlier ones. Tests which ended before their screenshots were collected only count as
+ * recorded once a later entry carries them, so a resumed execution runs them again.
+ */
+final class TestJournal {
+  static final String JOURNAL_DIR = "journal";
+  private static final String EXTENSION = ".json";
+  private static final String CHARSET = "UTF-8";
+
+  /** A single line of a journal. Either the device details or the result of one test. */
+  static final class Entry {
+    DeviceDetails device;
+    DeviceTest test;
+    DeviceTestResult result;
+    boolean screenshotsPending;
+  }
+
+  /** Appends entries to the journal of one device. */
+  static final class Writer {
+    private final OutputStreamWriter out;
+    private final Gson gson;
+
+    Writer(File file, Gson gson) throws IOException {
+      checkNotNull(file);
+      this.gson = checkNotNull(gson);
+      file.getParentFile().mkdirs();
+      this.out = new OutputStreamWriter(new FileOutputStream(file, true), CHARSET);
+    }
+
+    void device(DeviceDetails details) throws IOException {
+      Entry entry = new Entry();
+      entry.device = details;
+      write(entry);
+    }
+
+    /** Record the final result of {@code test}, including its screenshots. */
+    void test(DeviceTest test, DeviceTestResult result) throws IOException {
+      write(test, result, false);
+    }
+
+    /** Record that {@code test} ended while its screenshots have yet to be collected. */
+    void screenshotsPending(DeviceTest test, DeviceTestResult result) throws IOException {
+      write(test, result, true);
+    }
+
+    private void write(DeviceTest test, DeviceTestResult result, boolean screenshotsPending)
+        throws IOException {
+      Entry entry = new Entry();
+      entry.test = test;
+      entry.result = result;
+      entry.screenshotsPending = screenshotsPending;
+      write(entry);
+    }
+
+    void close() {
+      IOUtils.closeQuietly(out);
+    }
+
+    private void write(Entry entry) throws IOException {
+      // Compact JSON escapes all line breaks so each entry occupies exactly one line.
+      out.write(gson.toJson(entry));
+      out.write('\n');
+      out.flush();
+    }
+  }
+
+  private final Map<String, DeviceDetails> details = new HashMap<String, DeviceDetails>();
+  private final Map<String, Map<DeviceTest, DeviceTestResult>> results =
+      new LinkedHashMap<String, Map<DeviceTest, DeviceTestResult>>();
+
+  /** A journal without any results. */
+  static TestJournal empty() {
+    return new TestJournal();
+  }
+
+  /** The journal file of the device with the (sanitized) {@code serial}. */
+  static File fileFor(File output, String serial) {
+    return new File(new File(output, JOURNAL_DIR), serial + EXTENSION);
+  }
+
+  /** Read the journals of every device in {@code output}. Missing journals yield no results. */
+  static TestJournal load(File output, Gson gson) throws IOException {
+    TestJournal journal = empty();
+    File[] files = new File(output, JOURNAL_DIR).listFiles();
+    if (files == null) {
+      return journal;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (file.isFile() && name.endsWith(EXTENSION)) {
+        journal.read(name.substring(0, name.length() - EXTENSION.length()), file, gson);
+      }
+    }
+    return journal;
+  }
+
+  private void read(String serial, File file, Gson gson) throws IOException {
+    Map<DeviceTest, DeviceTestResult> deviceResults = new HashMap<DeviceTest, DeviceTestResult>();
+    results.put(serial, deviceResults);
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        Entry entry;
+        try {
+          entry = gson.fromJson(line, Entry.class);
+        } catch (JsonParseException e) {
+          // Most likely the last line, cut short when the execution died.
+          logError("[%s] Ignoring malformed journal entry: %s", serial, e.getMessage());
+          continue;
+        }
+        if (entry == null) {
+          continue;
+        }
+        if (entry.device != null) {
+          details.put(serial, entry.device);
+        }
+        if (entry.test != null && entry.screenshotsPending) {
+          deviceResults.remove(entry.test);
+        } else if (entry.test != null && entry.result != null) {
+          deviceResults.put(entry.test, entry.result);
+        }
+      }
+    } finally {
+      IOUtils.closeQuietly(reader);
+    }
+  }
+
+  boolean isEmpty() {
+    for (Map<DeviceTest, DeviceTestResult> deviceResults : results.values()) {
+      if (!deviceResults.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Sanitized serials of the devices which have a journal. */
+  Set<String> getSerials() {
+    return Collections.unmodifiableSet(results.keySet());
+  }
+
+  /** Details recorded for the device or {@code null}. */
+  DeviceDetails getDeviceDetails(String serial) {
+    return details.get(serial);
+  }
+
+  /** Results recorded for the device, if any. */
+  Map<DeviceTest, DeviceTestResult> getResults(String serial) {
+    Map<DeviceTest, DeviceTestResult> deviceResults = results.get(serial);
+    if (deviceResults == null) {
+      return Collections.emptyMap();
+    }
+    return Collections.unmodifiableMap(deviceResults);
+  }
+
+  /** The tests of {@code tests} which have no recorded result on the device. */
+  List<DeviceTest> unrecorded(List<DeviceTest> tests, String serial) {
+    return without(tests, getResults(serial).keySet());
+  }
+
+  /** The tests of {@code tests} which have no recorded result on any device. */
+  List<DeviceTest> unrecorded(List<DeviceTest> tests) {
+    Set<DeviceTest> recorded = new HashSet<DeviceTest>();
+    for (Map<DeviceTest, DeviceTestResult> deviceResults : results.values()) {
+      recorded.addAll(deviceResults.keySet());
+    }
+    return without(tests, recorded);
+  }
+
+  private static List<DeviceTest> without(List<DeviceTest> tests, Set<DeviceTest> recorded) {
+    List<DeviceTest> remaining = new ArrayList<DeviceTest>();
+    for (DeviceTest test : tests) {
+      if (!recorded.contains(test)) {
+        remaining.add(test);
+      }
+    }
+    return remaining;
+  }
+}
@@ -0,0 +1,145 @@
+package com.squareup.spoon;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Shared queue of test batches. Each device pulls its next batch when it finishes the previous one
+ * so that fast devices end up executing more of the suite than slow ones. Batches are tracked by
+ * the device executing them until they complete so that work returned by a device which went away
+ * can be picked up by another.
+ */
+final class TestQueue {
+  private final Deque<TestBatch> pending = new ArrayDeque<TestBatch>();
+  /** Batches which are executing, by the serial of their device. */
+  private final Map<String, TestBatch> executing = new HashMap<String, TestBatch>();
+
+  /** Create a queue with one batch per test class, largest classes first. */
+  static TestQueue forClasses(List<DeviceTest> tests) {
+    return forClasses(tests, tests);
+  }
+
+  /**
+   * Create a queue with one batch per test class of {@code tests}, largest classes first.
+   * {@code allTests} is every test of the instrumentation, of which {@code tests} may be a subset.
+   */
+  static TestQueue forClasses(List<DeviceTest> tests, List<DeviceTest> allTests) {
+    checkNotNull(tests);
+    checkNotNull(allTests);
+    List<List<DeviceTest>> classes = TestSharder.groupByClass(tests);
+    // Starting with the longest classes keeps stragglers at the end of the run short.
+    Collections.sort(classes, new Comparator<List<DeviceTest>>() {
+      @Override public int compare(List<DeviceTest> lhs, List<DeviceTest> rhs) {
+        return rhs.size() - lhs.size();
+      }
+    });
+    TestQueue queue = new TestQueue();
+    for (List<DeviceTest> classTests : classes) {
+      queue.add(TestBatch.of(classTests, allTests));
+    }
+    return queue;
+  }
+
+  /** Append a batch to the end of the queue. */
+  synchronized void add(TestBatch batch) {
+    checkNotNull(batch);
+    pending.addLast(batch);
+    notifyAll();
+  }
+
+  /** Return a batch which could not be executed to the front of the queue. */
+  synchronized void requeue(TestBatch batch) {
+    checkNotNull(batch);
+    pending.addFirst(batch);
+    notifyAll();
+  }
+
+  /**
+   * Remove and return the next batch for {@code serial} to execute, which must later be passed to
+   * {@link #complete}. While the queue is empty but other batches are still executing this blocks,
+   * since their tests may yet be requeued. Returns {@code null} once there is nothing left to
+   * execute.
+   */
+  synchronized TestBatch next(String serial) {
+    checkNotNull(serial);
+    while (pending.isEmpty() && !executing.isEmpty()) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+    TestBatch batch = pending.pollFirst();
+    if (batch != null) {
+      executing.put(serial, batch);
+    }
+    return batch;
+  }
+
+  /** Record that a batch which was assigned to {@code serial} directly has started executing. */
+  synchronized void claim(String serial, TestBatch batch) {
+    checkNotNull(serial);
+    checkNotNull(batch);
+    checkState(!executing.containsKey(serial), "%s is already executing a batch.", serial);
+    executing.put(serial, batch);
+  }
+
+  /** Record that the batch {@code serial} got from {@link #next} or {@link #claim} finished. */
+  synchronized void complete(String serial, TestBatch batch) {
+    complete(serial, batch, null);
+  }
+
+  /**
+   * Record that the batch {@code serial} got from {@link #next} or {@link #claim} finished and
+   * return its {@code unfinished} tests, if any, to the front of the queue. Does nothing if the
+   * batch was already returned through {@link #abandon}.
+   */
+  synchronized void complete(String serial, TestBatch batch, TestBatch unfinished) {
+    checkNotNull(serial);
+    checkNotNull(batch);
+    if (executing.get(serial) != batch) {
+      return;
+    }
+    executing.remove(serial);
+    if (unfinished != null) {
+      pending.addFirst(unfinished);
+    }
+    notifyAll();
+  }
+
+  /**
+   * Return the batch {@code serial} is executing to the front of the queue, e.g. once its device
+   * disconnected, so that other devices need not wait for it to fail. Tests of the batch which
+   * already ran are executed again.
+   */
+  synchronized void abandon(String serial) {
+    checkNotNull(serial);
+    TestBatch batch = executing.remove(serial);
+    if (batch != null) {
+      pending.addFirst(batch);
+      notifyAll();
+    }
+  }
+
+  /** Remove and return the batches which have not been handed out, e.g. once no device is left. */
+  synchronized List<TestBatch> drain() {
+    List<TestBatch> batches = new ArrayList<TestBatch>(pending);
+    pending.clear();
+    return batches;
+  }
+
+  /** Number of batches which have not yet been handed out. */
+  synchronized int size() {
+    return pending.size();
+  }
+}
@@ -0,0 +1,188 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Forwards instrumentation events to other listeners while watching for a device which stops
+ * reporting progress. Once no event has arrived for longer than the timeout the current test is
+ * reported as an error, the instrumentation is cancelled and the process under test is stopped.
+ * Test events which trickle in after that are dropped so that the reported error stands.
+ */
+final class TestRunWatchdog implements ITestRunListener {
+  private final String serial;
+  private final long timeoutNanos;
+  private final List<ITestRunListener> listeners;
+  private final ApkInstaller.Shell shell;
+  private final String targetPackage;
+  private final AdbThrottle throttle;
+  private long lastEvent;
+  private TestIdentifier current;
+  private boolean stalled;
+
+  /**
+   * @param shell Runs commands on the device, used to stop {@code targetPackage} after a stall
+   * since cancelling the runner leaves the instrumentation running there.
+   */
+  TestRunWatchdog(String serial, long timeoutMillis, Collection<ITestRunListener> listeners,
+      ApkInstaller.Shell shell, String targetPackage, AdbThrottle throttle) {
+    checkNotNull(serial);
+    checkArgument(timeoutMillis > 0, "Timeout must be positive.");
+    checkNotNull(listeners);
+    checkNotNull(shell);
+    checkNotNull(targetPackage);
+    checkNotNull(throttle);
+    this.serial = serial;
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.listeners = new ArrayList<ITestRunListener>(listeners);
+    this.shell = shell;
+    this.targetPackage = targetPackage;
+    this.throttle = throttle;
+  }
+
+  /**
+   * Execute {@code runner}, cancelling it if the device stops making progress.
+   *
+   * @return {@code true} if the instrumentation was cancelled because it stalled.
+   */
+  boolean run(final RemoteAndroidTestRunner runner) throws Exception {
+    synchronized (this) {
+      lastEvent = System.nanoTime();
+    }
+    long timeoutMillis = TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+    final long pollMillis = Math.max(1, Math.min(1000, timeoutMillis / 4));
+    Thread watcher = new Thread(new Runnable() {
+      @Override public void run() {
+        try {
+          while (!checkStalled()) {
+            Thread.sleep(pollMillis);
+          }
+          runner.cancel();
+        } catch (InterruptedException ignored) {
+        }
+      }
+    }, "spoon-watchdog-" + serial);
+    watcher.setDaemon(true);
+    watcher.start();
+    try {
+      runner.run(this);
+    } finally {
+      watcher.interrupt();
+      if (isStalled()) {
+        forceStop();
+      }
+    }
+    return isStalled();
+  }
+
+  private void forceStop() {
+    throttle.acquire(AdbThrottle.Operation.SHELL, serial);
+    try {
+      shell.execute("am force-stop " + targetPackage);
+    } catch (Exception e) {
+      logInfo("[%s] Unable to stop %s: %s", serial, targetPackage, e.getMessage());
+    } finally {
+      throttle.release(AdbThrottle.Operation.SHELL);
+    }
+  }
+
+  synchronized boolean isStalled() {
+    return stalled;
+  }
+
+  /** Report the current test as an error if the timeout elapsed, returning whether it did. */
+  synchronized boolean checkStalled() {
+    long idle = System.nanoTime() - lastEvent;
+    if (idle < timeoutNanos) {
+      return false;
+    }
+    long seconds = TimeUnit.NANOSECONDS.toSeconds(idle);
+    logInfo("[%s] No progress for %ds. Cancelling instrumentation.", serial, seconds);
+    if (current != null) {
+      String trace = "java.lang.RuntimeException: Test stalled. No progress was reported for "
+          + seconds + " seconds.";
+      Map<String, String> noMetrics = Collections.emptyMap();
+      for (ITestRunListener listener : listeners) {
+        listener.testFailed(TestFailure.ERROR, current, trace);
+        listener.testEnded(current, noMetrics);
+      }
+      current = null;
+    }
+    stalled = true;
+    return true;
+  }
+
+  @Override public synchronized void testRunStarted(String runName, int testCount) {
+    lastEvent = System.nanoTime();
+    for (ITestRunListener listener : listeners) {
+      listener.testRunStarted(runName, testCount);
+    }
+  }
+
+  @Override public synchronized void testStarted(TestIdentifier test) {
+    lastEvent = System.nanoTime();
+    if (stalled) {
+      return;
+    }
+    current = test;
+    for (ITestRunListener listener : listeners) {
+      listener.testStarted(test);
+    }
+  }
+
+  @Override public synchronized void testFailed(TestFailure status, TestIdentifier test,
+      String trace) {
+    lastEvent = System.nanoTime();
+    if (stalled) {
+      return;
+    }
+    for (ITestRunListener listener : listeners) {
+      listener.testFailed(status, test, trace);
+    }
+  }
+
+  @Override public synchronized void testEnded(TestIdentifier test,
+      Map<String, String> testMetrics) {
+    lastEvent = System.nanoTime();
+    if (stalled) {
+      return;
+    }
+    current = null;
+    for (ITestRunListener listener : listeners) {
+      listener.testEnded(test, testMetrics);
+    }
+  }
+
+  @Override public synchronized void testRunFailed(String errorMessage) {
+    lastEvent = System.nanoTime();
+    for (ITestRunListener listener : listeners) {
+      listener.testRunFailed(errorMessage);
+    }
+  }
+
+  @Override public synchronized void testRunStopped(long elapsedTime) {
+    lastEvent = System.nanoTime();
+    for (ITestRunListener listener : listeners) {
+      listener.testRunStopped(elapsedTime);
+    }
+  }
+
+  @Override public synchronized void testRunEnded(long elapsedTime,
+      Map<String, String> runMetrics) {
+    lastEvent = System.nanoTime();
+    for (ITestRunListener listener : listeners) {
+      listener.testRunEnded(elapsedTime, runMetrics);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.squareup.spoon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/** Splits a test suite into shards which can be executed concurrently on different devices. */
+final class TestSharder {
+  /**
+   * Split {@code tests} into at most {@code shardCount} batches of roughly equal expected duration
+   * using the longest-processing-time-first heuristic. Test classes are kept together unless a
+   * class alone is expected to take longer than an evenly balanced shard, in which case its methods
+   * are distributed individually. Shards which would be empty are omitted.
+   */
+  static List<TestBatch> shard(List<DeviceTest> tests, int shardCount, final TestHistory history) {
+    return shard(tests, tests, shardCount, history);
+  }
+
+  /**
+   * Split {@code tests}, a subset of {@code allTests}, into shards.
+   *
+   * @see #shard(List, int, TestHistory)
+   */
+  static List<TestBatch> shard(List<DeviceTest> tests, List<DeviceTest> allTests, int shardCount,
+      final TestHistory history) {
+    checkNotNull(tests);
+    checkNotNull(allTests);
+    checkNotNull(history);
+    checkArgument(shardCount > 0, "Shard count must be positive.");
+
+    long balanced = history.estimate(tests) / shardCount;
+
+    List<List<DeviceTest>> units = new ArrayList<List<DeviceTest>>();
+    for (List<DeviceTest> classTests : groupByClass(tests)) {
+      if (history.estimate(classTests) > balanced) {
+        for (DeviceTest test : classTests) {
+          units.add(Collections.singletonList(test));
+        }
+      } else {
+        units.add(classTests);
+      }
+    }
+
+    // Place the longest units first, each onto the shard which is expected to finish first.
+    Collections.sort(units, new Comparator<List<DeviceTest>>() {
+      @Override public int compare(List<DeviceTest> lhs, List<DeviceTest> rhs) {
+        long lhsEstimate = history.estimate(lhs);
+        long rhsEstimate = history.estimate(rhs);
+        return lhsEstimate < rhsEstimate ? 1 : (lhsEstimate == rhsEstimate ? 0 : -1);
+      }
+    });
+    List<List<DeviceTest>> shards = new ArrayList<List<DeviceTest>>();
+    long[] loads = new long[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shards.add(new ArrayList<DeviceTest>());
+    }
+    for (List<DeviceTest> unit : units) {
+      int lightest = 0;
+      for (int i = 1; i < shardCount; i++) {
+        if (loads[i] < loads[lightest]) {
+          lightest = i;
+        }
+      }
+      shards.get(lightest).addAll(unit);
+      loads[lightest] += history.estimate(unit);
+    }
+
+    List<TestBatch> batches = new ArrayList<TestBatch>();
+    for (List<DeviceTest> shard : shards) {
+      if (!shard.isEmpty()) {
+        Collections.sort(shard);
+        batches.add(TestBatch.of(shard, allTests));
+      }
+    }
+    return batches;
+  }
+
+  /** Group tests by their class name, preserving encounter order. */
+  static List<List<DeviceTest>> groupByClass(List<DeviceTest> tests) {
+    Map<String, List<DeviceTest>> byClass = new LinkedHashMap<String, List<DeviceTest>>();
+    for (DeviceTest test : tests) {
+      List<DeviceTest> classTests = byClass.get(test.getClassName());
+      if (classTests == null) {
+        classTests = new ArrayList<DeviceTest>();
+        byClass.put(test.getClassName(), classTests);
+      }
+      classTests.add(test);
+    }
+    return new ArrayList<List<DeviceTest>>(byClass.values());
+  }
+
+  private TestSharder() {
+    // No instances.
+  }
+}
@@ -46,6 +46,10 @@ final class HtmlDevice {
           .append(" failing in ")
           .append(HtmlUtils.humanReadableDuration(result.getDuration()));
     }
+    if (result.isPrecompiled()) {
+      subtitle1.append(" after precompiling in ")
+          .append(HtmlUtils.humanReadableDuration(result.getCompileDuration() / 1000));
+    }
     subtitle1.append(" at ")
         .append(HtmlUtils.dateToString(result.getStarted()));
 
@@ -83,7 +87,7 @@ final class HtmlDevice {
       String status = HtmlUtils.getStatusCssClass(result);
       List<HtmlUtils.Screenshot> screenshots = new ArrayList<HtmlUtils.Screenshot>();
       for (File screenshot : result.getScreenshots()) {
-        screenshots.add(HtmlUtils.getScreenshot(screenshot, output));
+        screenshots.add(HtmlUtils.getScreenshot(screenshot, result, output));
       }
       String animatedGif = HtmlUtils.createRelativeUri(result.getAnimatedGif(), output);
       HtmlUtils.ExceptionInfo exception = HtmlUtils.processStackTrace(result.getException());
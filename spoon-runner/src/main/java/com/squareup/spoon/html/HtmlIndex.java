@@ -57,19 +57,84 @@ final class HtmlIndex {
     }
     subtitle.append(" at ").append(started);
 
-    return new HtmlIndex(summary.getTitle(), subtitle.toString(), tests.size(), devices);
+    List<Shard> shards = new ArrayList<Shard>();
+    for (Map.Entry<String, Long> entry : summary.getShardEstimates().entrySet()) {
+      DeviceResult result = summary.getResults().get(entry.getKey());
+      if (result != null) {
+        shards.add(Shard.from(entry.getKey(), result, entry.getValue()));
+      }
+    }
+    Collections.sort(shards);
+
+    List<Precompilation> precompilations = new ArrayList<Precompilation>();
+    List<PrecompiledTest> precompiledTests = new ArrayList<PrecompiledTest>();
+    for (Map.Entry<String, DeviceResult> entry : summary.getResults().entrySet()) {
+      DeviceResult result = entry.getValue();
+      if (!result.isPrecompiled()) {
+        continue;
+      }
+      Map<DeviceTest, Long> baselines = summary.getPrecompileBaselines().get(entry.getKey());
+      if (baselines == null) {
+        baselines = Collections.emptyMap();
+      }
+      precompilations.add(Precompilation.from(entry.getKey(), result, baselines));
+      for (Map.Entry<DeviceTest, Long> baseline : baselines.entrySet()) {
+        DeviceTestResult testResult = result.getTestResults().get(baseline.getKey());
+        if (testResult != null && testResult.getDuration() >= 0) {
+          precompiledTests.add(PrecompiledTest.from(entry.getKey(), result, baseline.getKey(),
+              testResult.getDuration(), baseline.getValue()));
+        }
+      }
+    }
+    Collections.sort(precompilations);
+    Collections.sort(precompiledTests);
+
+    List<SkippedDevice> skippedDevices = new ArrayList<SkippedDevice>();
+    for (Map.Entry<String, String> entry : summary.getSkippedDevices().entrySet()) {
+      skippedDevices.add(new SkippedDevice(entry.getKey(), entry.getValue()));
+    }
+    Collections.sort(skippedDevices);
+
+    List<UnexecutedTest> unexecutedTests = new ArrayList<UnexecutedTest>();
+    for (DeviceTest test : summary.getUnexecutedTests()) {
+      unexecutedTests.add(new UnexecutedTest(test.getClassName(), test.getMethodName()));
+    }
+
+    return new HtmlIndex(summary.getTitle(), subtitle.toString(), tests.size(), devices, shards,
+        precompilations, precompiledTests, skippedDevices, unexecutedTests);
   }
 
   public final String title;
   public final String subtitle;
   public final int testCount;
   public final List<Device> devices;
+  public final boolean hasShards;
+  public final List<Shard> shards;
+  public final boolean hasPrecompilations;
+  public final List<Precompilation> precompilations;
+  public final List<PrecompiledTest> precompiledTests;
+  public final boolean hasSkippedDevices;
+  public final List<SkippedDevice> skippedDevices;
+  public final boolean hasUnexecutedTests;
+  public final List<UnexecutedTest> unexecutedTests;
 
-  HtmlIndex(String title, String subtitle, int testCount, List<Device> devices) {
+  HtmlIndex(String title, String subtitle, int testCount, List<Device> devices,
+      List<Shard> shards, List<Precompilation> precompilations,
+      List<PrecompiledTest> precompiledTests, List<SkippedDevice> skippedDevices,
+      List<UnexecutedTest> unexecutedTests) {
     this.title = title;
     this.subtitle = subtitle;
     this.testCount = testCount;
     this.devices = devices;
+    this.hasShards = !shards.isEmpty();
+    this.shards = shards;
+    this.hasPrecompilations = !precompilations.isEmpty();
+    this.precompilations = precompilations;
+    this.precompiledTests = precompiledTests;
+    this.hasSkippedDevices = !skippedDevices.isEmpty();
+    this.skippedDevices = skippedDevices;
+    this.hasUnexecutedTests = !unexecutedTests.isEmpty();
+    this.unexecutedTests = unexecutedTests;
   }
 
   static final class Device implements Comparable<Device> {
@@ -114,6 +179,185 @@ final class HtmlIndex {
     }
   }
 
+  /** Predicted versus actual finish time of the tests sharded onto a device. */
+  static final class Shard implements Comparable<Shard> {
+    static Shard from(String serial, DeviceResult result, long estimate) {
+      DeviceDetails details = result.getDeviceDetails();
+      String name = (details != null) ? details.getName() : serial;
+      int testCount = result.getTestResults().size();
+      long duration = result.getDuration();
+      String predicted = HtmlUtils.humanReadableDuration(estimate);
+      String actual = duration >= 0 ? HtmlUtils.humanReadableDuration(duration) : "Did not run";
+      String deviation = null;
+      if (duration >= 0 && estimate > 0) {
+        long percent = Math.round(100.0 * (duration - estimate) / estimate);
+        deviation = (percent > 0 ? "+" : "") + percent + "%";
+      }
+      return new Shard(serial, name, testCount, estimate, predicted, actual, deviation);
+    }
+
+    public final String serial;
+    public final String name;
+    public final int testCount;
+    public final long estimate;
+    public final String predicted;
+    public final String actual;
+    public final String deviation;
+
+    Shard(String serial, String name, int testCount, long estimate, String predicted,
+        String actual, String deviation) {
+      this.serial = serial;
+      this.name = name;
+      this.testCount = testCount;
+      this.estimate = estimate;
+      this.predicted = predicted;
+      this.actual = actual;
+      this.deviation = deviation;
+    }
+
+    @Override public int compareTo(Shard other) {
+      // Longest predicted shards first.
+      return estimate < other.estimate ? 1 : (estimate == other.estimate ? 0 : -1);
+    }
+  }
+
+  /**
+   * Combined duration of the tests of a device whose APKs were compiled ahead of time versus the
+   * duration the same tests took without precompilation. Only tests with both are compared.
+   */
+  static final class Precompilation implements Comparable<Precompilation> {
+    static Precompilation from(String serial, DeviceResult result,
+        Map<DeviceTest, Long> baselines) {
+      String name = getDeviceName(serial, result);
+      String compileTime = HtmlUtils.humanReadableDuration(result.getCompileDuration() / 1000);
+      long duration = 0;
+      long baseline = 0;
+      int compared = 0;
+      for (Map.Entry<DeviceTest, Long> entry : baselines.entrySet()) {
+        DeviceTestResult testResult = result.getTestResults().get(entry.getKey());
+        if (testResult != null && testResult.getDuration() >= 0) {
+          duration += testResult.getDuration();
+          baseline += entry.getValue();
+          compared++;
+        }
+      }
+      String tests = compared + " of " + result.getTestResults().size();
+      String actual = compared > 0 ? HtmlUtils.humanReadableDuration(duration) : "Unknown";
+      String expected = compared > 0 ? HtmlUtils.humanReadableDuration(baseline) : "Unknown";
+      String change = compared > 0 ? formatChange(duration, baseline) : null;
+      return new Precompilation(serial, name, compileTime, tests, actual, expected, change);
+    }
+
+    public final String serial;
+    public final String name;
+    public final String compileTime;
+    public final String tests;
+    public final String actual;
+    public final String expected;
+    public final String change;
+
+    Precompilation(String serial, String name, String compileTime, String tests, String actual,
+        String expected, String change) {
+      this.serial = serial;
+      this.name = name;
+      this.compileTime = compileTime;
+      this.tests = tests;
+      this.actual = actual;
+      this.expected = expected;
+      this.change = change;
+    }
+
+    @Override public int compareTo(Precompilation other) {
+      return name.compareTo(other.name);
+    }
+  }
+
+  /** Duration of one test of a precompiled device versus its duration without precompilation. */
+  static final class PrecompiledTest implements Comparable<PrecompiledTest> {
+    static PrecompiledTest from(String serial, DeviceResult result, DeviceTest test,
+        long duration, long baseline) {
+      String name = getDeviceName(serial, result);
+      String classSimpleName = HtmlUtils.getClassSimpleName(test.getClassName());
+      String prettyMethodName = HtmlUtils.prettifyMethodName(test.getMethodName());
+      String actual = HtmlUtils.humanReadableDuration(duration);
+      String expected = HtmlUtils.humanReadableDuration(baseline);
+      return new PrecompiledTest(serial, name, test.getClassName(), test.getMethodName(),
+          classSimpleName, prettyMethodName, actual, expected, formatChange(duration, baseline));
+    }
+
+    public final String serial;
+    public final String name;
+    public final String className;
+    public final String methodName;
+    public final String classSimpleName;
+    public final String prettyMethodName;
+    public final String actual;
+    public final String expected;
+    public final String change;
+
+    PrecompiledTest(String serial, String name, String className, String methodName,
+        String classSimpleName, String prettyMethodName, String actual, String expected,
+        String change) {
+      this.serial = serial;
+      this.name = name;
+      this.className = className;
+      this.methodName = methodName;
+      this.classSimpleName = classSimpleName;
+      this.prettyMethodName = prettyMethodName;
+      this.actual = actual;
+      this.expected = expected;
+      this.change = change;
+    }
+
+    @Override public int compareTo(PrecompiledTest other) {
+      int result = serial.compareTo(other.serial);
+      if (result == 0) {
+        result = className.compareTo(other.className);
+      }
+      return result != 0 ? result : methodName.compareTo(other.methodName);
+    }
+  }
+
+  private static String getDeviceName(String serial, DeviceResult result) {
+    DeviceDetails details = result.getDeviceDetails();
+    return (details != null) ? details.getName() : serial;
+  }
+
+  /** The change from {@code baseline} to {@code duration} in percent, if there is a baseline. */
+  private static String formatChange(long duration, long baseline) {
+    if (baseline <= 0) {
+      return null;
+    }
+    long percent = Math.round(100.0 * (duration - baseline) / baseline);
+    return (percent > 0 ? "+" : "") + percent + "%";
+  }
+
+  /** A device which was not used because it cannot run the APKs. */
+  static final class SkippedDevice implements Comparable<SkippedDevice> {
+    public final String serial;
+    public final String reason;
+
+    SkippedDevice(String serial, String reason) {
+      this.serial = serial;
+      this.reason = reason;
+    }
+
+    @Override public int compareTo(SkippedDevice other) {
+      return serial.compareTo(other.serial);
+    }
+  }
+
+  /** A test which no device was left to execute. */
+  static final class UnexecutedTest {
+    public final String className;
+    public final String methodName;
+
+    UnexecutedTest(String className, String methodName) {
+      this.className = className;
+      this.methodName = methodName;
+    }
+  }
+
   static final class TestResult implements Comparable<TestResult> {
     static TestResult from(String serial, DeviceTest test, DeviceTestResult testResult) {
       String className = test.getClassName();
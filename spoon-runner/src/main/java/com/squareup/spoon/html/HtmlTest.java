@@ -79,7 +79,7 @@ final class HtmlTest {
 
       List<HtmlUtils.Screenshot> screenshots = new ArrayList<HtmlUtils.Screenshot>();
       for (File screenshot : result.getScreenshots()) {
-        screenshots.add(HtmlUtils.getScreenshot(screenshot, output));
+        screenshots.add(HtmlUtils.getScreenshot(screenshot, result, output));
       }
       String animatedGif = HtmlUtils.createRelativeUri(result.getAnimatedGif(), output);
       HtmlUtils.ExceptionInfo exception = HtmlUtils.processStackTrace(result.getException());
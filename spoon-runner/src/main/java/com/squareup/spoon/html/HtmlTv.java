@@ -99,7 +99,7 @@ final class HtmlTv {
 
       List<HtmlUtils.Screenshot> screenshots = new ArrayList<HtmlUtils.Screenshot>();
       for (File screenshot : result.getScreenshots()) {
-        screenshots.add(HtmlUtils.getScreenshot(screenshot, output));
+        screenshots.add(HtmlUtils.getScreenshot(screenshot, result, output));
       }
       return new TestResult(className, name, serial, status, screenshots);
     }
@@ -2,6 +2,8 @@ package com.squareup.spoon.html;
 
 import com.squareup.spoon.DeviceDetails;
 import com.squareup.spoon.DeviceTestResult;
+import com.squareup.spoon.ScreenshotPack;
+import com.squareup.spoon.ScreenshotStore;
 import com.squareup.spoon.misc.StackTrace;
 import java.io.File;
 import java.io.IOException;
@@ -177,11 +179,30 @@ final class HtmlUtils {
     }
   }
 
-  /** Get a HTML representation of a screenshot with respect to {@code output} directory. */
-  static Screenshot getScreenshot(File screenshot, File output) {
-    String relativePath = createRelativeUri(screenshot, output);
+  /**
+   * Get a HTML representation of one of the screenshots of {@code result} with respect to
+   * {@code output} directory. Packed screenshots refer to their range of the pack.
+   */
+  static Screenshot getScreenshot(File screenshot, DeviceTestResult result, File output) {
     String caption = prettifyImageName(screenshot.getName());
-    return new Screenshot(relativePath, caption);
+    String hash = result.getScreenshotHash(screenshot);
+    if (hash == null) {
+      return new Screenshot(createRelativeUri(screenshot, output), caption, null);
+    }
+    File pack = result.getScreenshotPack();
+    if (pack != null) {
+      try {
+        String name = ScreenshotStore.getFileName(hash, screenshot.getName());
+        ScreenshotPack.Entry entry = ScreenshotPack.open(pack).getEntry(name);
+        if (entry != null) {
+          return new Screenshot(createRelativeUri(pack, output), caption, entry);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to read screenshot pack " + pack, e);
+      }
+    }
+    File file = ScreenshotStore.getFile(output, hash, screenshot.getName());
+    return new Screenshot(createRelativeUri(file, output), caption, null);
   }
 
   /** Parse the string representation of an exception to a {@link ExceptionInfo} instance. */
@@ -229,11 +250,18 @@ final class HtmlUtils {
     public final long id;
     public final String path;
     public final String caption;
+    /** Whether {@link #path} is a pack of which the screenshot is the given range. */
+    public final boolean packed;
+    public final long offset;
+    public final long length;
 
-    Screenshot(String path, String caption) {
+    Screenshot(String path, String caption, ScreenshotPack.Entry entry) {
       this.id = ID.getAndIncrement();
       this.path = path;
       this.caption = caption;
+      this.packed = entry != null;
+      this.offset = entry != null ? entry.getOffset() : 0;
+      this.length = entry != null ? entry.getLength() : 0;
     }
   }
 
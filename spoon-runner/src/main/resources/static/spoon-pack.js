@@ -0,0 +1,27 @@
+// Screenshots of packed executions are ranges of a pack file. Each one is read with a ranged
+// request and shown from a blob, which requires the report to be served over HTTP.
+function loadPackedScreenshot(pack, offset, length, callback) {
+    var request = new XMLHttpRequest()
+    request.open('GET', pack)
+    request.responseType = 'blob'
+    request.setRequestHeader('Range', 'bytes=' + offset + '-' + (offset + length - 1))
+    request.onload = function() {
+        var blob = request.response
+        // Servers which do not support ranges send the whole pack.
+        if (request.status != 206) {
+            blob = blob.slice(offset, offset + length)
+        }
+        callback(URL.createObjectURL(blob))
+    }
+    request.send()
+}
+
+$(function() {
+    $('a[data-offset]').each(function() {
+        var link = $(this)
+        loadPackedScreenshot(link.attr('href'), link.data('offset'), link.data('length'), function(url) {
+            link.attr('href', url)
+            link.find('img').attr('src', url)
+        })
+    })
+})
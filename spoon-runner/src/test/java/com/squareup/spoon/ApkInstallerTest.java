@@ -0,0 +1,132 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import org.junit.Test;
+
+import static com.squareup.spoon.ApkInstaller.parseSessionId;
+import static com.squareup.spoon.ApkInstaller.useMultiPackage;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ApkInstallerTest {
+  private static final File APP = new File("app.apk");
+  private static final File TEST = new File("test.apk");
+  private static final List<String> REMOTE_PATHS = Arrays.asList("/tmp/0.apk", "/tmp/1.apk");
+
+  /** Answers {@code pm} commands like a device, failing the ones containing {@code failing}. */
+  private static final class FakeShell implements ApkInstaller.Shell {
+    final List<String> commands = new ArrayList<String>();
+    private final String failing;
+    private int sessions;
+
+    FakeShell(String failing) {
+      this.failing = failing;
+    }
+
+    @Override public String execute(String command) {
+      commands.add(command);
+      if (failing != null && command.contains(failing)) {
+        return "Failure [INSTALL_FAILED_INVALID_APK]\n";
+      }
+      if (command.startsWith("pm install-create")) {
+        return "Success: created install session [" + (++sessions) + "]\n";
+      }
+      return "Success\n";
+    }
+  }
+
+  @Test public void sessionIdIsParsed() {
+    assertThat(parseSessionId("Success: created install session [1234]\r\n")).isEqualTo("1234");
+    assertThat(parseSessionId("Error: java.lang.SecurityException [1]\n")).isNull();
+    assertThat(parseSessionId("Success\n")).isNull();
+  }
+
+  @Test public void multiPackageNeedsSeveralApksAndApi29() {
+    assertThat(useMultiPackage(2, 29)).isTrue();
+    assertThat(useMultiPackage(1, 29)).isFalse();
+    assertThat(useMultiPackage(2, 28)).isFalse();
+  }
+
+  @Test public void multiPackageSessionIsCommitted() throws Exception {
+    FakeShell shell = new FakeShell(null);
+    assertThat(ApkInstaller.installMultiPackage(shell, REMOTE_PATHS, "serial", false)).isTrue();
+    assertThat(shell.commands).containsExactly(
+        "pm install-create -r --multi-package",
+        "pm install-create -r ",
+        "pm install-write 2 base.apk /tmp/0.apk",
+        "pm install-create -r ",
+        "pm install-write 3 base.apk /tmp/1.apk",
+        "pm install-add-session 1 2 3",
+        "pm install-commit 1");
+  }
+
+  @Test public void failedMultiPackageSessionIsAbandoned() throws Exception {
+    FakeShell shell = new FakeShell("install-write 3");
+    assertThat(ApkInstaller.installMultiPackage(shell, REMOTE_PATHS, "serial", false)).isFalse();
+    assertThat(shell.commands).contains("pm install-abandon 3", "pm install-abandon 1");
+    assertThat(shell.commands).doesNotContain("pm install-commit 1");
+  }
+
+  @Test public void failingAbandonDoesNotMaskTheFailure() throws Exception {
+    final FakeShell delegate = new FakeShell("install-add-session");
+    ApkInstaller.Shell shell = new ApkInstaller.Shell() {
+      @Override public String execute(String command) throws Exception {
+        if (command.startsWith("pm install-abandon")) {
+          throw new IllegalStateException("Device went away");
+        }
+        return delegate.execute(command);
+      }
+    };
+    assertThat(ApkInstaller.installMultiPackage(shell, REMOTE_PATHS, "serial", false)).isFalse();
+  }
+
+  @Test public void fallbackInstallsEachApk() throws Exception {
+    final List<String> installed = new ArrayList<String>();
+    Map<File, String> errors = new LinkedHashMap<File, String>();
+    ApkInstaller.installEach(new ApkInstaller.RemoteInstall() {
+      @Override public String install(String remotePath) {
+        installed.add(remotePath);
+        return remotePath.equals("/tmp/1.apk") ? "INSTALL_FAILED_OLDER_SDK" : null;
+      }
+    }, Arrays.asList(APP, TEST), REMOTE_PATHS, errors);
+    assertThat(installed).isEqualTo(REMOTE_PATHS);
+    assertThat(errors.keySet()).containsExactly(TEST);
+    assertThat(errors.get(TEST)).isEqualTo("INSTALL_FAILED_OLDER_SDK");
+  }
+
+  @Test(timeout = 5000) public void backgroundInstallsRunOneAfterTheOther() throws Exception {
+    final CountDownLatch firstMayFinish = new CountDownLatch(1);
+    final List<String> finished = Collections.synchronizedList(new ArrayList<String>());
+    ApkInstaller.RemoteInstall remoteInstall = new ApkInstaller.RemoteInstall() {
+      @Override public String install(String remotePath) throws Exception {
+        if (remotePath.equals("/tmp/0.apk")) {
+          firstMayFinish.await();
+          finished.add(remotePath);
+          throw new IllegalStateException("Device went away");
+        }
+        finished.add(remotePath);
+        return null;
+      }
+    };
+    FutureTask<String> first = ApkInstaller.startInstall(remoteInstall, "/tmp/0.apk", null, "a");
+    FutureTask<String> second = ApkInstaller.startInstall(remoteInstall, "/tmp/1.apk", first, "b");
+    Thread.sleep(100);
+    assertThat(second.isDone()).isFalse();
+    firstMayFinish.countDown();
+
+    Map<File, String> errors = new LinkedHashMap<File, String>();
+    List<FutureTask<String>> installs = Arrays.asList(first, second);
+    ApkInstaller.awaitInstalls(Arrays.asList(APP, TEST), installs, errors);
+    // The second install still ran after the first one failed.
+    assertThat(finished).containsExactly("/tmp/0.apk", "/tmp/1.apk");
+    assertThat(errors.keySet()).containsExactly(APP);
+    assertThat(errors.get(APP)).contains("Device went away");
+  }
+}
@@ -0,0 +1,60 @@
+package com.squareup.spoon;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static com.squareup.spoon.ApkRequirements.parseDeviceFeatures;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ApkRequirementsTest {
+  private static final List<String> NONE = Collections.emptyList();
+
+  private static DeviceDetails device(int apiLevel, String... abis) {
+    String json = "{\"apiLevel\":" + apiLevel + ",\"abis\":"
+        + SpoonUtils.GSON.toJson(Arrays.asList(abis)) + "}";
+    return SpoonUtils.GSON.fromJson(json, DeviceDetails.class);
+  }
+
+  @Test public void sdkRangeIsChecked() {
+    ApkRequirements requirements = new ApkRequirements(16, 0, NONE, NONE)
+        .and(new ApkRequirements(18, 0, NONE, NONE))
+        .and(new ApkRequirements(1, 22, NONE, NONE));
+    assertThat(requirements.findIncompatibility(device(17), null)).contains("minSdkVersion 18");
+    assertThat(requirements.findIncompatibility(device(18), null)).isNull();
+    assertThat(requirements.findIncompatibility(device(22), null)).isNull();
+    assertThat(requirements.findIncompatibility(device(23), null)).contains("maxSdkVersion 22");
+    // Devices whose API level could not be read are given the benefit of the doubt.
+    assertThat(requirements.findIncompatibility(device(0), null)).isNull();
+  }
+
+  @Test public void requiredFeaturesAreChecked() {
+    ApkRequirements requirements =
+        new ApkRequirements(1, 0, Arrays.asList("android.hardware.camera"), NONE);
+    assertThat(requirements.hasFeatures()).isTrue();
+    assertThat(requirements.findIncompatibility(device(21),
+        parseDeviceFeatures("feature:android.hardware.wifi\nfeature:reqGlEsVersion=0x30000\n")))
+        .contains("android.hardware.camera");
+    assertThat(requirements.findIncompatibility(device(21),
+        parseDeviceFeatures("feature:android.hardware.camera\r\n"))).isNull();
+    assertThat(requirements.findIncompatibility(device(21), null)).isNull();
+  }
+
+  @Test public void nativeCodeNeedsMatchingAbi() {
+    ApkRequirements requirements = new ApkRequirements(1, 0, NONE, Arrays.asList("armeabi-v7a"))
+        .and(new ApkRequirements(1, 0, NONE, NONE));
+    assertThat(requirements.findIncompatibility(device(21, "x86_64", "x86"), null))
+        .contains("x86_64");
+    assertThat(requirements.findIncompatibility(device(21, "arm64-v8a", "armeabi-v7a"), null))
+        .isNull();
+    assertThat(requirements.findIncompatibility(device(21), null)).isNull();
+    assertThat(new ApkRequirements(1, 0, NONE, NONE).findIncompatibility(device(21, "x86"), null))
+        .isNull();
+  }
+
+  @Test public void versionedFeaturesAreListedByName() {
+    assertThat(parseDeviceFeatures("feature:android.hardware.vulkan.level=1\nfoo\n"))
+        .containsOnly("android.hardware.vulkan.level");
+  }
+}
@@ -0,0 +1,28 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DeviceDetailsTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void cachedDetailsAreTiedToTheBuild() {
+    DeviceDetails details = SpoonUtils.GSON.fromJson(
+        "{\"model\":\"Nexus 5\",\"apiLevel\":19,\"abis\":[\"armeabi-v7a\"]}", DeviceDetails.class);
+    File directory = new File(folder.getRoot(), "cache");
+    assertThat(DeviceDetails.loadCached(directory, "abc:123", "google/hammerhead/1")).isNull();
+
+    DeviceDetails.storeCached(directory, "abc:123", "google/hammerhead/1", details);
+    DeviceDetails cached = DeviceDetails.loadCached(directory, "abc:123", "google/hammerhead/1");
+    assertThat(cached.getModel()).isEqualTo("Nexus 5");
+    assertThat(cached.getApiLevel()).isEqualTo(19);
+    assertThat(cached.getAbis()).containsExactly("armeabi-v7a");
+
+    assertThat(DeviceDetails.loadCached(directory, "abc:123", "google/hammerhead/2")).isNull();
+    assertThat(DeviceDetails.loadCached(directory, "def:456", "google/hammerhead/1")).isNull();
+  }
+}
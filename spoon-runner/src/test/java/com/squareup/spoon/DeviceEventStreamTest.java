@@ -0,0 +1,67 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.squareup.spoon.adapters.TestIdentifierAdapter;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+
+import static com.squareup.spoon.DeviceTestResult.Status;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DeviceEventStreamTest {
+  private static final TestIdentifier PASSING = new TestIdentifier("com.example.A", "testOne");
+  private static final TestIdentifier FAILING = new TestIdentifier("com.example.A", "testTwo");
+  private static final Map<String, String> NO_METRICS = Collections.emptyMap();
+
+  private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+  private final DeviceEventStream.Writer writer =
+      new DeviceEventStream.Writer(new PrintStream(bytes), SpoonUtils.GSON_COMPACT);
+  private final DeviceResult.Builder partial = new DeviceResult.Builder();
+  private final DeviceEventStream.Reader reader = new DeviceEventStream.Reader(partial,
+      new SpoonTestRunListener(partial, false, TestIdentifierAdapter.JUNIT),
+      SpoonUtils.GSON_COMPACT);
+
+  private void replay() {
+    for (String line : bytes.toString().split("\n")) {
+      assertThat(reader.accept(line)).isTrue();
+    }
+  }
+
+  @Test public void eventsBeforeCrashAreRetained() {
+    writer.testRunStarted("run", 3);
+    writer.testStarted(PASSING);
+    writer.testEnded(PASSING, NO_METRICS);
+    writer.testStarted(FAILING);
+    writer.testFailed(ITestRunListener.TestFailure.FAILURE, FAILING,
+        "java.lang.AssertionError: Boom\n\tat com.example.A.testTwo(A.java:12)\n");
+    writer.testEnded(FAILING, NO_METRICS);
+    // Process dies here without running the third test or reporting its result.
+    replay();
+
+    assertThat(reader.getResult()).isNull();
+    Map<DeviceTest, DeviceTestResult> results = reader.getPartialResult().getTestResults();
+    assertThat(results).hasSize(2);
+    assertThat(results.get(DeviceTest.from(PASSING)).getStatus()).isEqualTo(Status.PASS);
+    DeviceTestResult failed = results.get(DeviceTest.from(FAILING));
+    assertThat(failed.getStatus()).isEqualTo(Status.FAIL);
+    assertThat(failed.getException().getClassName()).isEqualTo("java.lang.AssertionError");
+    assertThat(failed.getException().getElements()).hasSize(1);
+  }
+
+  @Test public void finalResultIsReported() {
+    DeviceResult result = new DeviceResult.Builder().markInstallAsFailed("No space").build();
+    writer.result(result);
+    replay();
+
+    assertThat(reader.getResult().getInstallFailed()).isTrue();
+    assertThat(reader.getResult().getInstallMessage()).isEqualTo("No space");
+  }
+
+  @Test public void otherOutputIsIgnored() {
+    assertThat(reader.accept("2014-01-01 00:00:00 [SDR.run] Installing")).isFalse();
+  }
+}
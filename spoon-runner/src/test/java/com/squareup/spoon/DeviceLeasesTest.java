@@ -0,0 +1,37 @@
+package com.squareup.spoon;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DeviceLeasesTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void leasedDevicesAreExclusive() {
+    DeviceLeases first = new DeviceLeases(folder.getRoot());
+    DeviceLeases second = new DeviceLeases(folder.getRoot());
+
+    assertThat(first.acquire(ImmutableSet.of("a", "b"), LeasePolicy.WAIT)).containsOnly("a", "b");
+    assertThat(second.tryAcquire("a")).isFalse();
+    assertThat(second.acquire(ImmutableSet.of("a", "b", "c"), LeasePolicy.AVAILABLE))
+        .containsOnly("c");
+
+    first.releaseAllBut(ImmutableSet.of("b"));
+    assertThat(second.tryAcquire("a")).isTrue();
+    assertThat(second.tryAcquire("b")).isFalse();
+
+    first.releaseAll();
+    assertThat(second.acquire(ImmutableSet.of("a", "b"), LeasePolicy.WAIT)).containsOnly("a", "b");
+  }
+
+  @Test public void disabledLeasesAreAlwaysGranted() {
+    DeviceLeases leases = new DeviceLeases(folder.getRoot());
+    assertThat(leases.tryAcquire("a")).isTrue();
+    assertThat(DeviceLeases.disabled().tryAcquire("a")).isTrue();
+    assertThat(DeviceLeases.disabled().acquire(ImmutableSet.of("a"), LeasePolicy.WAIT))
+        .containsOnly("a");
+  }
+}
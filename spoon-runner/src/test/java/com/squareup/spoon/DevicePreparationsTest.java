@@ -0,0 +1,68 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static com.squareup.spoon.DevicePreparations.LogcatBuffer.parseBufferSize;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class DevicePreparationsTest {
+  public static final class FailingPreparation implements DevicePreparation {
+    public FailingPreparation() {
+      throw new IllegalStateException("Misconfigured");
+    }
+
+    @Override public void prepare(IDevice device, DeviceDetails details) {
+    }
+
+    @Override public void restore(IDevice device) {
+    }
+  }
+
+  @Test public void logcatBufferSizeIsParsed() {
+    assertThat(parseBufferSize("main: ring buffer is 256Kb (229Kb consumed), max entry is 5120b, "
+        + "max payload is 4068b\nsystem: ring buffer is 256Kb (10Kb consumed)")).isEqualTo("256K");
+    assertThat(parseBufferSize("main: ring buffer is 2Mb (1Mb consumed)")).isEqualTo("2M");
+    assertThat(parseBufferSize("main: ring buffer is 65536b (10b consumed)")).isEqualTo("65536");
+    assertThat(parseBufferSize("logcat: invalid option -- g")).isNull();
+  }
+
+  @Test public void preparationsAreCreatedByClassName() {
+    List<String> names = Arrays.asList(DevicePreparations.LogcatBuffer.class.getName(),
+        DevicePreparations.LogcatBuffer.class.getName());
+    List<DevicePreparation> preparations = DevicePreparations.create(names);
+    assertThat(preparations).hasSize(2);
+    assertThat(preparations.get(0)).isInstanceOf(DevicePreparations.LogcatBuffer.class);
+    // Every device needs its own instance to remember what to restore.
+    assertThat(preparations.get(0)).isNotSameAs(preparations.get(1));
+  }
+
+  @Test public void unknownPreparationsAreRejected() {
+    try {
+      DevicePreparations.load("com.example.Missing");
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected.getMessage()).contains("com.example.Missing");
+    }
+    try {
+      DevicePreparations.load(String.class.getName());
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected.getMessage()).contains("not a DevicePreparation");
+    }
+  }
+
+  @Test public void failingConstructorsAreReported() {
+    try {
+      DevicePreparations.create(Collections.singletonList(FailingPreparation.class.getName()));
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected.getMessage()).contains(FailingPreparation.class.getName());
+      assertThat(expected.getCause()).isInstanceOf(IllegalStateException.class);
+    }
+  }
+}
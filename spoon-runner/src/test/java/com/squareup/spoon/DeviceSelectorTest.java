@@ -0,0 +1,49 @@
+package com.squareup.spoon;
+
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static com.squareup.spoon.CoverageDimension.API_LEVEL;
+import static com.squareup.spoon.CoverageDimension.EMULATOR;
+import static com.squareup.spoon.CoverageDimension.LOCALE;
+import static com.squareup.spoon.CoverageDimension.MANUFACTURER;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DeviceSelectorTest {
+  private static DeviceDetails device(int apiLevel, String language, boolean emulator) {
+    String json = "{\"apiLevel\":" + apiLevel + ",\"language\":\"" + language
+        + "\",\"manufacturer\":\"Acme\",\"isEmulator\":" + emulator + "}";
+    return SpoonUtils.GSON.fromJson(json, DeviceDetails.class);
+  }
+
+  @Test public void fewestDevicesCoverEveryValue() {
+    Map<String, DeviceDetails> devices = new LinkedHashMap<String, DeviceDetails>();
+    devices.put("a", device(19, "en", false));
+    devices.put("b", device(21, "en", false));
+    devices.put("c", device(19, "de", true));
+    devices.put("d", device(21, "de", false));
+    devices.put("e", device(23, "en", true));
+
+    assertThat(DeviceSelector.selectCovering(devices, EnumSet.of(API_LEVEL)))
+        .containsOnly("a", "b", "e");
+    assertThat(DeviceSelector.selectCovering(devices, EnumSet.of(API_LEVEL, LOCALE)))
+        .containsOnly("a", "d", "e");
+    assertThat(DeviceSelector.selectCovering(devices, EnumSet.of(MANUFACTURER))).containsOnly("a");
+    assertThat(DeviceSelector.selectCovering(devices, EnumSet.of(EMULATOR, LOCALE)))
+        .containsOnly("c", "a");
+  }
+
+  @Test public void dimensionsAreParsed() {
+    assertThat(CoverageDimension.parseAll(null)).isEmpty();
+    assertThat(CoverageDimension.parseAll(" api-level, Locale,,emulator"))
+        .containsOnly(API_LEVEL, LOCALE, EMULATOR);
+    try {
+      CoverageDimension.parseAll("api,colour");
+      throw new AssertionError();
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("Unknown coverage dimension: api");
+    }
+  }
+}
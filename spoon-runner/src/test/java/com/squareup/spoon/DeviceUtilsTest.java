@@ -1,7 +1,9 @@
 package com.squareup.spoon;
 
+import java.util.Map;
 import org.junit.Test;
 
+import static com.squareup.spoon.DeviceUtils.parseProperties;
 import static com.squareup.spoon.DeviceUtils.scrubLanguage;
 import static com.squareup.spoon.DeviceUtils.scrubModel;
 import static org.fest.assertions.api.Assertions.assertThat;
@@ -27,4 +29,15 @@ public class DeviceUtilsTest {
     assertThat(scrubLanguage("xhdpi")).isNull();
     assertThat(scrubLanguage("en")).isEqualTo("en");
   }
+
+  @Test public void parsePropertiesExample() {
+    Map<String, String> properties = parseProperties("[ro.build.version.sdk]: [19]\r\n"
+        + "[ro.product.cpu.abilist]: []\n"
+        + "[ro.product.model]: [Nexus [5]]\n"
+        + "garbage\n");
+    assertThat(properties).hasSize(3);
+    assertThat(properties.get("ro.build.version.sdk")).isEqualTo("19");
+    assertThat(properties.get("ro.product.cpu.abilist")).isEmpty();
+    assertThat(properties.get("ro.product.model")).isEqualTo("Nexus [5]");
+  }
 }
@@ -0,0 +1,112 @@
+package com.squareup.spoon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.squareup.spoon.DirectoryPuller.extractTar;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class DirectoryPullerTest {
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private static void addEntry(ByteArrayOutputStream tar, String name, char type, byte[] data) {
+    byte[] header = new byte[512];
+    byte[] nameBytes = name.getBytes();
+    System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+    putOctal(header, 100, 8, 0644);
+    putOctal(header, 124, 12, data.length);
+    header[156] = (byte) type;
+    System.arraycopy("ustar".getBytes(), 0, header, 257, 5);
+    for (int i = 148; i < 156; i++) {
+      header[i] = ' ';
+    }
+    long sum = 0;
+    for (byte b : header) {
+      sum += b & 0xff;
+    }
+    putOctal(header, 148, 7, sum);
+    tar.write(header, 0, header.length);
+    tar.write(data, 0, data.length);
+    int padding = (512 - data.length % 512) % 512;
+    tar.write(new byte[padding], 0, padding);
+  }
+
+  private static void putOctal(byte[] header, int offset, int length, long value) {
+    String octal = Long.toOctalString(value);
+    while (octal.length() < length - 1) {
+      octal = "0" + octal;
+    }
+    System.arraycopy(octal.getBytes(), 0, header, offset, octal.length());
+  }
+
+  private static ByteArrayInputStream end(ByteArrayOutputStream tar) {
+    tar.write(new byte[1024], 0, 1024);
+    return new ByteArrayInputStream(tar.toByteArray());
+  }
+
+  @Test public void unpacksDirectoriesAndFiles() throws IOException {
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    addEntry(tar, "Test/", '5', new byte[0]);
+    addEntry(tar, "Test/one.png", '0', "first".getBytes());
+    addEntry(tar, "Test/two.png", '0', new byte[700]);
+    addEntry(tar, "Test/link.png", '2', new byte[0]);
+    File output = temp.getRoot();
+
+    assertThat(extractTar(end(tar), output)).isEqualTo(2);
+    assertThat(FileUtils.readFileToString(new File(output, "Test/one.png"))).isEqualTo("first");
+    assertThat(new File(output, "Test/two.png").length()).isEqualTo(700);
+    assertThat(new File(output, "Test/link.png")).doesNotExist();
+  }
+
+  @Test public void emptyStreamUnpacksNothing() throws IOException {
+    assertThat(extractTar(new ByteArrayInputStream(new byte[0]), temp.getRoot())).isZero();
+    assertThat(temp.getRoot().list()).isEmpty();
+  }
+
+  @Test public void longNamesAreUsed() throws IOException {
+    String name = "com.example.SomeFeatureTest/"
+        + "givenAVeryLongDescriptiveTestNameWhichKeepsGoing_thenItNoLongerFitsTheHeader/"
+        + "1400000000000_screenshot.png";
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    addEntry(tar, "././@LongLink", 'L', (name + "\0").getBytes());
+    addEntry(tar, name.substring(0, 99), '0', "data".getBytes());
+
+    assertThat(extractTar(end(tar), temp.getRoot())).isEqualTo(1);
+    assertThat(new File(temp.getRoot(), name)).exists();
+  }
+
+  @Test public void rejectsOtherOutput() {
+    try {
+      extractTar(new ByteArrayInputStream("tar: not found\n".getBytes()), temp.getRoot());
+      fail();
+    } catch (IOException expected) {
+    }
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    addEntry(tar, "Test/one.png", '0', new byte[700]);
+    byte[] truncated = new byte[800];
+    System.arraycopy(tar.toByteArray(), 0, truncated, 0, truncated.length);
+    try {
+      extractTar(new ByteArrayInputStream(truncated), temp.getRoot());
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void rejectsPathsOutsideDirectory() {
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    addEntry(tar, "Test/../../evil.png", '0', "data".getBytes());
+    try {
+      extractTar(end(tar), temp.getRoot());
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected.getMessage()).contains("evil.png");
+    }
+  }
+}
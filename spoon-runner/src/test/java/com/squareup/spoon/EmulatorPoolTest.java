@@ -0,0 +1,140 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class EmulatorPoolTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  /** Emulators which boot on the second check and record what was done to them. */
+  static class StubEmulatorControl implements EmulatorControl {
+    final Map<String, String> running = new HashMap<String, String>();
+    final Set<String> checked = new HashSet<String>();
+    final List<String> calls = new ArrayList<String>();
+
+    @Override public void launch(String avdName, int port, String snapshot) {
+      calls.add("launch " + avdName + " " + port + " " + snapshot);
+      running.put("emulator-" + port, avdName);
+    }
+
+    @Override public String getRunningAvd(String serial) {
+      return running.get(serial);
+    }
+
+    @Override public boolean isBooted(String serial) {
+      return running.containsKey(serial) && !checked.add(serial);
+    }
+
+    @Override public void loadSnapshot(String serial, String snapshot) {
+      calls.add("load " + serial + " " + snapshot);
+    }
+
+    @Override public void kill(String serial) {
+      calls.add("kill " + serial);
+      running.remove(serial);
+    }
+  }
+
+  @Test public void emulatorsBootFromSnapshotAndAreRestored() throws Exception {
+    StubEmulatorControl control = new StubEmulatorControl();
+    control.running.put("emulator-5556", "Nexus_5_API_23");
+    EmulatorPool pool = new EmulatorPool(control,
+        Arrays.asList("Pixel_API_28", "Nexus_5_API_23"), "clean", 10000, false, leases());
+
+    assertThat(pool.start()).containsExactly("emulator-5554", "emulator-5556");
+    assertThat(control.calls).containsExactly("launch Pixel_API_28 5554 clean");
+
+    control.calls.clear();
+    pool.reset();
+    assertThat(control.calls).containsExactly("load emulator-5554 clean",
+        "load emulator-5556 clean");
+
+    control.calls.clear();
+    pool.close();
+    assertThat(control.calls).containsExactly("kill emulator-5554", "kill emulator-5556");
+    assertThat(pool.getSerials()).isEmpty();
+  }
+
+  @Test(expected = IOException.class)
+  public void emulatorsWhichDoNotBootFail() throws Exception {
+    StubEmulatorControl control = new StubEmulatorControl() {
+      @Override public boolean isBooted(String serial) {
+        return false;
+      }
+    };
+    new EmulatorPool(control, Arrays.asList("Pixel_API_28"), "clean", 1, false, leases()).start();
+  }
+
+  @Test public void portsTakenByOtherAvdsAreNotReused() throws Exception {
+    StubEmulatorControl control = new StubEmulatorControl();
+    control.running.put("emulator-5554", "Other_AVD");
+    EmulatorPool pool =
+        new EmulatorPool(control, Arrays.asList("Pixel_API_28"), "clean", 10000, false, leases());
+    assertThat(pool.start()).containsExactly("emulator-5556");
+    assertThat(control.calls).containsExactly("launch Pixel_API_28 5556 clean");
+  }
+
+  @Test public void emulatorsLeasedByOtherExecutionsAreLeftAlone() throws Exception {
+    StubEmulatorControl control = new StubEmulatorControl();
+    control.running.put("emulator-5554", "Pixel_API_28");
+    DeviceLeases otherExecution = leases();
+    assertThat(otherExecution.tryAcquire("emulator-5554")).isTrue();
+    // Another execution is still launching an emulator on this port.
+    assertThat(otherExecution.tryAcquire("emulator-5556")).isTrue();
+
+    EmulatorPool pool =
+        new EmulatorPool(control, Arrays.asList("Pixel_API_28"), "clean", 10000, false, leases());
+    assertThat(pool.start()).containsExactly("emulator-5558");
+    assertThat(control.calls).containsExactly("launch Pixel_API_28 5558 clean");
+
+    control.calls.clear();
+    assertThat(otherExecution.tryAcquire("emulator-5558")).isFalse();
+    pool.release();
+    assertThat(otherExecution.tryAcquire("emulator-5558")).isTrue();
+    pool.reset();
+    assertThat(control.calls).isEmpty();
+
+    otherExecution.releaseAll();
+    pool.reset();
+    assertThat(control.calls).containsExactly("load emulator-5558 clean");
+  }
+
+  @Test public void concurrentPoolsDoNotShareEmulators() throws Exception {
+    StubEmulatorControl control = new StubEmulatorControl();
+    EmulatorPool first =
+        new EmulatorPool(control, Arrays.asList("Pixel_API_28"), "clean", 10000, false, leases());
+    EmulatorPool second =
+        new EmulatorPool(control, Arrays.asList("Pixel_API_28"), "clean", 10000, false, leases());
+    assertThat(first.start()).containsExactly("emulator-5554");
+    // The first execution still runs on its emulator, so the second one launches its own.
+    assertThat(second.start()).containsExactly("emulator-5556");
+    assertThat(control.calls).containsExactly("launch Pixel_API_28 5554 clean",
+        "launch Pixel_API_28 5556 clean");
+
+    control.calls.clear();
+    second.reset();
+    assertThat(control.calls).containsExactly("load emulator-5556 clean");
+    second.release();
+
+    control.calls.clear();
+    first.reset();
+    assertThat(control.calls).containsExactly("load emulator-5554 clean");
+    first.release();
+  }
+
+  private DeviceLeases leases() {
+    return new DeviceLeases(new File(folder.getRoot(), "leases"));
+  }
+}
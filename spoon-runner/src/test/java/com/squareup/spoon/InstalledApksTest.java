@@ -0,0 +1,60 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.squareup.spoon.InstalledApks.matchesDigest;
+import static com.squareup.spoon.InstalledApks.parseSingleApkPath;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class InstalledApksTest {
+  private static final String DIGEST = "d41d8cd98f00b204e9800998ecf8427e";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void installedPathIsParsed() {
+    assertThat(parseSingleApkPath("package:/data/app/com.example-1/base.apk\r\n"))
+        .isEqualTo("/data/app/com.example-1/base.apk");
+    assertThat(parseSingleApkPath("WARNING: linker: unused DT entry\n"
+        + "package:/data/app/com.example-1.apk\n")).isEqualTo("/data/app/com.example-1.apk");
+  }
+
+  @Test public void missingPackageHasNoPath() {
+    assertThat(parseSingleApkPath("")).isNull();
+    assertThat(parseSingleApkPath("Error: package not found\n")).isNull();
+  }
+
+  @Test public void splitApksHaveNoSinglePath() {
+    assertThat(parseSingleApkPath("package:/data/app/com.example-1/base.apk\n"
+        + "package:/data/app/com.example-1/split_config.xxhdpi.apk\n")).isNull();
+  }
+
+  @Test public void digestIsCompared() {
+    assertThat(matchesDigest(DIGEST + "  /data/app/com.example-1/base.apk\n", DIGEST)).isTrue();
+    assertThat(matchesDigest(DIGEST.toUpperCase() + " /data/app/base.apk", DIGEST)).isTrue();
+    assertThat(matchesDigest("0cc175b9c0f1b6a831c399e269772661  /data/app/base.apk", DIGEST))
+        .isFalse();
+    assertThat(matchesDigest("/system/bin/sh: md5sum: not found\n", DIGEST)).isFalse();
+    assertThat(matchesDigest("", DIGEST)).isFalse();
+  }
+
+  @Test public void throughputIsKeptAcrossExecutions() throws IOException {
+    File directory = folder.getRoot();
+    File apk = folder.newFile("app.apk");
+    FileUtils.writeByteArrayToFile(apk, new byte[1000]);
+    assertThat(InstalledApks.loadThroughput(directory, "serial").estimateMillis(apk.length()))
+        .isEqualTo(0);
+
+    InstalledApks.Throughput throughput = new InstalledApks.Throughput(0, 0).plus(4000, 2000);
+    InstalledApks.storeThroughput(directory, "serial", throughput);
+
+    InstalledApks.Throughput loaded = InstalledApks.loadThroughput(directory, "serial");
+    assertThat(loaded.estimateMillis(apk.length())).isEqualTo(500);
+    assertThat(InstalledApks.loadThroughput(directory, "other").estimateMillis(apk.length()))
+        .isEqualTo(0);
+  }
+}
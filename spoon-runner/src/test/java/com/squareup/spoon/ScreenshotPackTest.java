@@ -0,0 +1,64 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class ScreenshotPackTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file(String name, String content) throws IOException {
+    File file = new File(folder.getRoot(), name);
+    FileUtils.writeStringToFile(file, content);
+    return file;
+  }
+
+  @Test public void appendedScreenshotsAreReadBack() throws IOException {
+    File file = new File(folder.getRoot(), "image/serial.pack");
+    assertThat(ScreenshotPack.open(file).getEntry("a.png")).isNull();
+
+    ScreenshotPack.append(file, Arrays.asList(file("a.png", "first"), file("b.png", "second")));
+    ScreenshotPack pack = ScreenshotPack.append(file,
+        Arrays.asList(file("a.png", "ignored"), file("c.png", "third")));
+
+    assertThat(new String(pack.read("a.png"), "UTF-8")).isEqualTo("first");
+    assertThat(new String(pack.read("b.png"), "UTF-8")).isEqualTo("second");
+    assertThat(new String(pack.read("c.png"), "UTF-8")).isEqualTo("third");
+    ScreenshotPack.Entry entry = ScreenshotPack.open(file).getEntry("c.png");
+    assertThat(entry.getOffset()).isEqualTo(11);
+    assertThat(entry.getLength()).isEqualTo(5);
+  }
+
+  @Test public void otherFilesAreRejected() throws IOException {
+    try {
+      ScreenshotPack.open(file("serial.pack", "not a pack, but long enough"));
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void resultsResolvePackedScreenshots() throws IOException {
+    File output = folder.getRoot();
+    File screenshot = new File(output, "image/serial/Test/test/one.png");
+    String hash = new ScreenshotStore(output).add(file("one.png", "frame"));
+    File pack = new File(output, "image/serial.pack");
+    ScreenshotPack.append(pack, Arrays.asList(ScreenshotStore.getFile(output, hash, "one.png")));
+    FileUtils.forceDelete(ScreenshotStore.getFile(output, hash, "one.png"));
+
+    DeviceTestResult result = new DeviceTestResult.Builder()
+        .addScreenshot(screenshot, hash)
+        .setScreenshotPack(pack)
+        .build();
+
+    assertThat(result.getScreenshotPack()).isEqualTo(pack);
+    assertThat(IOUtils.toString(result.openScreenshot(screenshot, output))).isEqualTo("frame");
+  }
+}
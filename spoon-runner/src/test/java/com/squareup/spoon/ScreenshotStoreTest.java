@@ -0,0 +1,71 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ScreenshotStoreTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File screenshot(String path, String content) throws IOException {
+    File file = new File(folder.getRoot(), "work/" + path);
+    FileUtils.writeStringToFile(file, content);
+    return file;
+  }
+
+  @Test public void identicalScreenshotsAreStoredOnce() throws IOException {
+    File output = folder.getRoot();
+    ScreenshotStore store = new ScreenshotStore(output);
+
+    String first = store.add(screenshot("a/one.png", "frame"));
+    String second = store.add(screenshot("b/two.png", "frame"));
+    String third = store.add(screenshot("b/three.png", "other frame"));
+
+    assertThat(second).isEqualTo(first);
+    assertThat(third).isNotEqualTo(first);
+    assertThat(new File(output, "work/a/one.png")).doesNotExist();
+    assertThat(new File(output, "work/b/two.png")).doesNotExist();
+    File stored = ScreenshotStore.getFile(output, first, "one.png");
+    assertThat(stored.getName()).isEqualTo(first + ".png");
+    assertThat(FileUtils.readFileToString(stored)).isEqualTo("frame");
+    assertThat(stored.getParentFile().list()).hasSize(2);
+  }
+
+  @Test public void cleaningKeepsOnlyTheStore() throws IOException {
+    File output = folder.getRoot();
+    String hash = new ScreenshotStore(output).add(screenshot("a/one.png", "frame"));
+    FileUtils.writeStringToFile(new File(output, "image/serial/Test/test.gif"), "gif");
+    FileUtils.writeStringToFile(new File(output, "result.json"), "{}");
+
+    ScreenshotStore.cleanOutput(output);
+
+    assertThat(output.list()).containsOnly("image");
+    assertThat(new File(output, "image").list()).containsOnly(ScreenshotStore.DIRECTORY);
+    assertThat(ScreenshotStore.getFile(output, hash, "one.png")).exists();
+  }
+
+  @Test public void unreferencedScreenshotsArePruned() throws IOException {
+    File output = folder.getRoot();
+    ScreenshotStore store = new ScreenshotStore(output);
+    String kept = store.add(screenshot("a/one.png", "frame"));
+    String pruned = store.add(screenshot("a/two.png", "old frame"));
+
+    DeviceTest test = new DeviceTest("Test", "test");
+    DeviceTestResult.Builder testResult = new DeviceTestResult.Builder()
+        .addScreenshot(new File(output, "image/serial/Test/test/one.png"), kept);
+    DeviceResult deviceResult =
+        new DeviceResult.Builder().addTestResultBuilder(test, testResult).build();
+    SpoonSummary summary = new SpoonSummary.Builder().setTitle("Title").start()
+        .addResult("serial", deviceResult).end().build();
+
+    ScreenshotStore.prune(output, summary);
+
+    assertThat(ScreenshotStore.getFile(output, kept, "one.png")).exists();
+    assertThat(ScreenshotStore.getFile(output, pruned, "two.png")).doesNotExist();
+  }
+}
@@ -0,0 +1,128 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class SpoonDaemonTest {
+  private static final Set<String> NO_DEVICES = Collections.emptySet();
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private SpoonRunner.Builder newBuilder() {
+    File file = new File(".");
+    return new SpoonRunner.Builder() //
+        .setAndroidSdk(file)
+        .setApplicationApk(file)
+        .setInstrumentationApk(file)
+        .setOutputDirectory(new File(folder.getRoot(), "output"));
+  }
+
+  @Test public void submitWithoutDaemonReturnsNull() throws Exception {
+    ServerSocket socket = new ServerSocket(0);
+    int port = socket.getLocalPort();
+    socket.close();
+
+    SpoonRunner runner = newBuilder().useAllAttachedDevices().build();
+    assertThat(SpoonDaemon.submit(runner, port)).isNull();
+  }
+
+  @Test public void configurationSurvivesTransfer() {
+    SpoonRunner runner = newBuilder() //
+        .addDevice("emulator-5554")
+        .setClassName("com.example.FooTest")
+        .setTestSize(IRemoteAndroidTestRunner.TestSize.SMALL)
+        .setSharding(true)
+        .addDevicePreparation(DevicePreparations.LogcatBuffer.class)
+        .build();
+    String json = SpoonUtils.GSON.toJson(runner.toRequest("token"));
+    SpoonRunner received = SpoonDaemon.parseRequest(json, "token", new File("."), NO_DEVICES);
+    assertThat(SpoonUtils.GSON.toJson(received.toRequest("token"))).isEqualTo(json);
+  }
+
+  @Test(timeout = 5000) public void silentClientsTimeOut() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName(null));
+    Socket client = new Socket(InetAddress.getByName(null), server.getLocalPort());
+    Socket socket = server.accept();
+    try {
+      SpoonDaemon.readRequest(socket, 100);
+      fail();
+    } catch (SocketTimeoutException expected) {
+    } finally {
+      socket.close();
+      client.close();
+      server.close();
+    }
+  }
+
+  @Test public void requestsWithoutTheTokenAreRefused() {
+    SpoonRunner runner = newBuilder().useAllAttachedDevices().build();
+    String json = SpoonUtils.GSON.toJson(runner.toRequest("guess"));
+    try {
+      SpoonDaemon.parseRequest(json, "token", new File("."), NO_DEVICES);
+      fail();
+    } catch (SecurityException expected) {
+    }
+    try {
+      SpoonDaemon.parseRequest("{}", "token", new File("."), NO_DEVICES);
+      fail();
+    } catch (SecurityException expected) {
+    }
+  }
+
+  @Test public void requestsGoThroughTheBuilderChecks() {
+    SpoonRunner runner = newBuilder().useAllAttachedDevices().build();
+    DaemonRequest request = runner.toRequest("token");
+    request.sharding = true;
+    request.dynamicScheduling = true;
+    try {
+      SpoonDaemon.parseRequest(SpoonUtils.GSON.toJson(request), "token", new File("."),
+          NO_DEVICES);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test public void onlySpoonOutputsMayBeReplaced() throws Exception {
+    File output = new File(folder.getRoot(), "output");
+    assertThat(DaemonRequest.isReplaceable(output)).isTrue();
+    FileUtils.forceMkdir(output);
+    assertThat(DaemonRequest.isReplaceable(output)).isTrue();
+    FileUtils.writeStringToFile(new File(output, "notes.txt"), "Important");
+    assertThat(DaemonRequest.isReplaceable(output)).isFalse();
+    FileUtils.writeStringToFile(new File(output, "result.json"), "{}");
+    assertThat(DaemonRequest.isReplaceable(output)).isTrue();
+    assertThat(DaemonRequest.isReplaceable(new File(output, "notes.txt"))).isFalse();
+
+    SpoonRunner runner = newBuilder().useAllAttachedDevices().build();
+    DaemonRequest request = runner.toRequest("token");
+    request.output = folder.getRoot();
+    try {
+      SpoonDaemon.parseRequest(SpoonUtils.GSON.toJson(request), "token", new File("."),
+          NO_DEVICES);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test public void tokenIsRandomAndWrittenToItsFile() throws Exception {
+    File file = new File(folder.getRoot(), "spoon/daemon-7325.token");
+    String token = SpoonDaemon.writeToken(file);
+    assertThat(token).hasSize(64);
+    assertThat(FileUtils.readFileToString(file)).isEqualTo(token);
+    assertThat(file.canExecute()).isFalse();
+    assertThat(SpoonDaemon.writeToken(file)).isNotEqualTo(token);
+  }
+}
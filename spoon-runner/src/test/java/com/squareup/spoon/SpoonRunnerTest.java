@@ -1,5 +1,6 @@
 package com.squareup.spoon;
 
+import java.util.Collections;
 import org.junit.Test;
 
 import static com.squareup.spoon.SpoonRunner.parseOverallSuccess;
@@ -93,5 +94,14 @@ public class SpoonRunnerTest {
         .end() //
         .build(); //
     assertThat(parseOverallSuccess(summary)).isTrue();
+
+    // FAIL: No device was left to run some tests.
+    summary = new SpoonSummary.Builder() //
+        .setTitle("test") //
+        .start() //
+        .addUnexecutedTests(Collections.singletonList(device)) //
+        .end() //
+        .build(); //
+    assertThat(parseOverallSuccess(summary)).isFalse();
   }
 }
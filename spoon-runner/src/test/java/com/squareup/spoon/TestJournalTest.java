@@ -0,0 +1,100 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.squareup.spoon.adapters.TestIdentifierAdapter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.squareup.spoon.DeviceTestResult.Status;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class TestJournalTest {
+  private static final DeviceTest A1 = new DeviceTest("com.example.A", "testOne");
+  private static final DeviceTest A2 = new DeviceTest("com.example.A", "testTwo");
+  private static final DeviceTest B1 = new DeviceTest("com.example.B", "testOne");
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private DeviceTestResult passed() {
+    return new DeviceTestResult.Builder().startTest().endTest().build();
+  }
+
+  @Test public void missingJournalIsEmpty() throws Exception {
+    TestJournal journal = TestJournal.load(folder.getRoot(), SpoonUtils.GSON_COMPACT);
+    assertThat(journal.isEmpty()).isTrue();
+    assertThat(journal.getSerials()).isEmpty();
+  }
+
+  @Test public void recordedTestsAreNotExecutedAgain() throws Exception {
+    File output = folder.getRoot();
+    TestJournal.Writer first = new TestJournal.Writer(
+        TestJournal.fileFor(output, "first"), SpoonUtils.GSON_COMPACT);
+    first.test(A1, passed());
+    first.close();
+    TestJournal.Writer second = new TestJournal.Writer(
+        TestJournal.fileFor(output, "second"), SpoonUtils.GSON_COMPACT);
+    second.test(B1, new DeviceTestResult.Builder().startTest()
+        .markTestAsFailed("java.lang.AssertionError: Boom\n\tat com.example.B.testOne(B.java:3)\n")
+        .endTest()
+        .build());
+    second.close();
+
+    TestJournal journal = TestJournal.load(output, SpoonUtils.GSON_COMPACT);
+    List<DeviceTest> tests = Arrays.asList(A1, A2, B1);
+    assertThat(journal.unrecorded(tests, "first")).containsExactly(A2, B1);
+    assertThat(journal.unrecorded(tests, "third")).containsExactly(A1, A2, B1);
+    assertThat(journal.unrecorded(tests)).containsExactly(A2);
+    assertThat(journal.getResults("second").get(B1).getStatus()).isEqualTo(Status.FAIL);
+  }
+
+  @Test public void truncatedEntryIsIgnored() throws Exception {
+    File output = folder.getRoot();
+    File file = TestJournal.fileFor(output, "serial");
+    TestJournal.Writer writer = new TestJournal.Writer(file, SpoonUtils.GSON_COMPACT);
+    writer.test(A1, passed());
+    writer.close();
+    FileOutputStream out = new FileOutputStream(file, true);
+    out.write("{\"test\":{\"className\":\"com.exa".getBytes("UTF-8"));
+    out.close();
+
+    TestJournal journal = TestJournal.load(output, SpoonUtils.GSON_COMPACT);
+    assertThat(journal.getResults("serial").keySet()).containsExactly(A1);
+  }
+
+  @Test public void testsArePendingUntilTheirScreenshotsAreCollected() throws Exception {
+    File output = folder.getRoot();
+    TestJournal.Writer writer = new TestJournal.Writer(
+        TestJournal.fileFor(output, "serial"), SpoonUtils.GSON_COMPACT);
+    DeviceResult.Builder result = new DeviceResult.Builder();
+    ITestRunListener recorder =
+        new SpoonTestRunListener(result, false, TestIdentifierAdapter.JUNIT);
+    JournalListener journal =
+        new JournalListener(writer, result, TestIdentifierAdapter.JUNIT, "serial");
+    TestIdentifier test = new TestIdentifier(A1.getClassName(), A1.getMethodName());
+    Map<String, String> metrics = Collections.emptyMap();
+    recorder.testRunStarted("run", 2);
+    recorder.testStarted(test);
+    recorder.testEnded(test, metrics);
+    journal.testEnded(test, metrics);
+
+    // Dying before the screenshots are collected runs the test again rather than losing them.
+    TestJournal loaded = TestJournal.load(output, SpoonUtils.GSON_COMPACT);
+    assertThat(loaded.unrecorded(Arrays.asList(A1, A2), "serial")).containsExactly(A1, A2);
+
+    File screenshot = new File(output, "image/serial/com.example.A/testOne/one.png");
+    result.getMethodResultBuilder(A1).addScreenshot(screenshot, "hash");
+    journal.finishBatch();
+    writer.close();
+
+    loaded = TestJournal.load(output, SpoonUtils.GSON_COMPACT);
+    assertThat(loaded.getResults("serial").get(A1).getScreenshots()).containsExactly(screenshot);
+  }
+}
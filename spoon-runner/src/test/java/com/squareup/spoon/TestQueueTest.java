@@ -0,0 +1,87 @@
+package com.squareup.spoon;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class TestQueueTest {
+  private static final DeviceTest A1 = new DeviceTest("com.example.A", "testOne");
+  private static final DeviceTest B1 = new DeviceTest("com.example.B", "testOne");
+  private static final DeviceTest B2 = new DeviceTest("com.example.B", "testTwo");
+
+  @Test public void largestClassesAreHandedOutFirst() {
+    TestQueue queue = TestQueue.forClasses(Arrays.asList(A1, B1, B2));
+    assertThat(queue.size()).isEqualTo(2);
+    TestBatch first = queue.next("a");
+    assertThat(first.getTargets()).containsExactly("com.example.B");
+    TestBatch second = queue.next("b");
+    assertThat(second.getTargets()).containsExactly("com.example.A");
+    queue.complete("a", first);
+    queue.complete("b", second);
+    assertThat(queue.next("a")).isNull();
+  }
+
+  @Test public void drainingLeavesNothingToHandOut() {
+    TestQueue queue = TestQueue.forClasses(Arrays.asList(A1, B1, B2));
+    TestBatch batch = queue.next("a");
+    List<TestBatch> drained = queue.drain();
+    assertThat(drained).hasSize(1);
+    assertThat(drained.get(0).getTests()).containsExactly(A1);
+    queue.complete("a", batch);
+    assertThat(queue.size()).isEqualTo(0);
+    assertThat(queue.next("a")).isNull();
+  }
+
+  @Test public void requeuedTestsAreHandedOutBeforeOthers() {
+    List<DeviceTest> tests = Arrays.asList(A1, B1, B2);
+    TestQueue queue = TestQueue.forClasses(tests);
+    TestBatch batch = queue.next("a");
+    queue.complete("a", batch, TestBatch.of(Arrays.asList(B2), tests));
+    assertThat(queue.next("b").getTargets()).containsExactly("com.example.B#testTwo");
+  }
+
+  @Test(timeout = 5000) public void waitsForBatchesInFlight() throws Exception {
+    final List<DeviceTest> tests = Arrays.asList(A1);
+    final TestQueue queue = TestQueue.forClasses(tests);
+    final TestBatch batch = queue.next("a");
+    Thread device = new Thread(new Runnable() {
+      @Override public void run() {
+        queue.complete("a", batch, TestBatch.of(tests, tests));
+      }
+    });
+    device.start();
+    // Blocks until the other device returns its tests rather than reporting an empty queue.
+    assertThat(queue.next("b").getTargets()).containsExactly("com.example.A");
+    device.join();
+  }
+
+  @Test public void claimedBatchesAreWaitedFor() {
+    TestQueue queue = new TestQueue();
+    TestBatch shard = TestBatch.of(Arrays.asList(A1), Arrays.asList(A1));
+    queue.claim("a", shard);
+    queue.complete("a", shard, shard);
+    assertThat(queue.next("b")).isSameAs(shard);
+  }
+
+  @Test(timeout = 5000) public void batchesOfDisconnectedDevicesAreHandedOutAgain()
+      throws Exception {
+    final TestQueue queue = TestQueue.forClasses(Arrays.asList(A1));
+    TestBatch batch = queue.next("a");
+    Thread disconnect = new Thread(new Runnable() {
+      @Override public void run() {
+        queue.abandon("a");
+      }
+    });
+    disconnect.start();
+    // Wakes up as soon as the device disconnects, without waiting for its instrumentation.
+    assertThat(queue.next("b")).isSameAs(batch);
+    disconnect.join();
+
+    // The disconnected device failing afterwards does not return the batch a second time.
+    queue.complete("a", batch, batch);
+    queue.complete("b", batch);
+    assertThat(queue.next("b")).isNull();
+  }
+}
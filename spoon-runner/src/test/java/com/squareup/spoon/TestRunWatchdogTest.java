@@ -0,0 +1,76 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.squareup.spoon.adapters.TestIdentifierAdapter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+import static com.squareup.spoon.DeviceTestResult.Status;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class TestRunWatchdogTest {
+  private static final TestIdentifier TEST = new TestIdentifier("com.example.A", "testOne");
+  private static final Map<String, String> NO_METRICS = Collections.emptyMap();
+
+  private final DeviceResult.Builder result = new DeviceResult.Builder();
+  private final List<String> commands = new ArrayList<String>();
+  private final TestRunWatchdog watchdog = new TestRunWatchdog("serial", 1,
+      Arrays.<ITestRunListener>asList(
+          new SpoonTestRunListener(result, false, TestIdentifierAdapter.JUNIT)),
+      new ApkInstaller.Shell() {
+        @Override public String execute(String command) {
+          commands.add(command);
+          return "";
+        }
+      }, "com.example", AdbThrottle.unlimited());
+
+  /** Starts {@link #TEST} and then reports nothing until it is cancelled. */
+  private static final class StallingRunner extends RemoteAndroidTestRunner {
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+
+    StallingRunner() {
+      super("com.example.test", "android.test.InstrumentationTestRunner", null);
+    }
+
+    @Override public void run(Collection<ITestRunListener> listeners) {
+      for (ITestRunListener listener : listeners) {
+        listener.testRunStarted("run", 1);
+        listener.testStarted(TEST);
+      }
+      try {
+        cancelled.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override public void cancel() {
+      cancelled.countDown();
+    }
+  }
+
+  @Test public void stalledTestIsReportedAsError() throws Exception {
+    watchdog.testRunStarted("run", 1);
+    watchdog.testStarted(TEST);
+    Thread.sleep(10);
+    assertThat(watchdog.checkStalled()).isTrue();
+
+    // The instrumentation reporting the test afterwards does not override the error.
+    watchdog.testEnded(TEST, NO_METRICS);
+    DeviceTestResult testResult = result.build().getTestResults().get(DeviceTest.from(TEST));
+    assertThat(testResult.getStatus()).isEqualTo(Status.ERROR);
+  }
+
+  @Test(timeout = 5000) public void stalledInstrumentationIsStopped() throws Exception {
+    assertThat(watchdog.run(new StallingRunner())).isTrue();
+    assertThat(commands).containsExactly("am force-stop com.example");
+  }
+}
@@ -0,0 +1,117 @@
+package com.squareup.spoon;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class TestSharderTest {
+  private static final DeviceTest A1 = new DeviceTest("com.example.A", "testOne");
+  private static final DeviceTest A2 = new DeviceTest("com.example.A", "testTwo");
+  private static final DeviceTest A3 = new DeviceTest("com.example.A", "testThree");
+  private static final DeviceTest B1 = new DeviceTest("com.example.B", "testOne");
+  private static final DeviceTest C1 = new DeviceTest("com.example.C", "testOne");
+  private static final DeviceTest C2 = new DeviceTest("com.example.C", "testTwo");
+
+  @Test public void classesAreKeptTogether() {
+    List<DeviceTest> tests = Arrays.asList(A1, A2, A3, B1, C1, C2);
+    List<TestBatch> shards = TestSharder.shard(tests, 2, TestHistory.empty());
+    assertThat(shards).hasSize(2);
+    assertThat(shards.get(0).getTargets()).containsExactly("com.example.A");
+    assertThat(shards.get(1).getTargets()).containsExactly("com.example.B", "com.example.C");
+  }
+
+  @Test public void methodsAreSplitWhenThereAreTooFewClasses() {
+    List<DeviceTest> tests = Arrays.asList(A1, A2, A3);
+    List<TestBatch> shards = TestSharder.shard(tests, 2, TestHistory.empty());
+    assertThat(shards).hasSize(2);
+    assertThat(shards.get(0).getTests()).hasSize(2);
+    assertThat(shards.get(1).getTests()).hasSize(1);
+    assertThat(shards.get(1).getTargets()).containsExactly("com.example.A#testTwo");
+  }
+
+  @Test public void emptyShardsAreOmitted() {
+    List<TestBatch> shards = TestSharder.shard(Arrays.asList(B1), 3, TestHistory.empty());
+    assertThat(shards).hasSize(1);
+    assertThat(shards.get(0).getTargets()).containsExactly("com.example.B");
+  }
+
+  @Test public void longestTestsAreBalancedFirst() {
+    Map<DeviceTest, Long> durations = new HashMap<DeviceTest, Long>();
+    durations.put(A1, 60000L);
+    durations.put(A2, 1000L);
+    durations.put(A3, 1000L);
+    durations.put(B1, 30000L);
+    durations.put(C1, 30000L);
+    TestHistory history = new TestHistory(durations);
+
+    // Class A alone would exceed a balanced shard so its methods are spread individually.
+    List<DeviceTest> tests = Arrays.asList(A1, A2, A3, B1, C1);
+    List<TestBatch> shards = TestSharder.shard(tests, 2, history);
+    assertThat(shards).hasSize(2);
+    assertThat(shards.get(0).getTests()).containsExactly(A1, A2);
+    assertThat(shards.get(1).getTests()).containsExactly(A3, B1, C1);
+  }
+
+  @Test public void unknownTestsUseMeanEstimate() {
+    Map<DeviceTest, Long> durations = new HashMap<DeviceTest, Long>();
+    durations.put(A1, 1000L);
+    durations.put(A2, 3000L);
+    TestHistory history = new TestHistory(durations);
+    assertThat(history.estimate(B1)).isEqualTo(2000L);
+    assertThat(TestHistory.empty().estimate(B1)).isEqualTo(TestHistory.DEFAULT_ESTIMATE);
+  }
+
+  @Test public void precompiledDevicesCanBeLeftOut() {
+    DeviceResult interpreted = new DeviceResult.Builder()
+        .addTestResultBuilder(A1, new DeviceTestResult.Builder().startTest().endTest())
+        .build();
+    DeviceResult precompiled = new DeviceResult.Builder()
+        .addCompileDuration(1000)
+        .addTestResultBuilder(B1, new DeviceTestResult.Builder().startTest().endTest())
+        .build();
+    SpoonSummary summary = new SpoonSummary.Builder().setTitle("Test").start()
+        .addResult("one", interpreted)
+        .addResult("two", precompiled)
+        .end()
+        .build();
+    assertThat(TestHistory.from(summary).size()).isEqualTo(2);
+    assertThat(TestHistory.from(summary, true).size()).isEqualTo(1);
+  }
+
+  @Test public void precompileBaselinesAreRecordedDurations() {
+    DeviceResult interpreted = new DeviceResult.Builder()
+        .addTestResultBuilder(A1, new DeviceTestResult.Builder().startTest().endTest())
+        .build();
+    SpoonSummary earlier = new SpoonSummary.Builder().setTitle("Test").start()
+        .addResult("one", interpreted)
+        .end()
+        .build();
+    TestHistory history = TestHistory.from(earlier, true);
+    assertThat(history.getRecordedDuration(A1)).isEqualTo(0);
+    assertThat(history.getRecordedDuration(B1)).isNull();
+    assertThat(history.estimate(A1)).isEqualTo(500);
+
+    DeviceResult precompiled = new DeviceResult.Builder()
+        .addCompileDuration(1000)
+        .addTestResultBuilder(A1, new DeviceTestResult.Builder().startTest().endTest())
+        .addTestResultBuilder(B1, new DeviceTestResult.Builder().startTest().endTest())
+        .build();
+    SpoonSummary summary = new SpoonSummary.Builder().setTitle("Test").start()
+        .addResult("one", precompiled)
+        .addPrecompileBaselines(history)
+        .end()
+        .build();
+    assertThat(summary.getPrecompileBaselines().get("one")).containsKey(A1).hasSize(1);
+  }
+
+  @Test public void batchTargetsCollapseWholeClasses() {
+    List<DeviceTest> all = Arrays.asList(A1, A2, A3, B1);
+    TestBatch batch = TestBatch.of(Arrays.asList(A1, A3, B1), all);
+    assertThat(batch.getTargets()) //
+        .containsExactly("com.example.A#testOne", "com.example.A#testThree", "com.example.B");
+  }
+}